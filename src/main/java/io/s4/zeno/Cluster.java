@@ -20,6 +20,7 @@ import io.s4.zeno.config.WritableConfigMap;
 import io.s4.zeno.config.ZKConfigMap;
 
 import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -45,7 +46,7 @@ public interface Cluster {
     /**
      * Get names of all active sites in the cluster.
      * 
-     * @return list of all active site names.
+     * @return list of all active site names. Not modifiable.
      */
     List<String> getAllSiteNames();
 
@@ -74,6 +75,36 @@ public interface Cluster {
      */
     void removeSite(Cluster.Site site);
 
+    /**
+     * Add a listener to be told when sites join or leave the cluster.
+     * 
+     * @param listener
+     */
+    void addListener(Listener listener);
+
+    /**
+     * Remove a listener added with {@link #addListener(Listener)}.
+     * 
+     * @param listener
+     */
+    void removeListener(Listener listener);
+
+    /**
+     * Listener for changes in the membership of a cluster. It may be called
+     * from the ZooKeeper event thread, and must not block.
+     */
+    public interface Listener {
+        /**
+         * Sites have joined or left the cluster.
+         * 
+         * @param joined
+         *            names of sites that joined.
+         * @param left
+         *            names of sites that left.
+         */
+        void sitesChanged(Set<String> joined, Set<String> left);
+    }
+
     public interface Site {
         String name();
 
@@ -85,4 +85,12 @@ public interface EventMonitor {
      * Reset.
      */
     void reset();
+
+    /**
+     * Can {@link #putEvent(double)} be called by several threads at once? If
+     * not, callers must synchronize on the monitor.
+     * 
+     * @return true if the monitor is thread-safe.
+     */
+    boolean isConcurrent();
 }
@@ -18,6 +18,12 @@ package io.s4.zeno;
 import io.s4.zeno.resource.TimeSliceResource;
 import io.s4.zeno.util.ZenoDefs;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import org.apache.log4j.Logger;
 
 
@@ -30,9 +36,88 @@ import org.apache.log4j.Logger;
 public class Part implements Comparable<Part> {
     private static Logger logger = Logger.getLogger(Part.class);
 
+    /**
+     * State of this part, as a byte array.
+     * 
+     * @deprecated the whole state is held in memory. Use
+     *             {@link #writeState(OutputStream)}.
+     */
+    @Deprecated
     public byte[] getData() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            writeState(out);
+        } catch (IOException e) {
+            logger.error("error extracting state of part " + id, e);
+            return ZenoDefs.emptyBytes;
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the state of this part, e.g. to hand it over to another site. The
+     * state is streamed, so it need not fit in memory at once. The part
+     * should be paused.
+     * 
+     * @param out
+     *            stream to write to. It is not closed.
+     * @throws IOException
+     *             if writing to the stream fails.
+     */
+    public void writeState(OutputStream out) throws IOException {
         // TODO: extract data from site, related to this part
-        return ZenoDefs.emptyBytes;
+    }
+
+    /**
+     * Restore the state of this part from a stream written by
+     * {@link #writeState(OutputStream)} at another site. Called before the
+     * part is started. Bytes not read are skipped by the caller. A part that
+     * writes no state has none to restore, so this reads nothing; parts that
+     * override {@link #writeState(OutputStream)} should override this too.
+     * 
+     * @param in
+     *            stream to read from. It is not closed.
+     * @throws IOException
+     *             if reading from the stream fails.
+     */
+    public void readState(InputStream in) throws IOException {
+    }
+
+    /**
+     * Checkpoint the state of this part to a local file, to be shipped
+     * without passing through the heap. Parts with large state should
+     * override this; others are sent with {@link #writeState(OutputStream)}.
+     * The part should be paused.
+     * 
+     * @param dir
+     *            directory for the snapshot, or null for the default.
+     * @return the snapshot, or null if this part does not make snapshots.
+     * @throws IOException
+     *             if writing the snapshot fails.
+     */
+    public PartSnapshot snapshot(File dir) throws IOException {
+        return null;
+    }
+
+    /**
+     * Restore the state of this part from a snapshot received from another
+     * site. Called before the part is started. By default, the state is read
+     * with {@link #readState(InputStream)} from the mapped snapshot.
+     * 
+     * @param snapshot
+     *            snapshot, deleted by the caller after this returns.
+     * @throws IOException
+     *             if reading the snapshot fails.
+     */
+    public void restore(PartSnapshot snapshot) throws IOException {
+        InputStream in = snapshot.openStream();
+        try {
+            readState(in);
+        } finally {
+            in.close();
+        }
     }
 
     public Part(Job job, EventMonitor monitor, int group, int key) {
@@ -135,7 +220,45 @@ public class Part implements Comparable<Part> {
         }
 
         public int hashCode() {
-            return (group << 16) | (key & 0x0000FFFF);
+            return 31 * group + key;
+        }
+
+        /**
+         * Pack a group and key into a single long: the group in the upper 32
+         * bits and the key in the lower 32 bits.
+         */
+        public static long pack(int group, int key) {
+            return ((long) group << 32) | (key & 0xFFFFFFFFL);
+        }
+
+        /**
+         * Group of a packed id.
+         */
+        public static int group(long packed) {
+            return (int) (packed >>> 32);
+        }
+
+        /**
+         * Key of a packed id.
+         */
+        public static int key(long packed) {
+            return (int) packed;
+        }
+
+        /**
+         * Create an Id from its packed form.
+         */
+        public static Id unpack(long packed) {
+            return new Id(group(packed), key(packed));
+        }
+
+        /**
+         * This id packed into a long.
+         * 
+         * @see #pack(int, int)
+         */
+        public long packed() {
+            return pack(group, key);
         }
 
         public int compareTo(Id that) {
@@ -16,7 +16,7 @@
 package io.s4.zeno;
 
 import io.s4.zeno.config.ConfigMap;
-import io.s4.zeno.monitor.PoissonEventMonitor;
+import io.s4.zeno.monitor.EventMonitorFactory;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -46,7 +46,7 @@ public class PartAcquirer {
 
         // initialize monitor factory.
         ConfigMap partMonitorSpec = job.spec("part.monitor");
-        monitorFactory = new PoissonEventMonitor.Factory(partMonitorSpec);
+        monitorFactory = new EventMonitorFactory(partMonitorSpec);
     }
 
     /**
@@ -15,13 +15,17 @@
  */
 package io.s4.zeno;
 
+import io.s4.zeno.part.PartPlanner;
 import io.s4.zeno.resource.FlexibleResource;
+import io.s4.zeno.resource.FlexibleTimeSliceResource;
 import io.s4.zeno.resource.TimeSliceResource;
+import io.s4.zeno.util.LongTable;
 import io.s4.zeno.util.ZenoError;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
 
@@ -46,6 +50,17 @@ public class PartMap {
      */
     protected ConcurrentHashMap<Part.Id, Part> parts = new ConcurrentHashMap<Part.Id, Part>();
 
+    /**
+     * Copy of the mapping keyed by packed part id, for lookups that must not
+     * allocate. Rebuilt whenever the mapping changes.
+     */
+    private volatile LongTable<Part> table = new LongTable<Part>(new HashMap<Long, Part>());
+
+    /**
+     * Selects parts to fill a resource, see {@link #getBusy(FlexibleResource)}.
+     */
+    private final PartPlanner planner = new PartPlanner(1024);
+
     /**
      * Lookup part corresponding to a part id.
      * 
@@ -57,6 +72,28 @@ public class PartMap {
         return parts.get(id);
     }
 
+    /**
+     * Lookup part corresponding to a packed part id.
+     * 
+     * @param id
+     *            part id packed with {@link Part.Id#pack(int, int)}
+     * @return part corresponding to id, or null if no such part exists.
+     */
+    public Part get(long id) {
+        return table.get(id);
+    }
+
+    // rebuild lookup table after the mapping has changed.
+    private synchronized void rebuildTable() {
+        HashMap<Long, Part> m = new HashMap<Long, Part>();
+
+        for (Part p : parts.values()) {
+            m.put(p.id().packed(), p);
+        }
+
+        table = new LongTable<Part>(m);
+    }
+
     /**
      * Add a part to the mapping. Id is contained in the part.
      * 
@@ -66,6 +103,7 @@ public class PartMap {
     public void put(Part part) {
         logger.debug("adding partid " + part.id());
         parts.put(part.id(), part);
+        rebuildTable();
     }
 
     /**
@@ -74,6 +112,7 @@ public class PartMap {
      */
     public void clear() {
         parts.clear();
+        rebuildTable();
     }
 
     /**
@@ -86,6 +125,7 @@ public class PartMap {
         logger.debug("forgetting partid " + part.id());
 
         if (parts.remove(part.id()) != null) {
+            rebuildTable();
             part.forget();
         } else {
             throw new ZenoError("Unknown partid " + part.id());
@@ -121,6 +161,65 @@ public class PartMap {
      *         be fit.
      */
     public Collection<Part> getBusy(FlexibleResource r) {
+        if (r instanceof FlexibleTimeSliceResource)
+            return getBusy((FlexibleTimeSliceResource) r);
+
+        return getBusyGreedy(r);
+    }
+
+    /**
+     * Get the fewest parts whose total usage fits into a flexible time slice.
+     * Usage of all parts is read once, and the selection is made by a
+     * {@link PartPlanner} over the resource and all its expansions at once.
+     * 
+     * @param r
+     *            flexible time slice into which parts have to be fit.
+     * @return collection of busy parts. Collection is empty if no parts could
+     *         be fit.
+     */
+    public Collection<Part> getBusy(FlexibleTimeSliceResource r) {
+        Part[] all = getAll().toArray(new Part[0]);
+
+        double[] usage = new double[all.length];
+        for (int i = 0; i < all.length; ++i) {
+            EventMonitor m = all[i].eventMonitor();
+            usage[i] = m.getEventLength() * m.getEventRate();
+        }
+
+        // the resource and its expansions, in order.
+        ArrayList<FlexibleTimeSliceResource> windows = new ArrayList<FlexibleTimeSliceResource>();
+        FlexibleResource w = r;
+        while (true) {
+            windows.add((FlexibleTimeSliceResource) w);
+            if (!w.canExpand()) break;
+            w = w.expand();
+        }
+
+        double[] lo = new double[windows.size()];
+        double[] hi = new double[windows.size()];
+        for (int k = 0; k < lo.length; ++k) {
+            lo[k] = windows.get(k).lo();
+            hi[k] = windows.get(k).hi();
+        }
+
+        int[] chosen = planner.plan(usage, r.getTimeSlice(), lo, hi);
+
+        ArrayList<Part> busy = new ArrayList<Part>(chosen.length);
+        double totalUsed = 0.0;
+        for (int i : chosen) {
+            busy.add(all[i]);
+            totalUsed += usage[i];
+        }
+
+        logger.info("identified " + busy.size() + " of " + all.length
+                + " parts to fill resources " + r + ". parts used: "
+                + totalUsed);
+
+        return busy;
+    }
+
+    // fit parts greedily, most busy first, into resources of other kinds.
+    private Collection<Part> getBusyGreedy(FlexibleResource r) {
         ArrayList<Part> parts = new ArrayList<Part>(getAll());
 
         // order parts by resource usage: smallest first so that there is
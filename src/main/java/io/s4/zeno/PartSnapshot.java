@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno;
+
+import io.s4.zeno.protocol.BoundedInputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Checkpoint of the state of a part in a local file, for moving parts whose
+ * state is too large to pass through the heap.
+ * <p>
+ * A part writes its snapshot either through {@link #channel()}, e.g. into a
+ * segment mapped with {@link FileChannel#map}, or through
+ * {@link #openOutput()}. The sending site then ships the file with
+ * {@link #transferTo(WritableByteChannel)}, which the OS can do without
+ * copying it into user space. The receiving site spools the bytes into a
+ * snapshot of its own with {@link #receive(InputStream, long, File)} and the
+ * part is restored from the mapped file with {@link #map()}.
+ * <p>
+ * Snapshots are temporary: {@link #delete()} them once they have been sent
+ * or restored. Snapshots left behind by a site that went down are removed
+ * with {@link #clean(File)} when it starts again.
+ */
+public class PartSnapshot {
+    private static final Logger logger = Logger.getLogger(PartSnapshot.class);
+
+    // size of transferFrom steps while receiving.
+    private static final long RECEIVE_STEP = 8 * 1024 * 1024;
+
+    /** ms a transfer may go without progress before it fails. */
+    public static final long STALL_TIMEOUT = 30000;
+
+    /** ms to wait before retrying a transfer step that made no progress. */
+    public static final long STALL_WAIT = 10;
+
+    // names of snapshot files are "part-" ... SUFFIX.
+    private static final String PREFIX = "part-";
+
+    private static final String SUFFIX = ".snap";
+
+    private final File file;
+
+    private RandomAccessFile raf = null;
+
+    private PartSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Create an empty snapshot.
+     * 
+     * @param dir
+     *            directory to hold the snapshot, or null for the default
+     *            temporary-file directory.
+     * @param id
+     *            part whose state is to be held.
+     */
+    public static PartSnapshot create(File dir, Part.Id id) throws IOException {
+        String prefix = PREFIX + id.group + "-" + id.key + "-";
+        File f = File.createTempFile(prefix, SUFFIX, dir);
+
+        return new PartSnapshot(f);
+    }
+
+    /**
+     * Read a snapshot of known length from a stream, e.g. the data socket of
+     * a connection. Exactly {@code length} bytes are consumed.
+     * 
+     * @param in
+     *            stream to read from. It is not closed.
+     * @param length
+     *            number of bytes in the snapshot.
+     * @param dir
+     *            directory to hold the snapshot, or null for the default.
+     */
+    public static PartSnapshot receive(InputStream in, long length, File dir)
+            throws IOException {
+        PartSnapshot s = new PartSnapshot(File.createTempFile(PREFIX + "recv-",
+                                                              SUFFIX,
+                                                              dir));
+
+        InputStream bounded = new BoundedInputStream(in, length);
+        ReadableByteChannel src = Channels.newChannel(bounded);
+
+        try {
+            FileChannel fc = s.channel();
+
+            long pos = 0;
+            while (pos < length) {
+                long n = fc.transferFrom(src, pos, Math.min(RECEIVE_STEP,
+                                                            length - pos));
+                if (n <= 0)
+                    throw new IOException("stream ended " + (length - pos)
+                            + " bytes early");
+                pos += n;
+            }
+
+            return s;
+
+        } catch (IOException e) {
+            bounded.close();
+            s.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Remove snapshot files left in a directory, e.g. by a site that went
+     * down while moving parts. Only call this for a directory that no other
+     * running site uses.
+     * 
+     * @param dir
+     *            directory holding snapshots. If null, nothing is removed:
+     *            the default temporary-file directory may be shared.
+     * @return number of files removed.
+     */
+    public static int clean(File dir) {
+        if (dir == null) return 0;
+
+        File[] files = dir.listFiles();
+        if (files == null) return 0;
+
+        int n = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (!f.isFile() || !name.startsWith(PREFIX)
+                    || !name.endsWith(SUFFIX)) continue;
+
+            if (f.delete())
+                ++n;
+            else
+                logger.warn("could not delete stale snapshot " + f);
+        }
+
+        if (n > 0) logger.info("removed " + n + " stale snapshots from " + dir);
+
+        return n;
+    }
+
+    /**
+     * File holding the snapshot.
+     */
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Size of the snapshot.
+     * 
+     * @return number of bytes.
+     */
+    public long length() throws IOException {
+        return channel().size();
+    }
+
+    /**
+     * Channel on the snapshot file, for reading and writing.
+     */
+    public synchronized FileChannel channel() throws IOException {
+        if (raf == null) raf = new RandomAccessFile(file, "rw");
+
+        return raf.getChannel();
+    }
+
+    /**
+     * Stream for writing the snapshot from its current end.
+     */
+    public OutputStream openOutput() throws IOException {
+        FileChannel fc = channel();
+        fc.position(fc.size());
+
+        return Channels.newOutputStream(fc);
+    }
+
+    /**
+     * Map the whole snapshot into memory, read-only.
+     * 
+     * @throws IOException
+     *             if the snapshot is too large to be mapped at once (2GB).
+     */
+    public MappedByteBuffer map() throws IOException {
+        long size = length();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("snapshot too large to map: " + size);
+
+        return channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Stream over the snapshot: over the mapped file if it can be mapped at
+     * once, otherwise over the file itself.
+     */
+    public InputStream openStream() throws IOException {
+        if (length() > Integer.MAX_VALUE) return new FileInputStream(file);
+
+        final ByteBuffer buf = map();
+
+        return new InputStream() {
+            public int read() {
+                return (buf.hasRemaining() ? (buf.get() & 0xFF) : -1);
+            }
+
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!buf.hasRemaining()) return -1;
+
+                int n = Math.min(len, buf.remaining());
+                buf.get(b, off, n);
+                return n;
+            }
+
+            public int available() {
+                return buf.remaining();
+            }
+        };
+    }
+
+    /**
+     * Write the whole snapshot to a channel. If the channel is that of a
+     * socket, the OS may send the file without copying it into user space.
+     * Fails if the channel takes nothing for {@value #STALL_TIMEOUT} ms.
+     * 
+     * @return number of bytes written.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        return transferTo(target, STALL_TIMEOUT);
+    }
+
+    /**
+     * Write the whole snapshot to a channel, failing if the channel takes
+     * nothing for some time, e.g. if the receiver has stalled. While the
+     * channel takes nothing, e.g. if it is non-blocking and its buffer is
+     * full, the transfer is retried every {@value #STALL_WAIT} ms.
+     * 
+     * @param stallTimeout
+     *            ms the channel may go without taking any bytes.
+     * @return number of bytes written.
+     * @throws IOException
+     *             if the channel is closed or stalls before the whole
+     *             snapshot has been written.
+     */
+    public long transferTo(WritableByteChannel target, long stallTimeout)
+            throws IOException {
+        FileChannel fc = channel();
+        long size = fc.size();
+
+        long pos = 0;
+        long stalledSince = -1;
+        while (pos < size) {
+            long n = fc.transferTo(pos, size - pos, target);
+            if (n > 0) {
+                pos += n;
+                stalledSince = -1;
+                continue;
+            }
+
+            if (!target.isOpen())
+                throw new IOException("channel closed with " + (size - pos)
+                        + " bytes left to transfer");
+
+            long now = System.currentTimeMillis();
+            if (stalledSince < 0)
+                stalledSince = now;
+            else if (now - stalledSince >= stallTimeout)
+                throw new IOException("transfer stalled for " + stallTimeout
+                        + " ms with " + (size - pos) + " bytes left");
+
+            try {
+                Thread.sleep(STALL_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted with "
+                        + (size - pos) + " bytes left to transfer");
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Close and remove the snapshot file.
+     */
+    public synchronized void delete() {
+        try {
+            if (raf != null) raf.close();
+        } catch (IOException e) {
+            logger.error("error closing snapshot " + file, e);
+        }
+
+        raf = null;
+
+        if (!file.delete()) logger.warn("could not delete snapshot " + file);
+    }
+
+    public String toString() {
+        return file.toString();
+    }
+}
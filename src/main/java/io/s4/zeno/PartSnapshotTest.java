@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Checks of {@link PartSnapshot#transferTo(WritableByteChannel, long)} with
+ * channels that take nothing for a while, or at all. Prints each case, and
+ * exits with status 1 if any fails.
+ */
+public class PartSnapshotTest {
+
+    private static int failed = 0;
+
+    /**
+     * A channel that takes nothing on its first {@code stalls} writes, then
+     * at most {@code step} bytes per write. It takes nothing ever if
+     * {@code stalls} is negative.
+     */
+    private static class SlowChannel implements WritableByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        int stalls;
+
+        final int step;
+
+        boolean open = true;
+
+        SlowChannel(int stalls, int step) {
+            this.stalls = stalls;
+            this.step = step;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) throw new IOException("closed");
+
+            if (stalls != 0) {
+                if (stalls > 0) --stalls;
+                return 0;
+            }
+
+            int n = Math.min(step, src.remaining());
+            for (int i = 0; i < n; ++i)
+                written.write(src.get());
+
+            return n;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * The main method.
+     * 
+     * @param arg
+     *            the arguments
+     */
+    public static void main(String[] arg) throws IOException {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte) i;
+
+        Part.Id id = Part.Id.unpack(Part.Id.pack(1, 2));
+        PartSnapshot snapshot = PartSnapshot.create(null, id);
+        try {
+            OutputStream out = snapshot.openOutput();
+            out.write(data);
+            out.flush();
+
+            // takes nothing for a few rounds, then a little at a time.
+            SlowChannel slow = new SlowChannel(5, 1000);
+            try {
+                snapshot.transferTo(slow, 1000);
+                check("slow channel", Arrays.equals(slow.written.toByteArray(),
+                                                    data));
+            } catch (IOException e) {
+                check("slow channel: " + e, false);
+            }
+
+            // takes nothing, ever.
+            long start = System.currentTimeMillis();
+            try {
+                snapshot.transferTo(new SlowChannel(-1, 0), 200);
+                check("stalled channel", false);
+            } catch (IOException e) {
+                long t = System.currentTimeMillis() - start;
+                check("stalled channel failed after " + t + " ms: " + e,
+                      t >= 200 && t < 2000);
+            }
+
+            // closed while taking nothing.
+            SlowChannel closed = new SlowChannel(-1, 0);
+            closed.close();
+            try {
+                snapshot.transferTo(closed, 1000);
+                check("closed channel", false);
+            } catch (IOException e) {
+                check("closed channel: " + e, true);
+            }
+
+        } finally {
+            snapshot.delete();
+        }
+
+        System.out.println(failed == 0 ? "Done. All passed." : "Done. "
+                + failed + " failed.");
+
+        if (failed > 0) System.exit(1);
+    }
+
+    private static void check(String name, boolean ok) {
+        if (!ok) ++failed;
+
+        System.out.println((ok ? "OK     " : "FAILED ") + name);
+    }
+}
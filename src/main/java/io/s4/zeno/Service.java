@@ -22,7 +22,8 @@ import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 
 /**
- * A service which can be scheduled to run periodically in a thread pool.
+ * A service which can be scheduled to run periodically in a thread pool, or
+ * run repeatedly on a dedicated thread.
  */
 public abstract class Service {
     private static final Logger logger = Logger.getLogger(Service.class);
@@ -63,6 +64,17 @@ public abstract class Service {
     // executor.
     private ScheduledThreadPoolExecutor scheduler;
 
+    // added to the delay when scheduled.
+    private long pad = 10;
+
+    // thread running this service, if started on a dedicated thread.
+    private volatile Thread thread = null;
+
+    /** Maximum ms for which {@link #stop()} waits for a dedicated thread. */
+    public static final long STOP_TIMEOUT = 10000;
+
+    private final Object sleeper = new Object();
+
     /**
      * Start this service to be run by an executor. The periodicity and initial
      * delay can be controlled by the {@link #delay()} and
@@ -75,9 +87,46 @@ public abstract class Service {
      *            executor which will run this service.
      */
     public final synchronized void start(ScheduledThreadPoolExecutor scheduler) {
+        schedule(scheduler, 10);
+    }
+
+    /**
+     * Start this service to be run by a timer shared with other periodic
+     * services. Unlike {@link #start(ScheduledThreadPoolExecutor)}, the delay
+     * is used as is.
+     * 
+     * @param timer
+     *            executor which will run this service.
+     */
+    public final synchronized void startTimed(ScheduledThreadPoolExecutor timer) {
+        schedule(timer, 0);
+    }
+
+    /**
+     * Start this service on a thread of its own. The action is run
+     * repeatedly, waiting {@link #delay()} between runs. Suitable for services
+     * whose action blocks, as it does not hold up other services.
+     */
+    public final synchronized void startDedicated() {
+        if (active) return;
+
+        this.scheduler = null;
+
+        initialize();
+
+        active = true;
+
+        logger.info("starting thread for service " + serviceName);
+
+        thread = new Thread(new Loop(), "service-" + serviceName);
+        thread.start();
+    }
+
+    private void schedule(ScheduledThreadPoolExecutor scheduler, long pad) {
         if (active) return;
 
         this.scheduler = scheduler;
+        this.pad = pad;
 
         initialize();
 
@@ -87,15 +136,25 @@ public abstract class Service {
 
         scheduledAction = scheduler.scheduleWithFixedDelay(actionRunner,
                                                            initialDelay,
-                                                           delay + 10,
+                                                           period(),
                                                            TimeUnit.MILLISECONDS);
     }
 
+    // period with which a scheduled action is run. must be positive.
+    private long period() {
+        return Math.max(1, delay + pad);
+    }
+
     /**
      * Stop this service. In case this service runs a long lasting action (e.g.
      * blocking reads), it is possible to interrupt the action by implementing
      * the {@link Service#unblock()} method, which is called before the service
      * is removed from the executor.
+     * <p>
+     * A dedicated thread is interrupted, and waited for up to
+     * {@value #STOP_TIMEOUT} ms. If it is still running an action after that,
+     * it exits once the action returns, even if the service has been started
+     * again meanwhile.
      */
     public final synchronized void stop() {
         if (!active) return;
@@ -103,6 +162,31 @@ public abstract class Service {
         active = false;
         unblock();
 
+        Thread t = thread;
+        if (t != null) {
+            // wake up the thread if it is waiting between actions.
+            synchronized (sleeper) {
+                sleeper.notifyAll();
+            }
+
+            t.interrupt();
+
+            if (t != Thread.currentThread()) {
+                try {
+                    t.join(STOP_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                if (t.isAlive())
+                    logger.warn("thread of service " + serviceName
+                            + " did not stop within " + STOP_TIMEOUT + " ms");
+            }
+
+            thread = null;
+            return;
+        }
+
         scheduledAction.cancel(false);
 
         scheduler.remove(actionRunner);
@@ -149,7 +233,7 @@ public abstract class Service {
     }
 
     // interval between actions
-    private long delay = 5000;
+    private volatile long delay = 5000;
 
     /**
      * Time interval between consecutive executions of action.
@@ -169,12 +253,13 @@ public abstract class Service {
     public void setDelay(long delay) {
         this.delay = delay;
 
-        if (active && (scheduledAction != null)) {
+        // a dedicated thread picks up the new delay after the next action.
+        if (active && (scheduledAction != null) && (thread == null)) {
             synchronized (this) {
                 scheduledAction.cancel(false);
                 scheduledAction = scheduler.scheduleWithFixedDelay(actionRunner,
                                                                    initialDelay,
-                                                                   delay + 10,
+                                                                   period(),
                                                                    TimeUnit.MILLISECONDS);
             }
         }
@@ -222,4 +307,48 @@ public abstract class Service {
     }
 
     private Runnable actionRunner = new Action();
+
+    // run the action repeatedly on a dedicated thread, till the service is
+    // stopped or given another thread.
+    private class Loop implements Runnable {
+        public void run() {
+            try {
+                if (!pause(initialDelay)) return;
+
+                while (running()) {
+                    actionRunner.run();
+
+                    if (!pause(delay)) return;
+                }
+
+            } catch (RuntimeException e) {
+                logger.error("service " + serviceName + " failed. stopping.", e);
+            }
+        }
+
+        private boolean running() {
+            return active && thread == Thread.currentThread();
+        }
+
+        // wait between actions. false if the service was stopped.
+        private boolean pause(long ms) {
+            if (ms <= 0) return running();
+
+            long end = System.currentTimeMillis() + ms;
+
+            try {
+                synchronized (sleeper) {
+                    long left;
+                    while (running()
+                            && (left = end - System.currentTimeMillis()) > 0)
+                        sleeper.wait(left);
+                }
+            } catch (InterruptedException e) {
+                logger.info("service " + serviceName + " interrupted. stopping.");
+                return false;
+            }
+
+            return running();
+        }
+    }
 }
@@ -15,9 +15,17 @@
  */
 package io.s4.zeno;
 
+import io.s4.zeno.cluster.LoadView;
 import io.s4.zeno.config.ConfigMap;
 import io.s4.zeno.config.WritableConfigMap;
 import io.s4.zeno.monitor.EventRateLoadMonitor;
+import io.s4.zeno.monitor.MetricsExporter;
+import io.s4.zeno.monitor.PercentileLoadMonitor;
+import io.s4.zeno.monitor.SiteMetrics;
+import io.s4.zeno.protocol.PeerLinkPool;
+import io.s4.zeno.resource.ResourceLedger;
+
+import java.util.Set;
 
 /**
  * A Site at which a Job can run. The Site receives messages and processes them
@@ -30,8 +38,34 @@ public class Site implements Cluster.Site {
             // Register myself with the cluster.
             info = cluster.addSite(this);
 
+            // forget the load of sites that leave.
+            cluster.addListener(new Cluster.Listener() {
+                public void sitesChanged(Set<String> joined, Set<String> left) {
+                    for (String name : left)
+                        loadView.remove(name);
+                }
+            });
+
+            // links to other sites, for part transfers.
+            int linkPort = spec.getInt("port.receive.link", -1);
+            if (linkPort > 0) {
+                links = new PeerLinkPool(name, linkPort);
+
+                if (links.start()) {
+                    info.set("port.receive.link", String.valueOf(linkPort));
+                    info.save();
+                } else {
+                    links = null;
+                }
+            }
+
             // initialize the monitor
-            monitor = new EventRateLoadMonitor(spec);
+            if (spec.getBoolean("monitor.percentile", false))
+                monitor = new PercentileLoadMonitor(spec);
+            else
+                monitor = new EventRateLoadMonitor(spec);
+
+            monitor.setReservations(reservations);
 
             if (initializer != null) {
                 initializer.initialize(this);
@@ -62,8 +96,12 @@ public class Site implements Cluster.Site {
             // we should have a job by now.
             state = State.JobAcquired;
 
+            registry.setMode(SiteRegistry.Mode.fromString(spec.get("services.mode")));
             registry.startServices();
 
+            exporter = new MetricsExporter(metrics, name, spec);
+            exporter.start();
+
             job.initialize();
 
             // All set now...
@@ -75,8 +113,18 @@ public class Site implements Cluster.Site {
      */
     public synchronized void stop() {
         if (state() == State.Running) {
+            if (exporter != null) {
+                exporter.stop();
+                exporter = null;
+            }
+
             registry.stopServices();
 
+            if (links != null) {
+                links.close();
+                links = null;
+            }
+
             partMap.clear();
 
             job.release();
@@ -124,6 +172,24 @@ public class Site implements Cluster.Site {
         return monitor;
     }
 
+    /**
+     * Get the combined load and event monitor associated with this site.
+     * 
+     * @return monitor.
+     */
+    public EventRateLoadMonitor monitor() {
+        return monitor;
+    }
+
+    /**
+     * Get the metrics of this site, which are exported over JMX and HTTP.
+     * 
+     * @return metrics.
+     */
+    public SiteMetrics metrics() {
+        return metrics;
+    }
+
     /**
      * Enumeration of possible states of a site.
      */
@@ -176,6 +242,10 @@ public class Site implements Cluster.Site {
 
     private PartMap partMap = null;
 
+    private final SiteMetrics metrics = new SiteMetrics(this);
+
+    private MetricsExporter exporter = null;
+
     // ///////////////////////////////////////
     // Cluster of which this Site is a member.
     private Cluster cluster = null;
@@ -256,8 +326,51 @@ public class Site implements Cluster.Site {
         this.initializer = initializer;
     }
 
+    // ///////////////////////////////////////
+    // Persistent links to other sites.
+    private PeerLinkPool links = null;
+
+    /**
+     * Get the links of this site to other sites, over which parts are sent
+     * and received.
+     * 
+     * @return link pool, or null if port.receive.link is not set in the site
+     *         spec.
+     */
+    public PeerLinkPool peerLinks() {
+        return links;
+    }
+
+    // ///////////////////////////////////////
+    // Resources promised to parts on their way to this site.
+    private final ResourceLedger reservations = new ResourceLedger();
+
+    /**
+     * Get the time slice reserved at this site for parts being received, not
+     * yet reflected in its load.
+     * 
+     * @return reservations.
+     */
+    public ResourceLedger reservations() {
+        return reservations;
+    }
+
+    // ///////////////////////////////////////
+    // Load of other sites in the cluster.
+    private LoadView loadView;
+
+    /**
+     * Get this site's view of the load of sites in the cluster.
+     * 
+     * @return load view.
+     */
+    public LoadView loadView() {
+        return loadView;
+    }
+
     public Site(String name, ConfigMap spec) {
         this.name = name;
         this.spec = spec;
+        this.loadView = new LoadView(spec.getLong("gossip.maxAge", 15000));
     }
 }
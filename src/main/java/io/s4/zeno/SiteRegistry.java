@@ -15,16 +15,19 @@
  */
 package io.s4.zeno;
 
+import io.s4.zeno.statistics.LogHistogram;
 import io.s4.zeno.util.ActivityMonitor;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
@@ -37,6 +40,52 @@ public class SiteRegistry {
 
     private final Logger logger = Logger.getLogger(SiteRegistry.class);
 
+    /**
+     * How services are run.
+     */
+    public enum Mode {
+        /**
+         * All services share a thread pool, sized from
+         * {@link Service#share()}.
+         */
+        pool,
+
+        /**
+         * Blocking services (those with {@link Service#share()} equal to 1)
+         * run on threads of their own. The other services share a timer.
+         */
+        dedicated;
+
+        /**
+         * Mode with a name, as given by the {@code services.mode} property
+         * of the site spec.
+         * 
+         * @param name
+         *            name of mode. May be null.
+         * @return the mode. {@link #pool} if the name is null or unknown.
+         */
+        public static Mode fromString(String name) {
+            if (name != null) {
+                for (Mode m : values()) {
+                    if (m.name().equals(name)) return m;
+                }
+            }
+
+            return pool;
+        }
+    }
+
+    /**
+     * Set the way in which services are run. Takes effect the next time the
+     * services are started.
+     * 
+     * @param mode
+     *            the mode
+     */
+    public synchronized void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
     /**
      * Start all registered services. The services are started in the order of
      * registration.
@@ -44,14 +93,26 @@ public class SiteRegistry {
     public synchronized void startServices() {
         if (started == false) {
             if (scheduler == null) {
-                int sz = estimatePoolSize();
+                int sz = Math.max(1, estimatePoolSize(mode == Mode.dedicated));
                 scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(sz);
                 logger.info("Creating Scheduler with pool size " + sz);
             }
 
             for (String n : serviceList) {
-                logger.info("starting service: " + n);
-                services.get(n).start(scheduler);
+                Service s = services.get(n);
+
+                if (mode == Mode.dedicated && isBlocking(s)) {
+                    logger.info("starting service on dedicated thread: " + n);
+                    s.startDedicated();
+
+                } else if (mode == Mode.dedicated) {
+                    logger.info("starting service on timer: " + n);
+                    s.startTimed(scheduler);
+
+                } else {
+                    logger.info("starting service: " + n);
+                    s.start(scheduler);
+                }
             }
         }
 
@@ -140,14 +201,15 @@ public class SiteRegistry {
 
     // LOCKS
     /**
-     * Obtain a named lock. This method blocks.
+     * Obtain a named lock. This method blocks. The lock is exclusive: it is
+     * held by no other thread, whether exclusively or shared.
      * 
      * @param name
      *            name of the lock to be obtained.
      */
     public void lock(String name) {
-        ReentrantLock l = locks.getOrCreate(name);
-        l.lock();
+        ReentrantReadWriteLock l = locks.getOrCreate(name);
+        l.writeLock().lock();
     }
 
     /**
@@ -158,8 +220,8 @@ public class SiteRegistry {
      * @return true if the lock was obtained. False otherwise.
      */
     public boolean tryLock(String name) {
-        ReentrantLock l = locks.getOrCreate(name);
-        return l.tryLock();
+        ReentrantReadWriteLock l = locks.getOrCreate(name);
+        return l.writeLock().tryLock();
     }
 
     /**
@@ -169,8 +231,39 @@ public class SiteRegistry {
      *            name of the lock to be released.
      */
     public void unlock(String name) {
-        ReentrantLock l = locks.getOrCreate(name);
-        l.unlock();
+        ReentrantReadWriteLock l = locks.getOrCreate(name);
+        l.writeLock().unlock();
+    }
+
+    /**
+     * Try to obtain a named lock shared with other threads, which may hold it
+     * shared at the same time, but not exclusively. This function returns
+     * immediately. It fails while some thread holds or waits for the lock
+     * exclusively, so that shared holders do not starve it.
+     * 
+     * @param name
+     *            name of the lock to be obtained.
+     * @return true if the lock was obtained. False otherwise.
+     */
+    public boolean tryLockShared(String name) {
+        ReentrantReadWriteLock l = locks.getOrCreate(name);
+        try {
+            return l.readLock().tryLock(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Release a named lock held shared.
+     * 
+     * @param name
+     *            name of the lock to be released.
+     */
+    public void unlockShared(String name) {
+        ReentrantReadWriteLock l = locks.getOrCreate(name);
+        l.readLock().unlock();
     }
 
     /**
@@ -268,17 +361,57 @@ public class SiteRegistry {
         return c.getAndAdd(delta);
     }
 
+    /**
+     * Names of all counters.
+     */
+    public Set<String> counterNames() {
+        return Collections.unmodifiableSet(counters.keySet());
+    }
+
     // Activity Monitors
     public ActivityMonitor getActivityMonitor(String name) {
         return monitors.getOrCreate(name);
     }
 
+    /**
+     * Names of all activity monitors.
+     */
+    public Set<String> activityMonitorNames() {
+        return Collections.unmodifiableSet(monitors.keySet());
+    }
+
+    // HISTOGRAMS
+    /**
+     * Get a named histogram of durations, e.g. of part transfers. Durations
+     * are recorded in seconds, from 1 us to 1 hour.
+     * 
+     * @param name
+     *            name of histogram.
+     */
+    public LogHistogram getHistogram(String name) {
+        return histograms.getOrCreate(name);
+    }
+
+    /**
+     * Names of all histograms.
+     */
+    public Set<String> histogramNames() {
+        return Collections.unmodifiableSet(histograms.keySet());
+    }
+
+    // a blocking service holds a thread to itself.
+    private boolean isBlocking(Service s) {
+        return s.share() == 1;
+    }
+
     // estimate size of thread pool required
     // for running the registered services
-    private int estimatePoolSize() {
+    private int estimatePoolSize(boolean skipBlocking) {
         float count = 0.0F;
 
         for (Service s : services.values()) {
+            if (skipBlocking && isBlocking(s)) continue;
+
             // number of services with which this service can coexist.
             float share = s.share();
 
@@ -294,12 +427,13 @@ public class SiteRegistry {
 
     private final ArrayList<String> serviceList = new ArrayList<String>();
     private ScheduledThreadPoolExecutor scheduler = null;
+    private Mode mode = Mode.pool;
 
     private final ConcurrentHashMap<String, Service> services = new ConcurrentHashMap<String, Service>();
 
-    private final InstantiableMap<ReentrantLock> locks = new InstantiableMap<ReentrantLock>(new Factory<ReentrantLock>() {
-        public ReentrantLock create() {
-            return new ReentrantLock(true);
+    private final InstantiableMap<ReentrantReadWriteLock> locks = new InstantiableMap<ReentrantReadWriteLock>(new Factory<ReentrantReadWriteLock>() {
+        public ReentrantReadWriteLock create() {
+            return new ReentrantReadWriteLock(true);
         }
     });
 
@@ -315,6 +449,12 @@ public class SiteRegistry {
         }
     });
 
+    private final InstantiableMap<LogHistogram> histograms = new InstantiableMap<LogHistogram>(new Factory<LogHistogram>() {
+        public LogHistogram create() {
+            return new LogHistogram(1e-6, 3600.0, 5);
+        }
+    });
+
     /**
      * A ConcurrentHashMap with string keys and the functionality to instantiate
      * values for non-existing keys.
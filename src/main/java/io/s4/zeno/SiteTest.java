@@ -24,13 +24,14 @@ import io.s4.zeno.coop.NonblockingLockset;
 import io.s4.zeno.job.ZKJobList;
 import io.s4.zeno.part.ZKPartList;
 import io.s4.zeno.route.Hasher;
-import io.s4.zeno.route.ModuloHasher;
-import io.s4.zeno.route.Router;
+import io.s4.zeno.route.HasherFactory;
 import io.s4.zeno.route.ZKRouter;
 import io.s4.zeno.service.Advertiser;
+import io.s4.zeno.service.ChannelEventReceiver;
 import io.s4.zeno.service.Housekeeping;
 import io.s4.zeno.service.LoadBalancer;
 import io.s4.zeno.service.LoadDetection;
+import io.s4.zeno.service.LoadGossip;
 import io.s4.zeno.service.LoadShedder;
 import io.s4.zeno.service.PartAdopter;
 import io.s4.zeno.service.PartReceiver;
@@ -136,14 +137,25 @@ public class SiteTest {
             Service advertiser = new Advertiser(site);
             site.registry().registerService("advertiser", advertiser);
 
+            if (site.spec().getInt("gossip.port", -1) > 0) {
+                Service gossip = new LoadGossip(site);
+                site.registry().registerService("load-gossip", gossip);
+            }
+
             Service adopter = new PartAdopter(site);
             site.registry().registerService("adopter", adopter);
 
-            Hasher hasher = new ModuloHasher();
-            Router router = new ZKRouter(zookeeper, zkpath, hasher);
+            Hasher hasher = new HasherFactory(site.spec()).getInstance();
+            ZKRouter router = new ZKRouter(zookeeper, zkpath, hasher);
             router.load();
+            router.exportTo(site.metrics());
             
-            Service eventReceiver = new SimpleEventReceiver(site, hasher);
+            Service eventReceiver = null;
+            if ("channel".equals(site.spec().get("event.receiver")))
+                eventReceiver = new ChannelEventReceiver(site, hasher);
+            else
+                eventReceiver = new SimpleEventReceiver(site, hasher);
+
             site.registry().registerService("event-receiver", eventReceiver);
 
             Service partReceiver = new PartReceiver(site);
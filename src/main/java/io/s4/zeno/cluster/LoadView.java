@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.cluster;
+
+import io.s4.zeno.Cluster;
+import io.s4.zeno.LoadLevel;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Local view of the load of sites in a cluster, fed by load reports from
+ * other sites (see {@link io.s4.zeno.service.LoadGossip}).
+ * <p>
+ * Reports older than {@code maxAge} ms are considered stale. For sites
+ * without a fresh report, the load advertised in ZooKeeper is used instead.
+ */
+public class LoadView {
+
+    /**
+     * Load of a site at some time.
+     */
+    public static class Report {
+        public final String name;
+
+        // increases with each report from a site.
+        public final long seq;
+
+        public final double free;
+
+        public final double eventRate;
+
+        public final double eventLength;
+
+        public final LoadLevel level;
+
+        // local time at which the report was made.
+        public final long time;
+
+        public Report(String name, long seq, double free, double eventRate,
+                double eventLength, LoadLevel level, long time) {
+            this.name = name;
+            this.seq = seq;
+            this.free = free;
+            this.eventRate = eventRate;
+            this.eventLength = eventLength;
+            this.level = level;
+            this.time = time;
+        }
+
+        /**
+         * Age of this report.
+         * 
+         * @return milliseconds since the report was made.
+         */
+        public long age() {
+            return System.currentTimeMillis() - time;
+        }
+
+        public String toString() {
+            return name + "#" + seq + " free=" + free + " rate=" + eventRate
+                    + " length=" + eventLength + " level=" + level + " age="
+                    + age();
+        }
+    }
+
+    private final long maxAge;
+
+    private final ConcurrentHashMap<String, Report> reports = new ConcurrentHashMap<String, Report>();
+
+    /**
+     * @param maxAge
+     *            age in ms after which reports are stale.
+     */
+    public LoadView(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Add a report. It replaces the report held for the same site unless that
+     * one is more recent.
+     * 
+     * @param r
+     *            report
+     * @return true if the report was added.
+     */
+    public boolean update(Report r) {
+        while (true) {
+            Report old = reports.get(r.name);
+
+            if (old == null) {
+                if (reports.putIfAbsent(r.name, r) == null) return true;
+
+            } else if (r.seq < old.seq || (r.seq == old.seq && r.time <= old.time)) {
+                return false;
+
+            } else if (reports.replace(r.name, old, r)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Fresh report for a site.
+     * 
+     * @param name
+     *            name of site
+     * @return the report, or null if there is none or if it is stale.
+     */
+    public Report get(String name) {
+        Report r = reports.get(name);
+
+        return (r == null || r.age() > maxAge ? null : r);
+    }
+
+    /**
+     * All reports held, fresh or stale.
+     */
+    public Collection<Report> getAll() {
+        return Collections.unmodifiableCollection(reports.values());
+    }
+
+    /**
+     * Forget the report of a site, e.g. after it has left the cluster.
+     */
+    public void remove(String name) {
+        reports.remove(name);
+    }
+
+    /**
+     * Free resources of a site: from a fresh report if there is one,
+     * otherwise as advertised in ZooKeeper ({@code resource.free}).
+     * 
+     * @param site
+     *            site
+     * @param v
+     *            value if neither is available.
+     * @return free time slice.
+     */
+    public double getFree(Cluster.Site site, double v) {
+        Report r = get(site.name());
+        if (r != null) return r.free;
+
+        return site.info().getDouble("resource.free", v);
+    }
+
+    public String toString() {
+        return reports.values().toString();
+    }
+}
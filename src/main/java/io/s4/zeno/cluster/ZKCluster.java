@@ -21,30 +21,39 @@ import io.s4.zeno.config.WritableConfigMap;
 import io.s4.zeno.config.ZKConfigMap;
 import io.s4.zeno.config.ZKPaths;
 import io.s4.zeno.config.ZKWritableConfigMap;
+import io.s4.zeno.util.ZKFuture;
 import io.s4.zeno.util.ZenoError;
 import io.s4.zeno.util.ZooKeeperHelper;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 
 
 /**
  * View of ZooKeeper-managed cluster from a particular node within the cluster.
- * 
- * TODO: Watch for changes to list of nodes. If that happens, update mapping
- * automatically. Then don't call getChildren for each call to getAllNodeInfo.
+ * <p>
+ * The list of sites is kept in an immutable snapshot, which is replaced
+ * whenever ZooKeeper reports that sites have joined or left. Queries read the
+ * snapshot, without going to ZooKeeper. Information of sites that have left is
+ * dropped, and listeners are told of the change.
  */
 public class ZKCluster implements Cluster {
     private static final Logger logger = Logger.getLogger(ZKCluster.class);
 
     private static class RemoteSite implements Cluster.Site {
         public String name;
-        public ConfigMap info;
+        public ZKConfigMap info;
 
         public RemoteSite(String name, ZKConfigMap info) {
             this.name = name;
@@ -60,6 +69,24 @@ public class ZKCluster implements Cluster {
         }
     }
 
+    /**
+     * Membership at some time. Immutable.
+     */
+    private static class Snapshot {
+        // order of generation of the snapshot.
+        final long generation;
+
+        final List<String> names;
+
+        final Set<String> nameSet;
+
+        Snapshot(long generation, List<String> names) {
+            this.generation = generation;
+            this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+            this.nameSet = Collections.unmodifiableSet(new HashSet<String>(names));
+        }
+    }
+
     private ZooKeeperHelper zookeeper;
 
     private ZKPaths zkpath;
@@ -67,11 +94,35 @@ public class ZKCluster implements Cluster {
     /** Mapping from node name to its information. */
     private ConcurrentHashMap<String, Cluster.Site> siteMap = new ConcurrentHashMap<String, Cluster.Site>();
 
+    // current membership. null until first loaded, or after an error.
+    private volatile Snapshot snapshot = null;
+
+    // generation of the next load of membership.
+    private final AtomicLong generation = new AtomicLong(0);
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final Watcher membershipWatcher = new Watcher() {
+        public void process(WatchedEvent e) {
+            switch (e.getType()) {
+                case NodeChildrenChanged:
+                    reload();
+                    break;
+
+                case NodeDeleted:
+                    // base node removed. reload on next query.
+                    snapshot = null;
+                    break;
+
+                default:
+                    // connection events. the watch is kept by the client.
+            }
+        }
+    };
+
     /**
      * Create a cluster object where all nodes' information is read-only.
      * 
-     * @see #ZKClusterOld(ZooKeeperHelper, ZKPaths, ProcessingNode)
-     * 
      * @param zookeeper
      *            Zookeeper client
      * @param zkpath
@@ -96,17 +147,49 @@ public class ZKCluster implements Cluster {
 
         site = siteMap.putIfAbsent(name, newSite);
 
-        return (site == null ? newSite : site);
+        if (site != null) {
+            newInfo.close();
+            return site;
+        }
+
+        return newSite;
     }
 
     public List<String> getAllSiteNames() {
+        Snapshot s = snapshot;
+        if (s == null) s = load();
+
+        return (s == null ? Collections.<String> emptyList() : s.names);
+    }
+
+    public List<Site> getAllSites() {
+        List<String> allNames = getAllSiteNames();
+        ArrayList<Site> allSites = new ArrayList<Site>(allNames.size());
+        for (String name : allNames) {
+            allSites.add(getSite(name));
+        }
+
+        return allSites;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // load membership synchronously, setting a watch.
+    private Snapshot load() {
         logger.debug("loading all active sites");
 
-        try {
-            List<String> allNodes = zookeeper.getChildren(zkpath.nodeBase,
-                                                          false);
+        long g = generation.incrementAndGet();
 
-            return allNodes;
+        try {
+            List<String> names = zookeeper.getChildren(zkpath.nodeBase,
+                                                       membershipWatcher);
+            return apply(new Snapshot(g, names));
 
         } catch (KeeperException e) {
             logger.error("error while constructing list of node information: "
@@ -116,17 +199,80 @@ public class ZKCluster implements Cluster {
                     + e);
         }
 
-        return Collections.<String> emptyList();
+        return null;
     }
 
-    public List<Site> getAllSites() {
-        List<String> allNames = getAllSiteNames();
-        ArrayList<Site> allSites = new ArrayList<Site>(allNames.size());
-        for (String name : allNames) {
-            allSites.add(getSite(name));
+    // reload membership after a change. called from the zookeeper event
+    // thread, so it must not block.
+    private void reload() {
+        final long g = generation.incrementAndGet();
+
+        final ZKFuture<List<String>> f = zookeeper.getChildrenAsync(zkpath.nodeBase,
+                                                                    membershipWatcher);
+
+        f.addListener(new Runnable() {
+            public void run() {
+                try {
+                    apply(new Snapshot(g, f.result()));
+
+                } catch (KeeperException e) {
+                    logger.error("error reloading list of sites: " + e);
+                    snapshot = null;
+
+                } catch (InterruptedException e) {
+                    // the result is available: cannot happen.
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    // install a snapshot unless a later one has been installed. drop info of
+    // sites that have left, and tell listeners. listeners are told of changes
+    // in order.
+    private Snapshot apply(Snapshot s) {
+        Set<String> joined;
+        Set<String> left;
+
+        synchronized (this) {
+            Snapshot old = snapshot;
+            if (old != null && old.generation > s.generation) return old;
+
+            snapshot = s;
+
+            joined = new HashSet<String>(s.nameSet);
+            left = new HashSet<String>();
+
+            if (old != null) {
+                joined.removeAll(old.nameSet);
+
+                left.addAll(old.nameSet);
+                left.removeAll(s.nameSet);
+            }
+
+            // this includes sites looked up by name after they left.
+            for (Site site : siteMap.values()) {
+                if (site instanceof RemoteSite
+                        && !s.nameSet.contains(site.name())) {
+                    siteMap.remove(site.name(), site);
+                    ((RemoteSite) site).info.close();
+                }
+            }
+
+            if (!joined.isEmpty() || !left.isEmpty()) {
+                logger.info("sites joined: " + joined + " left: " + left);
+
+                for (Listener l : listeners) {
+                    try {
+                        l.sitesChanged(joined, left);
+                    } catch (RuntimeException e) {
+                        logger.error("exception in cluster listener", e);
+                    }
+                }
+            }
         }
 
-        return allSites;
+        return s;
     }
 
     public WritableConfigMap addSite(Site site) {
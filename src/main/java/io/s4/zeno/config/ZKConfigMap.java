@@ -48,6 +48,9 @@ public class ZKConfigMap extends JSONConfigMap {
     /** The updater. */
     protected Updater updater;
 
+    // once closed, watches are not set again.
+    private volatile boolean closed = false;
+
     /**
      * Instantiates a new zK config map.
      * 
@@ -140,6 +143,8 @@ public class ZKConfigMap extends JSONConfigMap {
         public void process(WatchedEvent e) {
             logger.debug("got notification: " + e);
 
+            if (closed) return;
+
             switch (e.getType()) {
                 case NodeDeleted:
                     synchronized (this) {
@@ -162,6 +167,14 @@ public class ZKConfigMap extends JSONConfigMap {
         }
     }
 
+    /**
+     * Stop following changes to the config node. Watches already set are left
+     * to fire, but are not set again.
+     */
+    public void close() {
+        closed = true;
+    }
+
     /**
      * Watch for creation.
      */
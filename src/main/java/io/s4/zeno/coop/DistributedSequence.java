@@ -19,7 +19,15 @@ import io.s4.zeno.util.ZenoDefs;
 import io.s4.zeno.util.ZenoError;
 import io.s4.zeno.util.ZooKeeperHelper;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
@@ -36,7 +44,15 @@ import org.apache.zookeeper.Watcher;
  * removed from the sequence when this callback returns.
  * 
  * The sequence is implemented as a directory in ZooKeeper with sequential
- * files.
+ * files. Each node watches only its immediate predecessor. The sorted list of
+ * nodes is cached and only re-read when it does not contain a newly added node,
+ * since a node can only be preceded by nodes created before it. Nodes are
+ * processed by a small pool of threads shared by all items of the sequence.
+ * 
+ * In batched mode, an item that reaches the head also runs the head actions of
+ * the items immediately following it that were added through the same
+ * sequence object, in order, without waiting for each predecessor to be
+ * removed.
  */
 public class DistributedSequence {
 
@@ -55,6 +71,20 @@ public class DistributedSequence {
 
     private static final Logger logger = Logger.getLogger(DistributedSequence.class);
 
+    /** Default number of threads processing nodes. */
+    public static final int DEFAULT_THREADS = 2;
+
+    private final ExecutorService executor;
+
+    private final int batchSize;
+
+    // cached sorted names of nodes in the sequence. may contain nodes that
+    // have since been deleted.
+    private final TreeSet<String> siblings = new TreeSet<String>();
+
+    // nodes added through this object, by name.
+    private final ConcurrentHashMap<String, Node> local = new ConcurrentHashMap<String, Node>();
+
     /**
      * Instantiates a new distributed sequence.
      * 
@@ -64,10 +94,30 @@ public class DistributedSequence {
      *            the directory within which the sequence exists.
      */
     public DistributedSequence(ZooKeeperHelper zookeeper, String dir) {
+        this(zookeeper, dir, DEFAULT_THREADS, 1);
+    }
+
+    /**
+     * Instantiates a new distributed sequence.
+     * 
+     * @param zookeeper
+     *            zookeeper
+     * @param dir
+     *            the directory within which the sequence exists.
+     * @param nThreads
+     *            number of threads processing nodes.
+     * @param batchSize
+     *            maximum number of items whose head actions are run together.
+     *            1 disables batching.
+     */
+    public DistributedSequence(ZooKeeperHelper zookeeper, String dir,
+            int nThreads, int batchSize) {
         this.zookeeper = zookeeper;
         this.dir = dir;
         this.prefix = "q-";
         this.path = this.dir + pSep + this.prefix;
+        this.executor = newExecutor(dir, nThreads);
+        this.batchSize = Math.max(1, batchSize);
     }
 
     /**
@@ -86,6 +136,23 @@ public class DistributedSequence {
         this.dir = dir;
         this.prefix = prefix;
         this.path = this.dir + this.prefix;
+        this.executor = newExecutor(dir, DEFAULT_THREADS);
+        this.batchSize = 1;
+    }
+
+    private static ExecutorService newExecutor(final String dir, int nThreads) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sequence-" + dir + "-"
+                        + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+        return Executors.newFixedThreadPool(Math.max(1, nThreads), factory);
     }
 
     /**
@@ -111,8 +178,9 @@ public class DistributedSequence {
 
                 Node node = new Node(nodeName, item); // create a new Node for
                                                       // this item
-                (new Thread(node)).start(); // start a thread to let that node
-                                            // complete the insertion process.
+                local.put(nodeName, node);
+                executor.execute(node); // let the pool complete the insertion
+                                        // process.
 
                 return new DistributedSequence.SequencedItem(node);
 
@@ -149,6 +217,13 @@ public class DistributedSequence {
         }
     }
 
+    // remove a node that no longer exists from the cached list.
+    private void forget(String nodeName) {
+        synchronized (siblings) {
+            siblings.remove(nodeName);
+        }
+    }
+
     /**
      * An Item which can be added to the sequence.
      */
@@ -230,7 +305,8 @@ public class DistributedSequence {
         public boolean awaitDone() {
             try {
                 synchronized (node) {
-                    node.wait();
+                    while (node.isActive() && !node.isDone())
+                        node.wait();
                 }
             } catch (InterruptedException e) {
                 logger.info("interrupted while waiting for sequenced item to finish.");
@@ -254,10 +330,15 @@ public class DistributedSequence {
         /** The item. */
         private final DistributedSequence.Item item;
 
-        private volatile boolean active = false;
+        // active from the time the node is created.
+        private volatile boolean active = true;
 
         private volatile boolean done = false;
 
+        // set once the head action is being run, by this node or as part of
+        // a batch.
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
         /**
          * Instantiates a new node.
          * 
@@ -307,7 +388,6 @@ public class DistributedSequence {
         public void run() {
             try {
 
-                active = true;
                 locate();
 
             } catch (KeeperException e) {
@@ -331,19 +411,16 @@ public class DistributedSequence {
             // Something changed.
             logger.debug(nodeName + ": notified with " + w);
 
-            // If a node went away, relocate in the sequence.
-            try {
-
-                if (w.getType() == Watcher.Event.EventType.NodeDeleted)
-                    locate();
-
-            } catch (KeeperException e) {
-                throw (new ZenoError("error processing notification for node="
-                        + nodeName + " event=" + w, e));
+            // If a node went away, relocate in the sequence. This is done in
+            // the pool, so that the head action does not run on the
+            // ZooKeeper event thread.
+            if (w.getType() == Watcher.Event.EventType.NodeDeleted) {
+                if (w.getPath() != null) {
+                    forget(w.getPath()
+                            .substring(w.getPath().lastIndexOf(pSep) + 1));
+                }
 
-            } catch (Exception e) {
-                logger.error(nodeName + ": " + e);
-                e.printStackTrace();
+                executor.execute(this);
             }
 
             // Otherwise, do nothing.
@@ -366,6 +443,8 @@ public class DistributedSequence {
 
                 logger.debug("Deleted " + dir + pSep + nodeName);
 
+                forget(nodeName);
+
                 return true;
 
             } catch (KeeperException e) {
@@ -380,6 +459,8 @@ public class DistributedSequence {
                 return false;
 
             } finally {
+                local.remove(nodeName);
+
                 // let all threads waiting for this node know that it is not
                 // going to run.
                 synchronized (this) {
@@ -388,8 +469,6 @@ public class DistributedSequence {
             }
         }
 
-        // SYNCHRONIZE?
-
         /**
          * Check the siblings of this node to to find location in
          * sequence. If at head, call item.doHeadAction()
@@ -400,27 +479,60 @@ public class DistributedSequence {
          *             the interrupted exception
          */
         private void locate() throws KeeperException, InterruptedException {
-            if (active) {
+            if (active && !claimed.get()) {
                 String predecessor = findAndWatchPredecessor(); // get my
                                                                 // predecessor.
 
-                if (predecessor == null) { // I am at the head of the sequence.
-
+                if (predecessor == null && claimed.compareAndSet(false, true)) {
+                    // I am at the head of the sequence.
                     logger.debug("Reached head of sequence: " + nodeName);
 
-                    item.doHeadAction();
+                    for (Node n : batch()) {
+                        n.item.doHeadAction();
 
-                    logger.debug("Done processing: " + nodeName);
+                        logger.debug("Done processing: " + n.nodeName);
 
-                    remove();
+                        n.done = true;
+                        n.remove();
+                    }
+                }
+            }
+        }
 
-                    done = true;
+        /**
+         * This node, followed by up to batchSize - 1 local nodes immediately
+         * following it in the sequence. The following nodes are claimed, so
+         * that they do not run their head actions themselves.
+         */
+        private List<Node> batch() {
+            List<Node> batch = new ArrayList<Node>();
+            batch.add(this);
+
+            synchronized (siblings) {
+                String s = nodeName;
+
+                while (batch.size() < batchSize) {
+                    s = siblings.higher(s);
+                    if (s == null) break;
+
+                    Node n = local.get(s);
+                    if (n == null || !n.claimed.compareAndSet(false, true))
+                        break;
+
+                    batch.add(n);
                 }
             }
+
+            if (batch.size() > 1)
+                logger.debug("Running " + batch.size()
+                        + " head actions starting at " + nodeName);
+
+            return batch;
         }
 
         /**
-         * Find predecessor in sequence.
+         * Find predecessor in sequence, from the cached list of nodes. The
+         * list is re-read if it does not contain this node.
          * 
          * @return the string
          * @throws KeeperException
@@ -433,25 +545,23 @@ public class DistributedSequence {
             // if the znode corresponding to this exists, find a predecessor.
             // null if this is the head, or this znode does not exist.
 
-            List<String> siblings = zookeeper.getChildren(dir, false);
+            synchronized (siblings) {
+                if (!siblings.contains(nodeName)) {
+                    // nodes older than this one can only have been removed
+                    // since, so a single read suffices.
+                    List<String> children = zookeeper.getChildren(dir, false);
 
-            String p = null;
-            boolean foundSelf = false;
+                    siblings.clear();
+                    siblings.addAll(children);
+                }
 
-            logger.debug("Finding predecessor of " + nodeName + " [" + siblings
-                    + "]");
+                boolean foundSelf = siblings.contains(nodeName);
+                String p = siblings.lower(nodeName);
 
-            for (String s : siblings) {
-                if (s.compareTo(nodeName) < 0
-                        && (p == null || s.compareTo(p) > 0))
-                    p = s;
+                logger.debug("FoundSelf:" + foundSelf + " p:" + p);
 
-                else if (s.equals(nodeName)) foundSelf = true;
+                return foundSelf ? p : null;
             }
-
-            logger.debug("FoundSelf:" + foundSelf + " p:" + p);
-
-            return foundSelf ? p : null;
         }
 
         /**
@@ -468,10 +578,15 @@ public class DistributedSequence {
             String predecessor = null;
 
             // make sure the predecessor exists and set a watch on it
-            do {
+            while (true) {
                 predecessor = findPredecessor();
-            } while (predecessor != null
-                    && zookeeper.exists(dir + pSep + predecessor, this) == null);
+
+                if (predecessor == null
+                        || zookeeper.exists(dir + pSep + predecessor, this) != null)
+                    break;
+
+                forget(predecessor);
+            }
 
             logger.debug("Watching predecessor: " + predecessor);
 
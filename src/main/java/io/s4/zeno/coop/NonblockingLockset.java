@@ -19,16 +19,26 @@ package io.s4.zeno.coop;
 // it can ACQUIRE and RELEASE nodes.
 // Additionally, it can also TAKEOVER nodes
 
+import io.s4.zeno.util.ZKFuture;
 import io.s4.zeno.util.ZenoDefs;
 import io.s4.zeno.util.ZenoError;
 import io.s4.zeno.util.ZooKeeperHelper;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
@@ -85,11 +95,42 @@ public class NonblockingLockset {
 
     // private final String baseDir;
 
+    /** Default time over which lock changes are collected, in milliseconds. */
+    public static final long DEFAULT_COALESCE_TIME = 50;
+
+    private final long coalesceTime;
+
+    // applies collected lock changes for all lock sets.
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lockset-refresh");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     public NonblockingLockset(ZooKeeperHelper zookeeper, String baseDir) {
+        this(zookeeper, baseDir, DEFAULT_COALESCE_TIME);
+    }
+
+    /**
+     * Create a lock set.
+     * 
+     * @param zookeeper
+     *            the zookeeper
+     * @param baseDir
+     *            directory holding the locks.
+     * @param coalesceTime
+     *            time over which changes to locks are collected before they
+     *            are applied to the cached lock status, in milliseconds.
+     */
+    public NonblockingLockset(ZooKeeperHelper zookeeper, String baseDir,
+            long coalesceTime) {
         this.zookeeper = zookeeper;
         // this.baseDir = baseDir;
         this.ownerDir = baseDir + "/owners";
         this.lockDir = baseDir + "/items";
+        this.coalesceTime = coalesceTime;
     }
 
     /**
@@ -205,6 +246,11 @@ public class NonblockingLockset {
 
             return false;
 
+        } catch (KeeperException.NodeExistsException e) {
+            logger.debug("path already exists. looks like someone just created it: "
+                    + path);
+            return true;
+
         } catch (KeeperException e) {
             logger.error("caught exception: " + e);
             throw (new ZenoError("error while creating path=" + path, e));
@@ -469,7 +515,12 @@ public class NonblockingLockset {
     }
 
     /**
-     * Acquire.
+     * Acquire up to {@code n} free locks. Candidates are tried in batches:
+     * the ownership markers of a batch are created concurrently, the owner
+     * ids of the locks that were created are then verified together, and
+     * markers whose owner id changed meanwhile are removed. As with
+     * {@link #acquire(String, byte[])}, a lock is acquired only if its
+     * marker was created and its owner id did not change.
      * 
      * @param n
      *            the n
@@ -486,18 +537,152 @@ public class NonblockingLockset {
             Collections.shuffle(freeNodes); // this reduces herd effect.
             logger.debug("free nodes: " + freeNodes);
 
-            for (String c : freeNodes) {
-                if (acquire(c, data)) {
-                    nodes.add(c);
-                    --n;
-                    if (n == 0) break;
-                }
+            int next = 0;
+            while (nodes.size() < n && next < freeNodes.size()) {
+                int m = Math.min(n - nodes.size(), freeNodes.size() - next);
+
+                nodes.addAll(acquireBatch(freeNodes.subList(next, next + m),
+                                          data));
+                next += m;
             }
         }
 
         return nodes;
     }
 
+    /**
+     * Try to acquire a batch of locks with pipelined requests.
+     * 
+     * @param names
+     *            names of locks
+     * @param data
+     *            data to be written to the markers of acquired locks.
+     * @return names of the locks that were acquired.
+     */
+    private List<String> acquireBatch(List<String> names, byte[] data) {
+        int k = names.size();
+        int[] ids = new int[k];
+
+        List<String> acquired = new ArrayList<String>();
+
+        // 1. create markers.
+        List<ZKFuture<String>> creates = new ArrayList<ZKFuture<String>>(k);
+
+        for (int i = 0; i < k; ++i) {
+            String name = names.get(i);
+            LockStatus status = lockSet.status(name);
+
+            ids[i] = (status != null ? status.version : -1);
+
+            if (ids[i] < 0) {
+                // this node cannot be acquired
+                creates.add(null);
+                continue;
+            }
+
+            String znode = getOwnerDir(name) + '/' + ids[i];
+            logger.debug("testAndCreate " + znode);
+
+            creates.add(zookeeper.createAsync(znode,
+                                              data,
+                                              ZenoDefs.zkACL,
+                                              CreateMode.EPHEMERAL));
+        }
+
+        KeeperException error = null;
+
+        try {
+            // 2. read owner ids of locks whose markers were created.
+            List<ZKFuture<byte[]>> checks = new ArrayList<ZKFuture<byte[]>>(k);
+
+            for (int i = 0; i < k; ++i) {
+                ZKFuture<String> create = creates.get(i);
+                ZKFuture<byte[]> check = null;
+
+                if (create != null) {
+                    String name = names.get(i);
+
+                    try {
+                        logger.debug("created: " + create.result());
+                        check = zookeeper.getDataAsync(getOwnerDir(name), false);
+
+                    } catch (KeeperException.NodeExistsException e) {
+                        logger.debug("znode already exists. looks like someone just created it: "
+                                + name);
+
+                    } catch (KeeperException.NoNodeException e) {
+                        // holder does not exist yet. create it and try again
+                        // the slow way.
+                        if (acquire(name, data)) acquired.add(name);
+
+                    } catch (KeeperException e) {
+                        logger.error("caught exception: " + e);
+                        error = e;
+                    }
+                }
+
+                checks.add(check);
+            }
+
+            // 3. keep markers whose owner id is unchanged. remove the rest.
+            List<ZKFuture<Void>> rollbacks = new ArrayList<ZKFuture<Void>>();
+
+            for (int i = 0; i < k; ++i) {
+                ZKFuture<byte[]> check = checks.get(i);
+                if (check == null) continue;
+
+                String name = names.get(i);
+
+                if (ownerId(check) == ids[i]) {
+                    acquired.add(name);
+                } else {
+                    logger.debug("owner of " + name + " changed. releasing it.");
+                    rollbacks.add(zookeeper.deleteAsync(getOwnerDir(name) + '/'
+                            + ids[i], -1));
+                }
+            }
+
+            for (ZKFuture<Void> r : rollbacks) {
+                try {
+                    r.result();
+                } catch (KeeperException e) {
+                    logger.error("caught exception: " + e);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            logger.error("interrupted: " + e);
+        }
+
+        if (error != null) {
+            for (String name : acquired)
+                release(name);
+
+            throw (new ZenoError("error while acquiring locks " + names, error));
+        }
+
+        return acquired;
+    }
+
+    // owner id from a completed read. -1 => error
+    private int ownerId(ZKFuture<byte[]> f) throws InterruptedException {
+        try {
+            byte[] data = f.result();
+
+            if (data.length == 0) return 0;
+
+            return Integer.parseInt(new String(data));
+
+        } catch (KeeperException e) {
+            logger.error("caught exception: " + e);
+            return -1;
+
+        } catch (NumberFormatException e) {
+            logger.error("caught exception: " + e);
+            return -1;
+        }
+    }
+
     public List<String> acquire(int n, String message) {
         return acquire(n, message.getBytes());
     }
@@ -578,59 +763,223 @@ public class NonblockingLockset {
         }
     }
 
+    /**
+     * Cache of the status of all locks.
+     * <p>
+     * The status is kept in an immutable snapshot, which is replaced as a
+     * whole, so readers never block and never see a partial update. Watch
+     * notifications only mark locks (or the list of locks) as changed. The
+     * changes are collected for {@link #coalesceTime} milliseconds and then
+     * applied together, re-reading only the locks that changed.
+     */
     class LockSet implements Watcher {
-        private ConcurrentHashMap<String, LockStatus> locks = null;
+        private volatile Map<String, LockStatus> locks = null;
 
-        public LockStatus status(String name) {
-            if (locks == null) loadAll();
+        // locks whose status has changed since the last refresh.
+        private final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        // has the list of locks changed since the last refresh?
+        private final AtomicBoolean listDirty = new AtomicBoolean(false);
+
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private final Runnable refreshTask = new Runnable() {
+            public void run() {
+                scheduled.set(false);
+
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    logger.error("error while refreshing locks in " + lockDir,
+                                 e);
+                    schedule();
+                }
+            }
+        };
 
-            return locks.get(name);
+        public LockStatus status(String name) {
+            return snapshot().get(name);
         }
 
         public List<String> all() {
-            if (locks == null) loadAll();
-
-            return new ArrayList<String>(locks.keySet());
+            return new ArrayList<String>(snapshot().keySet());
         }
 
         public List<String> free() {
-            if (locks == null) loadAll();
-
             ArrayList<String> free = new ArrayList<String>();
-            for (Map.Entry<String, LockStatus> e : locks.entrySet()) {
+            for (Map.Entry<String, LockStatus> e : snapshot().entrySet()) {
                 if (e.getValue().free) free.add(e.getKey());
             }
 
             return free;
         }
 
-        private void loadAll() {
-            logger.debug("loading all lock names from " + lockDir);
+        // current snapshot, loaded on first use.
+        private Map<String, LockStatus> snapshot() {
+            Map<String, LockStatus> m = locks;
+            if (m != null) return m;
 
-            locks = new ConcurrentHashMap<String, LockStatus>();
+            synchronized (this) {
+                if (locks == null) {
+                    logger.debug("loading all lock names from " + lockDir);
 
-            try {
-                List<String> children = zookeeper.getChildren(lockDir, this);
+                    listDirty.set(true);
+                    refresh();
+                }
 
-                for (String l : children) {
-                    loadLock(l);
+                return locks;
+            }
+        }
+
+        // refresh after the coalescing window, unless already scheduled.
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                refresher.schedule(refreshTask,
+                                   coalesceTime,
+                                   TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Apply changes collected since the last refresh, and publish a new
+         * snapshot. Must not be called on the ZooKeeper event thread, which
+         * completes the reads.
+         */
+        private synchronized void refresh() {
+            Map<String, LockStatus> old = locks;
+            if (old == null) old = Collections.<String, LockStatus> emptyMap();
+
+            Set<String> names = old.keySet();
+
+            List<String> toLoad = new ArrayList<String>();
+            List<String> removed = new ArrayList<String>();
+
+            if (listDirty.getAndSet(false)) {
+                try {
+                    names = new HashSet<String>(zookeeper.getChildren(lockDir,
+                                                                      this));
+
+                } catch (KeeperException e) {
+                    listDirty.set(true);
+                    logger.error("caught exception: " + e);
+                    throw (new ZenoError("error getting children of "
+                            + lockDir, e));
+
+                } catch (InterruptedException e) {
+                    listDirty.set(true);
+                    logger.info("interrupted while getting children of "
+                            + lockDir, e);
+                    return;
                 }
 
-            } catch (KeeperException e) {
-                logger.error("caught exception: " + e);
-                throw (new ZenoError("error getting children of " + lockDir, e));
+                for (String l : names) {
+                    if (!old.containsKey(l)) toLoad.add(l);
+                }
 
+                for (String l : old.keySet()) {
+                    if (!names.contains(l)) removed.add(l);
+                }
+            }
+
+            for (Iterator<String> i = dirty.iterator(); i.hasNext();) {
+                String l = i.next();
+                i.remove();
+
+                if (names.contains(l) && !toLoad.contains(l)) toLoad.add(l);
+            }
+
+            if (locks != null && toLoad.isEmpty() && removed.isEmpty()) return;
+
+            ConcurrentHashMap<String, LockStatus> loaded = new ConcurrentHashMap<String, LockStatus>();
+            final CountDownLatch done = new CountDownLatch(toLoad.size());
+
+            Runnable loadedOne = new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            };
+
+            for (String l : toLoad) {
+                loadLockAsync(l, loaded, loadedOne);
+            }
+
+            try {
+                done.await();
             } catch (InterruptedException e) {
-                logger.info("interrupted while getting children of " + lockDir,
-                            e);
+                logger.info("interrupted while loading locks in " + lockDir, e);
+            }
+
+            // locks that could not be loaded keep their old status, and are
+            // tried again.
+            for (String l : toLoad) {
+                if (!loaded.containsKey(l) && dirty.add(l)) schedule();
             }
+
+            HashMap<String, LockStatus> next = new HashMap<String, LockStatus>(old);
+            next.keySet().removeAll(removed);
+            next.putAll(loaded);
+
+            locks = Collections.unmodifiableMap(next);
+
+            logger.debug("lock set refreshed: " + toLoad.size() + " loaded, "
+                    + removed.size() + " removed");
+
+            update();
+        }
+
+        /**
+         * Load the status of a lock asynchronously: read the owner id, then
+         * check for the corresponding marker.
+         * 
+         * @param l
+         *            lock name
+         * @param into
+         *            map into which the status is put.
+         * @param then
+         *            run once the status has been loaded, or loading failed.
+         */
+        private void loadLockAsync(final String l,
+                final Map<String, LockStatus> into, final Runnable then) {
+            final ZKFuture<byte[]> idFuture = zookeeper.getDataAsync(getOwnerDir(l),
+                                                                     this);
+
+            idFuture.addListener(new Runnable() {
+                public void run() {
+                    int id = parseId(idFuture);
+
+                    if (id < 0) {
+                        into.put(l, new LockStatus(0, false));
+                        then.run();
+                        return;
+                    }
+
+                    final int version = id;
+                    final ZKFuture<Stat> marker = zookeeper.existsAsync(getOwnerDir(l)
+                                                                                + '/'
+                                                                                + id,
+                                                                        LockSet.this);
+
+                    marker.addListener(new Runnable() {
+                        public void run() {
+                            if (marker.failed()) {
+                                logger.error("error while loading lock " + l);
+                            } else {
+                                into.put(l, new LockStatus(version,
+                                                           marker.stat() == null));
+                            }
+
+                            then.run();
+                        }
+                    });
+                }
+            });
         }
 
-        private int getId(String l) {
-            String path = getOwnerDir(l);
+        // owner id from a completed read. 0 if the owner dir does not exist,
+        // -1 on errors.
+        private int parseId(ZKFuture<byte[]> f) {
             try {
-                Stat stat = new Stat();
-                byte[] data = zookeeper.getData(path, this, stat);
+                byte[] data = f.result();
 
                 if (data.length == 0) return 0;
 
@@ -645,27 +994,6 @@ public class NonblockingLockset {
             }
         }
 
-        private void loadLock(String l) {
-            try {
-                int id = getId(l);
-                LockStatus lockStatus;
-                if (id < 0) {
-                    lockStatus = new LockStatus(0, false);
-                } else {
-                    String path = getOwnerDir(l) + '/' + id;
-                    Stat stat = zookeeper.exists(path, this);
-                    boolean isFree = (stat == null);
-
-                    lockStatus = new LockStatus(id, isFree);
-                }
-
-                locks.put(l, lockStatus);
-
-            } catch (Exception e) {
-                logger.error("error while loading lock " + l, e);
-            }
-        }
-
         private volatile CountDownLatch _u = new CountDownLatch(1);
 
         private void update() {
@@ -693,8 +1021,8 @@ public class NonblockingLockset {
                     switch (e.getType()) {
                         case NodeChildrenChanged:
                             // children have changed. reload...
-                            loadAll();
-                            update();
+                            listDirty.set(true);
+                            schedule();
                             break;
                         default:
                             logger.info("nothing to do for this notification.");
@@ -716,8 +1044,8 @@ public class NonblockingLockset {
 
                 case owner:
                 case marker:
-                    loadLock(getLockName(path, nodeType));
-                    update();
+                    dirty.add(getLockName(path, nodeType));
+                    schedule();
 
             }
         }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.monitor;
+
+import io.s4.zeno.EventMonitor;
+import io.s4.zeno.config.ConfigMap;
+import io.s4.zeno.statistics.BucketedRateEstimator;
+import io.s4.zeno.util.CoarseClock;
+
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Estimate event arrival rate and average processing time from events counted
+ * in time buckets. Suitable for parts receiving more events than
+ * {@link PoissonEventMonitor} can tell apart, i.e. more than about one per
+ * millisecond. See {@link BucketedRateEstimator}.
+ * <p>
+ * The estimates are valid once events have been seen for a half-life.
+ */
+public class BucketedEventMonitor implements EventMonitor {
+
+    /**
+     * Factory class to construct multiple instances of BucketedEventMonitor
+     * with the same parameters.
+     */
+    public static class Factory implements EventMonitor.Factory {
+        private final long width;
+
+        private final long halfLife;
+
+        public Factory(long width, long halfLife) {
+            this.width = width;
+            this.halfLife = halfLife;
+        }
+
+        /**
+         * Initialize from a config map:
+         * 
+         * <pre>
+         *     "bucket.width"       width of buckets in ms. Default: 100
+         *     "bucket.halfLife"    half life in ms. Default: 10000
+         * </pre>
+         */
+        public Factory(ConfigMap spec) {
+            this.width = spec.getLong("bucket.width", 100);
+            this.halfLife = spec.getLong("bucket.halfLife", 10000);
+        }
+
+        public EventMonitor getInstance() {
+            return new BucketedEventMonitor(width, halfLife);
+        }
+    }
+
+    private final long width;
+
+    private final long halfLife;
+
+    private BucketedRateEstimator estimator;
+
+    // time of reset.
+    private long start;
+
+    /** The count. */
+    private volatile long count = 0;
+
+    /**
+     * Instantiates a new bucketed event monitor.
+     * 
+     * @param width
+     *            width of buckets in milliseconds.
+     * @param halfLife
+     *            half life in milliseconds.
+     */
+    public BucketedEventMonitor(long width, long halfLife) {
+        this.width = width;
+        this.halfLife = halfLife;
+        initialize();
+    }
+
+    private void initialize() {
+        estimator = new BucketedRateEstimator(width, halfLife);
+        start = CoarseClock.now();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#putEvent(double)
+     */
+    public void putEvent(double t) {
+        estimator.putEvent(t);
+        ++count;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#getEventRate()
+     */
+    public double getEventRate() {
+        return (count < 2 ? 0.0 : estimator.getRate());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#getEventLength()
+     */
+    public double getEventLength() {
+        return (count == 0 ? 0.0 : estimator.getMeanLength());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#isValid()
+     */
+    public boolean isValid() {
+        return count > 0 && CoarseClock.now() - start >= halfLife;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#getMillisSinceLastEvent()
+     */
+    public long getMillisSinceLastEvent() {
+        return estimator.getMillisSinceLastEvent();
+    }
+
+    public void waitForSilence(long silenceMs, long timeoutMs)
+            throws InterruptedException, TimeoutException {
+
+        long remaining = timeoutMs;
+
+        long s; // time remaining for request to be fulfilled.
+        while ((s = silenceMs - getMillisSinceLastEvent()) > 0) {
+            if ((remaining -= s) > 0L) // time should remain at end of wait
+                Thread.sleep(s);
+
+            else
+                throw new TimeoutException("silenceMs=" + silenceMs
+                        + ", timeoutMs=" + timeoutMs);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#reset()
+     */
+    public void reset() {
+        initialize();
+        count = 0;
+    }
+
+    /**
+     * Not thread-safe.
+     * 
+     * @return false
+     */
+    public boolean isConcurrent() {
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        String message = "width=" + width + " halfLife=" + halfLife
+                + " count=" + count + " eventRate=" + getEventRate()
+                + " eventLength=" + getEventLength() + " busyFraction="
+                + getEventRate() * getEventLength();
+
+        return message;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.monitor;
+
+import io.s4.zeno.EventMonitor;
+import io.s4.zeno.config.ConfigMap;
+import io.s4.zeno.util.ZenoError;
+
+
+/**
+ * Construct {@link EventMonitor}s based on a specification:
+ * 
+ * <pre>
+ *     "type"        "poisson": {@link PoissonEventMonitor}
+ *                   "striped": {@link StripedEventMonitor}, for monitors
+ *                   updated by several threads.
+ *                   "bucketed": {@link BucketedEventMonitor}, for monitors
+ *                   receiving many events per millisecond.
+ *                   Default: poisson
+ *     "halfLife"    half life, in events. Default: 5
+ *     "stripes"     number of cells of a striped monitor.
+ *                   Default: {@link StripedEventMonitor#defaultStripes()}
+ *     "bucket.width"       width of buckets of a bucketed monitor, in ms.
+ *                          Default: 100
+ *     "bucket.halfLife"    half life of a bucketed monitor, in ms.
+ *                          Default: 10000
+ *     "histogram"          wrap monitors in a {@link HistogramEventMonitor}.
+ *                          Default: false
+ *     "histogram.window"   window of histograms, in ms. Default: 10000
+ *     "histogram.precision"
+ *                          bits of precision of histograms. Default: 5
+ *     "histogram.servers"  processors serving events, for queueing delay.
+ *                          Default: 1
+ * </pre>
+ */
+public class EventMonitorFactory implements EventMonitor.Factory {
+
+    public static final String POISSON = "poisson";
+
+    public static final String STRIPED = "striped";
+
+    public static final String BUCKETED = "bucketed";
+
+    private final String type;
+
+    private final int halfLife;
+
+    private final int stripes;
+
+    private final long bucketWidth;
+
+    private final long bucketHalfLife;
+
+    private final boolean histogram;
+
+    private final long histogramWindow;
+
+    private final int histogramPrecision;
+
+    private final double histogramServers;
+
+    public EventMonitorFactory(ConfigMap spec) {
+        this(spec, "", 5);
+    }
+
+    /**
+     * Initialize from keys with a common prefix, e.g. "monitor.type",
+     * "monitor.halfLife", etc.
+     * 
+     * @param spec
+     *            config map
+     * @param prefix
+     *            prefix of keys.
+     * @param defaultHalfLife
+     *            half life if none is specified.
+     */
+    public EventMonitorFactory(ConfigMap spec, String prefix,
+            int defaultHalfLife) {
+        String t = spec.get(prefix + "type");
+
+        this.type = (t == null || t.length() == 0 ? POISSON : t);
+        this.halfLife = spec.getInt(prefix + "halfLife", defaultHalfLife);
+        this.stripes = spec.getInt(prefix + "stripes",
+                                   StripedEventMonitor.defaultStripes());
+        this.bucketWidth = spec.getLong(prefix + "bucket.width", 100);
+        this.bucketHalfLife = spec.getLong(prefix + "bucket.halfLife", 10000);
+
+        this.histogram = spec.getBoolean(prefix + "histogram", false);
+        this.histogramWindow = spec.getLong(prefix + "histogram.window", 10000);
+        this.histogramPrecision = spec.getInt(prefix + "histogram.precision",
+                                              5);
+        this.histogramServers = spec.getDouble(prefix + "histogram.servers",
+                                               1.0);
+
+        if (!POISSON.equals(type) && !STRIPED.equals(type)
+                && !BUCKETED.equals(type))
+            throw new ZenoError("unknown event monitor type: " + type);
+    }
+
+    public EventMonitor getInstance() {
+        EventMonitor emon = newMonitor();
+
+        if (histogram)
+            return new HistogramEventMonitor(emon,
+                                             histogramWindow,
+                                             histogramPrecision,
+                                             histogramServers);
+
+        return emon;
+    }
+
+    private EventMonitor newMonitor() {
+        if (STRIPED.equals(type))
+            return new StripedEventMonitor(halfLife, stripes);
+
+        if (BUCKETED.equals(type))
+            return new BucketedEventMonitor(bucketWidth, bucketHalfLife);
+
+        return new PoissonEventMonitor(halfLife);
+    }
+}
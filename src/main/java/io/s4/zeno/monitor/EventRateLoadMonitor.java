@@ -20,6 +20,7 @@ import io.s4.zeno.LoadLevel;
 import io.s4.zeno.LoadMonitor;
 import io.s4.zeno.Resource;
 import io.s4.zeno.config.ConfigMap;
+import io.s4.zeno.resource.ResourceLedger;
 import io.s4.zeno.resource.TimeSliceResource;
 
 import java.util.concurrent.TimeoutException;
@@ -47,8 +48,12 @@ import org.apache.log4j.Logger;
  * 
  * <pre>
  *     excessResorce = max {B-shed, 0}
- *     freeResource  = max {accept-B, 0}
+ *     freeResource  = max {accept-B-R, 0}
  * </pre>
+ * 
+ * where {@code R} is the time slice reserved for work on its way to this
+ * site, if a {@link ResourceLedger} is set with
+ * {@link #setReservations(ResourceLedger)}, and 0 otherwise.
  */
 public class EventRateLoadMonitor implements LoadMonitor, EventMonitor {
 
@@ -66,7 +71,10 @@ public class EventRateLoadMonitor implements LoadMonitor, EventMonitor {
     // more thresholds for mem and cpu usage?
 
     // estimated load level
-    private LoadLevel level = LoadLevel.Unknown;
+    protected LoadLevel level = LoadLevel.Unknown;
+
+    // time slice promised to incoming work
+    private volatile ResourceLedger reservations = null;
 
     /**
      * Monitor with load level thresholds. This is identical to
@@ -112,7 +120,26 @@ public class EventRateLoadMonitor implements LoadMonitor, EventMonitor {
      */
     public EventRateLoadMonitor(int halfLife, double eventLow,
             double eventHigh, double capacity, double a, double s) {
-        emon = new PoissonEventMonitor(halfLife);
+        this(new PoissonEventMonitor(halfLife),
+             eventLow,
+             eventHigh,
+             capacity,
+             a,
+             s);
+    }
+
+    /**
+     * Monitor with load level and resource availability thresholds, using a
+     * given event monitor to estimate rates.
+     * 
+     * @see #EventRateLoadMonitor(int, double, double, double, double, double)
+     * 
+     * @param emon
+     *            event monitor
+     */
+    public EventRateLoadMonitor(EventMonitor emon, double eventLow,
+            double eventHigh, double capacity, double a, double s) {
+        this.emon = emon;
         this.eventLow = eventLow;
         this.eventHigh = eventHigh;
         this.accept = capacity * a;
@@ -127,6 +154,12 @@ public class EventRateLoadMonitor implements LoadMonitor, EventMonitor {
      * 
      * <pre>
      *     "monitor.halfLife"   halfLife
+     *     "monitor.type"       type of event monitor. See
+     *                          {@link EventMonitorFactory}
+     *     "monitor.stripes"    number of cells of a striped monitor.
+     *     "monitor.bucket.*"   buckets of a bucketed monitor.
+     *     "monitor.histogram"  keep histograms of events. See
+     *                          {@link HistogramEventMonitor}
      *     "monitor.low"        eventLow
      *     "monitor.high"       eventHigh
      *     "resource.capacity"  capacity
@@ -138,7 +171,7 @@ public class EventRateLoadMonitor implements LoadMonitor, EventMonitor {
      *            config map to initialize from
      */
     public EventRateLoadMonitor(ConfigMap spec) {
-        this(spec.getInt("monitor.halfLife", 100), // <<<
+        this(new EventMonitorFactory(spec, "monitor.", 100).getInstance(),
              spec.getDouble("monitor.low", 0.5),
              spec.getDouble("monitor.high", 0.8),
              spec.getDouble("resource.capacity", 1.0),
@@ -177,6 +210,21 @@ public class EventRateLoadMonitor implements LoadMonitor, EventMonitor {
         return emon.isValid();
     }
 
+    public boolean isConcurrent() {
+        return emon.isConcurrent();
+    }
+
+    /**
+     * Histograms of events, if the event monitor keeps them.
+     * 
+     * @return the event monitor if it is a {@link HistogramEventMonitor}, null
+     *         otherwise.
+     */
+    public HistogramEventMonitor histograms() {
+        return (emon instanceof HistogramEventMonitor ? (HistogramEventMonitor) emon
+                : null);
+    }
+
     public LoadLevel getLevel() {
         return level;
     }
@@ -203,10 +251,35 @@ public class EventRateLoadMonitor implements LoadMonitor, EventMonitor {
     }
 
     public Resource getFreeResource() {
+        ResourceLedger r = reservations;
+        double reserved = (r != null ? r.reserved() : 0.0);
+
+        double used = getEventRate() * getEventLength();
+        return new TimeSliceResource(Math.max(0.0d, (accept - used - reserved)));
+    }
+
+    /**
+     * Free resource, without subtracting reservations. Reservations should be
+     * made against this with
+     * {@link ResourceLedger#tryReserve(long, double, double, long)}.
+     * 
+     * @return available resources, reserved or not.
+     */
+    public Resource getUnreservedFreeResource() {
         double used = getEventRate() * getEventLength();
         return new TimeSliceResource(Math.max(0.0d, (accept - used)));
     }
 
+    /**
+     * Subtract reservations from the free resource.
+     * 
+     * @param reservations
+     *            ledger of reservations, or null for none.
+     */
+    public void setReservations(ResourceLedger reservations) {
+        this.reservations = reservations;
+    }
+
     public Resource getExcessResourceUsage() {
         double used = getEventRate() * getEventLength();
         return new TimeSliceResource(Math.max(0.0d, (used - accept)));
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.monitor;
+
+import io.s4.zeno.EventMonitor;
+import io.s4.zeno.statistics.LogHistogram;
+import io.s4.zeno.util.CoarseClock;
+
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Event monitor that keeps histograms of event lengths, inter-arrival times and
+ * queueing delays, in addition to the averages estimated by another event
+ * monitor to which it delegates.
+ * <p>
+ * The histograms cover a sliding window: values are recorded in a current
+ * window, which replaces the previous one every {@code window} ms. Quantiles
+ * are read from both, i.e. from the last one to two windows.
+ * <p>
+ * Queueing delay is not measured directly. It is the waiting time of each event
+ * in a queue served by {@code servers} processors, given the arrival times and
+ * lengths of events (Lindley's recursion):
+ * 
+ * <pre>
+ *     wait(n+1) = max {0, wait(n) + length(n)/servers - interval(n+1)}
+ * </pre>
+ * 
+ * All times are in seconds, like event lengths.
+ * <p>
+ * Events must be put by one thread at a time. Quantiles may be read by any
+ * thread.
+ */
+public class HistogramEventMonitor implements EventMonitor {
+
+    /**
+     * Factory class to construct multiple instances of HistogramEventMonitor
+     * with the same parameters. See {@link EventMonitorFactory} for
+     * configuration.
+     */
+    public static class Factory implements EventMonitor.Factory {
+        private final EventMonitor.Factory factory;
+
+        private final long window;
+
+        private final int precision;
+
+        private final double servers;
+
+        public Factory(EventMonitor.Factory factory, long window,
+                int precision, double servers) {
+            this.factory = factory;
+            this.window = window;
+            this.precision = precision;
+            this.servers = servers;
+        }
+
+        public EventMonitor getInstance() {
+            return new HistogramEventMonitor(factory.getInstance(),
+                                             window,
+                                             precision,
+                                             servers);
+        }
+    }
+
+    // range of histograms: 1 us to 1 hour.
+    private static final double UNIT = 1e-6;
+
+    private static final double HIGHEST = 3600.0;
+
+    private final EventMonitor emon;
+
+    private final long window;
+
+    private final double servers;
+
+    // current and previous windows. replaced by rotate(), which may be called
+    // by readers as well as by the thread putting events.
+    private volatile Window current;
+
+    private volatile Window previous;
+
+    // arrival of last event, in ns. 0 if none.
+    private long lastArrival = 0L;
+
+    private double lastLength = 0.0;
+
+    private double wait = 0.0;
+
+    /**
+     * Histograms for one window.
+     */
+    private static class Window {
+        final long start;
+
+        final LogHistogram length;
+
+        final LogHistogram interval;
+
+        final LogHistogram delay;
+
+        Window(long start, int precision) {
+            this.start = start;
+            this.length = new LogHistogram(UNIT, HIGHEST, precision);
+            this.interval = new LogHistogram(length);
+            this.delay = new LogHistogram(length);
+        }
+
+        Window(long start, Window w) {
+            this.start = start;
+            this.length = w.length;
+            this.interval = w.interval;
+            this.delay = w.delay;
+
+            length.clear();
+            interval.clear();
+            delay.clear();
+        }
+    }
+
+    /**
+     * Instantiates a new histogram event monitor.
+     * 
+     * @param emon
+     *            monitor to delegate averages to.
+     * @param window
+     *            window of histograms, in ms.
+     * @param precision
+     *            bits of precision of histograms. See {@link LogHistogram}.
+     * @param servers
+     *            number of processors serving events.
+     */
+    public HistogramEventMonitor(EventMonitor emon, long window,
+            int precision, double servers) {
+        this.emon = emon;
+        this.window = window;
+        this.servers = Math.max(servers, 1e-3);
+
+        long now = CoarseClock.now();
+        this.current = new Window(now, precision);
+        this.previous = new Window(now, precision);
+    }
+
+    // start a new window if the current one is over. the previous window's
+    // histograms are reused.
+    private void rotate() {
+        long now = CoarseClock.now();
+        if (now - current.start < window) return;
+
+        synchronized (this) {
+            if (now - current.start >= window) rotate(now);
+        }
+    }
+
+    private void rotate(long now) {
+        Window w = previous;
+        previous = (now - current.start < 2 * window ? current : new Window(now,
+                                                                            current));
+        current = new Window(now, w);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#putEvent(double)
+     */
+    public void putEvent(double t) {
+        emon.putEvent(t);
+
+        rotate();
+
+        long now = System.nanoTime();
+
+        if (lastArrival != 0L) {
+            double interval = (now - lastArrival) * 1e-9;
+
+            wait = Math.max(0.0, wait + lastLength / servers - interval);
+
+            current.interval.record(interval);
+        }
+
+        current.length.record(t);
+        current.delay.record(wait);
+
+        lastArrival = now;
+        lastLength = t;
+    }
+
+    /**
+     * Quantile of event lengths.
+     * 
+     * @param q
+     *            quantile, e.g. 0.99
+     * @return event length, in seconds.
+     */
+    public double getLengthQuantile(double q) {
+        rotate();
+        return LogHistogram.quantile(q, current.length, previous.length);
+    }
+
+    /**
+     * Quantile of times between successive events.
+     * 
+     * @param q
+     *            quantile, e.g. 0.99
+     * @return inter-arrival time, in seconds.
+     */
+    public double getIntervalQuantile(double q) {
+        rotate();
+        return LogHistogram.quantile(q, current.interval, previous.interval);
+    }
+
+    /**
+     * Quantile of queueing delays.
+     * 
+     * @param q
+     *            quantile, e.g. 0.99
+     * @return queueing delay, in seconds.
+     */
+    public double getDelayQuantile(double q) {
+        rotate();
+        return LogHistogram.quantile(q, current.delay, previous.delay);
+    }
+
+    /**
+     * Number of events in the histograms.
+     */
+    public long getHistogramCount() {
+        rotate();
+        return current.length.count() + previous.length.count();
+    }
+
+    public double getEventRate() {
+        return emon.getEventRate();
+    }
+
+    public double getEventLength() {
+        return emon.getEventLength();
+    }
+
+    public boolean isValid() {
+        return emon.isValid();
+    }
+
+    public long getMillisSinceLastEvent() {
+        return emon.getMillisSinceLastEvent();
+    }
+
+    public void waitForSilence(long silenceMs, long timeoutMs)
+            throws InterruptedException, TimeoutException {
+        emon.waitForSilence(silenceMs, timeoutMs);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#reset()
+     */
+    public void reset() {
+        emon.reset();
+
+        synchronized (this) {
+            long now = CoarseClock.now();
+            current = new Window(now, current);
+            previous = new Window(now, previous);
+        }
+
+        lastArrival = 0L;
+        lastLength = 0.0;
+        wait = 0.0;
+    }
+
+    /**
+     * Arrival times and queueing delay are tracked without synchronization.
+     * 
+     * @return false
+     */
+    public boolean isConcurrent() {
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return emon.toString() + " length.p99=" + getLengthQuantile(0.99)
+                + " interval.p99=" + getIntervalQuantile(0.99)
+                + " delay.p99=" + getDelayQuantile(0.99);
+    }
+}
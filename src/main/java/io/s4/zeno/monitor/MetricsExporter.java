@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.monitor;
+
+import io.s4.zeno.config.ConfigMap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Export {@link SiteMetrics} through JMX and over HTTP, so that they can be
+ * read often without writing them to ZooKeeper.
+ * <p>
+ * Over JMX, the metrics are the attributes of a single read-only MBean named
+ * {@code io.s4.zeno:type=Site,name=SITE}. Over HTTP, {@code GET /metrics}
+ * returns them in the Prometheus text format. Configured from the site spec:
+ * 
+ * <pre>
+ *     "metrics.jmx"     register MBean. Default: true
+ *     "metrics.port"    port of HTTP server. Default: 0 (no server)
+ * </pre>
+ */
+public class MetricsExporter {
+    private static final Logger logger = Logger.getLogger(MetricsExporter.class);
+
+    private final SiteMetrics metrics;
+
+    private final String name;
+
+    private final boolean jmx;
+
+    private final int port;
+
+    private ObjectName objectName = null;
+
+    private HttpServer server = null;
+
+    private ExecutorService executor = null;
+
+    /**
+     * @param metrics
+     *            metrics to export
+     * @param name
+     *            name of site
+     * @param spec
+     *            site spec
+     */
+    public MetricsExporter(SiteMetrics metrics, String name, ConfigMap spec) {
+        this.metrics = metrics;
+        this.name = name;
+        this.jmx = spec.getBoolean("metrics.jmx", true);
+        this.port = spec.getInt("metrics.port", 0);
+    }
+
+    /**
+     * Register the MBean and start the HTTP server, as configured. Failures
+     * are logged; the site runs without the exports that failed.
+     */
+    public synchronized void start() {
+        if (jmx && objectName == null) {
+            try {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                ObjectName on = new ObjectName("io.s4.zeno:type=Site,name="
+                        + ObjectName.quote(name));
+
+                mbs.registerMBean(new MetricsMBean(), on);
+                objectName = on;
+
+                logger.info("registered metrics mbean " + on);
+
+            } catch (JMException e) {
+                logger.error("could not register metrics mbean", e);
+            }
+        }
+
+        if (port > 0 && server == null) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(port), 0);
+                server.createContext("/metrics", new MetricsHandler());
+
+                executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "metrics-http");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+                server.setExecutor(executor);
+                server.start();
+
+                logger.info("serving metrics at port " + port);
+
+            } catch (IOException e) {
+                logger.error("could not start metrics server at port " + port,
+                             e);
+                server = null;
+            }
+        }
+    }
+
+    /**
+     * Unregister the MBean and stop the HTTP server.
+     */
+    public synchronized void stop() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                                 .unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.error("could not unregister metrics mbean", e);
+            }
+
+            objectName = null;
+        }
+
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+
+            server = null;
+            executor = null;
+        }
+    }
+
+    // GET /metrics
+    private class MetricsHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                StringWriter s = new StringWriter();
+                metrics.write(new PrintWriter(s));
+
+                byte[] body = s.toString().getBytes("UTF-8");
+
+                exchange.getResponseHeaders()
+                        .set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    // metrics as read-only attributes of type double.
+    private class MetricsMBean implements DynamicMBean {
+
+        public Object getAttribute(String attribute)
+                throws AttributeNotFoundException, MBeanException,
+                ReflectionException {
+            Double v = metrics.collect().get(attribute);
+            if (v == null) throw new AttributeNotFoundException(attribute);
+
+            return v;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Double> m = metrics.collect();
+            AttributeList l = new AttributeList();
+
+            for (String a : attributes) {
+                Double v = m.get(a);
+                if (v != null) l.add(new Attribute(a, v));
+            }
+
+            return l;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            SortedMap<String, Double> m = metrics.collect();
+            MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[m.size()];
+
+            int i = 0;
+            for (String a : m.keySet())
+                attrs[i++] = new MBeanAttributeInfo(a,
+                                                    "double",
+                                                    a,
+                                                    true,
+                                                    false,
+                                                    false);
+
+            return new MBeanInfo(SiteMetrics.class.getName(),
+                                 "metrics of site " + name,
+                                 attrs,
+                                 null,
+                                 null,
+                                 null);
+        }
+
+        public Object invoke(String actionName, Object[] params,
+                String[] signature) throws MBeanException,
+                ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public void setAttribute(Attribute attribute)
+                throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("read-only: "
+                    + attribute.getName());
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.monitor;
+
+import io.s4.zeno.EventMonitor;
+import io.s4.zeno.LoadLevel;
+import io.s4.zeno.config.ConfigMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Load monitoring based on the fraction of time spent processing events, as in
+ * {@link EventRateLoadMonitor}, and on the tail of the distributions of event
+ * length and queueing delay.
+ * <p>
+ * The load level is {@code High} if the fraction of busy time is high, or if a
+ * quantile (e.g. the 99th percentile) of event lengths or of queueing delays
+ * exceeds a limit. This catches sites processing bursts of long events, whose
+ * average load may still look moderate. Quantiles are only used once enough
+ * events have been seen. See {@link HistogramEventMonitor}.
+ */
+public class PercentileLoadMonitor extends EventRateLoadMonitor {
+
+    private static final Logger logger = Logger.getLogger(PercentileLoadMonitor.class);
+
+    private final double quantile;
+
+    private final double lengthLimit;
+
+    private final double delayLimit;
+
+    private final long minCount;
+
+    /**
+     * Monitor with load level and resource availability thresholds.
+     * 
+     * @see EventRateLoadMonitor#EventRateLoadMonitor(EventMonitor, double,
+     *      double, double, double, double)
+     * 
+     * @param emon
+     *            event monitor keeping histograms.
+     * @param quantile
+     *            quantile of event lengths and delays compared with limits,
+     *            e.g. 0.99
+     * @param lengthLimit
+     *            limit on the quantile of event lengths, in seconds. Not
+     *            checked if not positive.
+     * @param delayLimit
+     *            limit on the quantile of queueing delays, in seconds. Not
+     *            checked if not positive.
+     * @param minCount
+     *            number of events needed in histograms before quantiles are
+     *            checked.
+     */
+    public PercentileLoadMonitor(HistogramEventMonitor emon, double eventLow,
+            double eventHigh, double capacity, double a, double s,
+            double quantile, double lengthLimit, double delayLimit,
+            long minCount) {
+        super(emon, eventLow, eventHigh, capacity, a, s);
+
+        this.quantile = quantile;
+        this.lengthLimit = lengthLimit;
+        this.delayLimit = delayLimit;
+        this.minCount = minCount;
+    }
+
+    /**
+     * Initialize from a config map. In addition to the fields used by
+     * {@link EventRateLoadMonitor#EventRateLoadMonitor(ConfigMap)}, the
+     * following are used:
+     * 
+     * <pre>
+     *     "monitor.tail.quantile"  quantile. Default: 0.99
+     *     "monitor.tail.length"    lengthLimit. Default: 0 (not checked)
+     *     "monitor.tail.delay"     delayLimit. Default: 0 (not checked)
+     *     "monitor.tail.count"     minCount. Default: 100
+     * </pre>
+     * 
+     * Histograms are always kept, regardless of "monitor.histogram".
+     * 
+     * @param spec
+     *            config map to initialize from
+     */
+    public PercentileLoadMonitor(ConfigMap spec) {
+        this(histogramMonitor(spec),
+             spec.getDouble("monitor.low", 0.5),
+             spec.getDouble("monitor.high", 0.8),
+             spec.getDouble("resource.capacity", 1.0),
+             spec.getDouble("resource.accept", 0.75),
+             spec.getDouble("resource.shed", 0.85),
+             spec.getDouble("monitor.tail.quantile", 0.99),
+             spec.getDouble("monitor.tail.length", 0.0),
+             spec.getDouble("monitor.tail.delay", 0.0),
+             spec.getLong("monitor.tail.count", 100));
+    }
+
+    // event monitor configured by spec, with histograms.
+    private static HistogramEventMonitor histogramMonitor(ConfigMap spec) {
+        EventMonitor emon = new EventMonitorFactory(spec, "monitor.", 100).getInstance();
+
+        if (emon instanceof HistogramEventMonitor)
+            return (HistogramEventMonitor) emon;
+
+        return new HistogramEventMonitor(emon,
+                                         spec.getLong("monitor.histogram.window",
+                                                      10000),
+                                         spec.getInt("monitor.histogram.precision",
+                                                     5),
+                                         spec.getDouble("monitor.histogram.servers",
+                                                        1.0));
+    }
+
+    public LoadLevel detectLevel() {
+        LoadLevel l = super.detectLevel();
+        if (l == LoadLevel.High) return l;
+
+        HistogramEventMonitor h = histograms();
+        if (h == null || h.getHistogramCount() < minCount) return l;
+
+        double length = h.getLengthQuantile(quantile);
+        double delay = h.getDelayQuantile(quantile);
+
+        if ((lengthLimit > 0.0 && length > lengthLimit)
+                || (delayLimit > 0.0 && delay > delayLimit)) {
+            level = LoadLevel.High;
+
+            logger.debug("load level is " + level + " (q=" + quantile
+                    + " length=" + length + " delay=" + delay + ")");
+        }
+
+        return level;
+    }
+}
@@ -180,6 +180,15 @@ public class PoissonEventMonitor implements EventMonitor {
         count = 0;
     }
 
+    /**
+     * Not thread-safe.
+     * 
+     * @return false
+     */
+    public boolean isConcurrent() {
+        return false;
+    }
+
     /*
      * (non-Javadoc)
      * 
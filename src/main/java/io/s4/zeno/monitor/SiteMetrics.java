@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.monitor;
+
+import io.s4.zeno.EventMonitor;
+import io.s4.zeno.Job;
+import io.s4.zeno.LoadMonitor;
+import io.s4.zeno.Part;
+import io.s4.zeno.Resource;
+import io.s4.zeno.Site;
+import io.s4.zeno.SiteRegistry;
+import io.s4.zeno.resource.TimeSliceResource;
+import io.s4.zeno.statistics.LogHistogram;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Metrics of a site, collected on demand from its monitors and registry. Each
+ * metric is a named series, in the notation of the Prometheus text format:
+ * 
+ * <pre>
+ *     zeno_site_event_rate                          events/s at site
+ *     zeno_site_event_length_mean_seconds           mean event length
+ *     zeno_site_busy                                fraction of time busy
+ *     zeno_site_load_level                          ordinal of LoadLevel
+ *     zeno_site_free_resource                       free time slice
+ *     zeno_site_event_length_seconds{quantile=Q}    quantiles, if histograms
+ *     zeno_site_interval_seconds{quantile=Q}        are kept by the site
+ *     zeno_site_delay_seconds{quantile=Q}           monitor
+ * 
+ *     zeno_part_event_rate{part=P}                  same, for each part
+ *     zeno_part_event_length_mean_seconds{part=P}
+ *     zeno_part_busy{part=P}
+ *     zeno_part_event_length_seconds{part=P,quantile=Q}
+ * 
+ *     zeno_counter{name=N}                          registry counters
+ *     zeno_activity_idle_seconds{name=N}            time since activity
+ *     zeno_duration_seconds{name=N,quantile=Q}      registry histograms, e.g.
+ *     zeno_duration_seconds_count{name=N}           part transfers
+ * </pre>
+ * 
+ * Other components, e.g. routers, may add series with
+ * {@link #register(String, Gauge)}.
+ */
+public class SiteMetrics {
+    private static final Logger logger = Logger.getLogger(SiteMetrics.class);
+
+    /**
+     * Source of the value of a series.
+     */
+    public interface Gauge {
+        double value();
+    }
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private final Site site;
+
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    public SiteMetrics(Site site) {
+        this.site = site;
+    }
+
+    /**
+     * Add a series.
+     * 
+     * @param series
+     *            name of series, with labels if any.
+     * @param gauge
+     *            source of values.
+     */
+    public void register(String series, Gauge gauge) {
+        gauges.put(series, gauge);
+    }
+
+    /**
+     * Remove a series added with {@link #register(String, Gauge)}.
+     */
+    public void unregister(String series) {
+        gauges.remove(series);
+    }
+
+    /**
+     * Collect the current value of all series.
+     * 
+     * @return map from series to value, sorted by series.
+     */
+    public SortedMap<String, Double> collect() {
+        TreeMap<String, Double> m = new TreeMap<String, Double>();
+
+        collectSite(m);
+        collectParts(m);
+        collectRegistry(m);
+
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            try {
+                m.put(e.getKey(), e.getValue().value());
+            } catch (RuntimeException x) {
+                logger.error("error reading metric " + e.getKey(), x);
+            }
+        }
+
+        return m;
+    }
+
+    /**
+     * Write all series in the Prometheus text format.
+     */
+    public void write(PrintWriter out) {
+        for (Map.Entry<String, Double> e : collect().entrySet()) {
+            out.print(e.getKey());
+            out.print(' ');
+            out.print(format(e.getValue()));
+            out.print('\n');
+        }
+    }
+
+    private static String format(double v) {
+        if (Double.isNaN(v)) return "NaN";
+        if (Double.isInfinite(v)) return (v > 0 ? "+Inf" : "-Inf");
+
+        return String.valueOf(v);
+    }
+
+    private void collectSite(Map<String, Double> m) {
+        EventMonitor emon = site.eventMonitor();
+        if (emon == null) return;
+
+        putEvents(m, "zeno_site", "", emon);
+
+        LoadMonitor lmon = site.loadMonitor();
+        m.put("zeno_site_load_level", (double) lmon.getLevel().ordinal());
+
+        Resource free = lmon.getFreeResource();
+        if (free instanceof TimeSliceResource)
+            m.put("zeno_site_free_resource",
+                  ((TimeSliceResource) free).getTimeSlice());
+
+        HistogramEventMonitor h = site.monitor().histograms();
+        if (h != null) {
+            for (double q : QUANTILES) {
+                String l = "{quantile=\"" + q + "\"}";
+
+                m.put("zeno_site_event_length_seconds" + l,
+                      h.getLengthQuantile(q));
+                m.put("zeno_site_interval_seconds" + l,
+                      h.getIntervalQuantile(q));
+                m.put("zeno_site_delay_seconds" + l, h.getDelayQuantile(q));
+            }
+        }
+    }
+
+    private void collectParts(Map<String, Double> m) {
+        Job job = site.job();
+        if (job == null || job.partMap() == null) return;
+
+        for (Part part : job.partMap().getAll()) {
+            String label = "part=\"" + part.id() + "\"";
+            EventMonitor emon = part.eventMonitor();
+
+            putEvents(m, "zeno_part", label, emon);
+
+            if (emon instanceof HistogramEventMonitor) {
+                HistogramEventMonitor h = (HistogramEventMonitor) emon;
+
+                for (double q : QUANTILES)
+                    m.put("zeno_part_event_length_seconds{" + label
+                                  + ",quantile=\"" + q + "\"}",
+                          h.getLengthQuantile(q));
+            }
+        }
+    }
+
+    private void collectRegistry(Map<String, Double> m) {
+        SiteRegistry r = site.registry();
+
+        for (String n : r.counterNames())
+            m.put("zeno_counter{name=\"" + n + "\"}", (double) r.getCount(n));
+
+        for (String n : r.activityMonitorNames()) {
+            long t = r.getActivityMonitor(n).timeSinceLast();
+            m.put("zeno_activity_idle_seconds{name=\"" + n + "\"}",
+                  (t == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : t / 1000.0));
+        }
+
+        for (String n : r.histogramNames()) {
+            LogHistogram h = r.getHistogram(n);
+            String label = "name=\"" + n + "\"";
+
+            m.put("zeno_duration_seconds_count{" + label + "}",
+                  (double) h.count());
+
+            for (double q : QUANTILES)
+                m.put("zeno_duration_seconds{" + label + ",quantile=\"" + q
+                        + "\"}", h.quantile(q));
+        }
+    }
+
+    // rate, length and busy fraction of an event monitor.
+    private static void putEvents(Map<String, Double> m, String prefix,
+            String label, EventMonitor emon) {
+        String l = (label.length() == 0 ? "" : "{" + label + "}");
+
+        double rate = emon.getEventRate();
+        double length = emon.getEventLength();
+
+        m.put(prefix + "_event_rate" + l, rate);
+        m.put(prefix + "_event_length_mean_seconds" + l, length);
+        m.put(prefix + "_busy" + l, rate * length);
+    }
+}
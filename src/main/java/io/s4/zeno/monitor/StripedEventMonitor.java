@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.monitor;
+
+import io.s4.zeno.EventMonitor;
+import io.s4.zeno.config.ConfigMap;
+import io.s4.zeno.statistics.ExponentialMovingAverage;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Event monitor which may be updated by many threads at once. It estimates the
+ * same quantities as {@link PoissonEventMonitor}.
+ * <p>
+ * Events are counted in a number of cells (stripes), each on a cache line of
+ * its own. A thread always updates the same cell, so threads seldom contend.
+ * The counts are folded into the moving averages whenever an estimate is read,
+ * or when {@link #fold()} is called. Events folded together are treated as
+ * having arrived evenly spaced over the time since the previous fold, with
+ * their mean length:
+ * 
+ * <pre>
+ *     For n events folded, with total length L, the last of which arrived dT
+ *     after the last event of the previous fold:
+ * 
+ *     put dT/n into the inter-arrival average, n times
+ *     put L/n  into the length average, n times
+ * </pre>
+ * 
+ * Both are done in constant time (see
+ * {@link ExponentialMovingAverage#update(double, long)}).
+ */
+public class StripedEventMonitor implements EventMonitor {
+
+    /**
+     * Factory class to construct multiple instances of StripedEventMonitor
+     * with the same parameters.
+     */
+    public static class Factory implements EventMonitor.Factory {
+        private final int halfLife;
+
+        private final int stripes;
+
+        public Factory(int halfLife, int stripes) {
+            this.halfLife = halfLife;
+            this.stripes = stripes;
+        }
+
+        /**
+         * Initialize from a config map:
+         * 
+         * <pre>
+         *     "halfLife"    half life. Default: 5
+         *     "stripes"     number of cells. Default: see {@link #defaultStripes()}
+         * </pre>
+         */
+        public Factory(ConfigMap spec) {
+            this.halfLife = spec.getInt("halfLife", 5);
+            this.stripes = spec.getInt("stripes", defaultStripes());
+        }
+
+        public EventMonitor getInstance() {
+            return new StripedEventMonitor(halfLife, stripes);
+        }
+    }
+
+    // longs per cell. 16 longs = 128 bytes, which keeps cells on separate
+    // cache lines, including adjacent-line prefetch.
+    private static final int STRIDE = 16;
+
+    // offsets within a cell.
+    private static final int COUNT = 0;
+    private static final int LENGTH = 1;
+    private static final int LAST = 2;
+
+    private final int halfLife;
+
+    private final double refresh;
+
+    private final AtomicLongArray cells;
+
+    private final int mask;
+
+    // state of the last fold. guarded by this.
+    private long foldedCount = 0;
+    private double foldedLength = 0.0;
+    private long foldedLast;
+
+    private ExponentialMovingAverage avgT;
+    private ExponentialMovingAverage eventTime;
+
+    // number of events folded since reset.
+    private volatile long count = 0;
+
+    /**
+     * Twice the number of processors, at most 64.
+     */
+    public static int defaultStripes() {
+        return Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Instantiates a new striped event monitor.
+     * 
+     * @param halfLife
+     *            the half life
+     * @param stripes
+     *            number of cells. Rounded up to a power of two.
+     */
+    public StripedEventMonitor(int halfLife, int stripes) {
+        int n = 1;
+        while (n < stripes)
+            n <<= 1;
+
+        this.halfLife = halfLife;
+        this.refresh = (halfLife < 1 ? 1.0 : (1.0 - Math.pow(0.5,
+                                                             1.0 / halfLife)));
+        this.cells = new AtomicLongArray(n * STRIDE);
+        this.mask = n - 1;
+
+        this.foldedLast = System.currentTimeMillis();
+        this.avgT = new ExponentialMovingAverage(refresh);
+        this.eventTime = new ExponentialMovingAverage(refresh);
+    }
+
+    // first index of the calling thread's cell.
+    private int cell() {
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & mask) * STRIDE;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#putEvent(double)
+     */
+    public void putEvent(double t) {
+        int i = cell();
+        long now = System.currentTimeMillis();
+
+        // length first: a fold that sees the count also sees the length.
+        while (true) {
+            long bits = cells.get(i + LENGTH);
+            double sum = Double.longBitsToDouble(bits) + t;
+            if (cells.compareAndSet(i + LENGTH,
+                                    bits,
+                                    Double.doubleToRawLongBits(sum))) break;
+        }
+
+        if (cells.get(i + LAST) < now) cells.lazySet(i + LAST, now);
+
+        cells.incrementAndGet(i + COUNT);
+    }
+
+    /**
+     * Fold events counted since the last fold into the moving averages. This
+     * is done when an estimate is read, but may also be done periodically to
+     * keep reads short.
+     */
+    public synchronized void fold() {
+        long n = 0;
+        double length = 0.0;
+        long last = foldedLast;
+
+        for (int i = 0; i < cells.length(); i += STRIDE) {
+            n += cells.get(i + COUNT);
+            length += Double.longBitsToDouble(cells.get(i + LENGTH));
+            last = Math.max(last, cells.get(i + LAST));
+        }
+
+        long dn = n - foldedCount;
+        if (dn <= 0) return;
+
+        avgT.put((double) (last - foldedLast) / dn, dn);
+        eventTime.put((length - foldedLength) / dn, dn);
+
+        foldedCount = n;
+        foldedLength = length;
+        foldedLast = last;
+
+        count += dn;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#getEventRate()
+     */
+    public synchronized double getEventRate() {
+        fold();
+
+        if (count < 2) return 0.0;
+
+        // pretend that an event occurred at this time.
+        long now = System.currentTimeMillis();
+        return 1000.0 / avgT.phantomGet(now - foldedLast);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#getEventLength()
+     */
+    public synchronized double getEventLength() {
+        fold();
+
+        return (count == 0 ? 0.0 : eventTime.get());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#isValid()
+     */
+    public boolean isValid() {
+        fold();
+
+        return (count >= halfLife);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#getMillisSinceLastEvent()
+     */
+    public synchronized long getMillisSinceLastEvent() {
+        fold();
+
+        if (count == 0) return Long.MAX_VALUE;
+
+        return System.currentTimeMillis() - foldedLast;
+    }
+
+    public void waitForSilence(long silenceMs, long timeoutMs)
+            throws InterruptedException, TimeoutException {
+
+        long remaining = timeoutMs;
+
+        long s; // time remaining for request to be fulfilled.
+        while ((s = silenceMs - getMillisSinceLastEvent()) > 0) {
+            if ((remaining -= s) > 0L) // time should remain at end of wait
+                Thread.sleep(s);
+
+            else
+                throw new TimeoutException("silenceMs=" + silenceMs
+                        + ", timeoutMs=" + timeoutMs);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.EventMonitor#reset()
+     */
+    public synchronized void reset() {
+        // events counted so far are discarded, not cleared, so that
+        // concurrent updates are not lost.
+        fold();
+
+        avgT = new ExponentialMovingAverage(refresh);
+        eventTime = new ExponentialMovingAverage(refresh);
+        foldedLast = Math.max(foldedLast, System.currentTimeMillis());
+        count = 0;
+    }
+
+    /**
+     * Can be updated from many threads at once.
+     * 
+     * @return true
+     */
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        String message = "halfLife=" + halfLife + " stripes=" + (mask + 1)
+                + " count=" + count + " eventRate=" + getEventRate()
+                + " eventLength=" + getEventLength() + " busyFraction="
+                + getEventRate() * getEventLength();
+
+        return message;
+    }
+}
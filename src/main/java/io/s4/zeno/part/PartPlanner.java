@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.part;
+
+import java.util.BitSet;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Choose a set of parts whose total resource usage falls within a window,
+ * moving as few parts as possible.
+ * <p>
+ * This is a subset-sum problem, solved approximately by dynamic programming
+ * over usage quantized into {@code resolution} steps of the widest window.
+ * For each reachable quantized total, the least number of parts that make it
+ * up is kept. Windows are then tried in order (e.g. a flexible resource and
+ * its successive expansions), and the first one containing a reachable total
+ * wins; among totals needing the same number of parts, the one closest to
+ * the target is picked.
+ * <p>
+ * Usage is rounded up when quantized, so that a chosen set never exceeds the
+ * upper end of its window. The lower end may be missed by at most one step
+ * per chosen part.
+ */
+public class PartPlanner {
+    private static final Logger logger = Logger.getLogger(PartPlanner.class);
+
+    private final int resolution;
+
+    /**
+     * @param resolution
+     *            number of steps into which the widest window is quantized.
+     *            Time and memory are proportional to it (and to the number
+     *            of parts).
+     */
+    public PartPlanner(int resolution) {
+        this.resolution = Math.max(1, resolution);
+    }
+
+    /**
+     * Plan a selection.
+     * 
+     * @param usage
+     *            resource usage of each part.
+     * @param target
+     *            ideal total usage.
+     * @param lo
+     *            lower end of each window, in order of preference.
+     * @param hi
+     *            upper end (exclusive) of each window.
+     * @return indices into {@code usage} of selected parts. If no window can
+     *         be met, the largest total below the upper end of the last window
+     *         is selected.
+     */
+    public int[] plan(double[] usage, double target, double[] lo, double[] hi) {
+        int n = usage.length;
+        int w = Math.min(lo.length, hi.length);
+        if (w == 0) return new int[0];
+
+        double max = 0.0;
+        for (int k = 0; k < w; ++k)
+            max = Math.max(max, hi[k]);
+
+        if (max <= 0.0) return new int[0];
+
+        int size = resolution + 1;
+        double unit = max / resolution;
+
+        // quantized usage, zero for parts that are left out.
+        int[] q = new int[n];
+        for (int i = 0; i < n; ++i) {
+            double u = usage[i];
+            if (u > 0.0 && u < max) q[i] = (int) Math.min(resolution,
+                                                          Math.ceil(u / unit));
+        }
+
+        // count[s]: fewest parts adding up to s; take: whether part i
+        // improved s.
+        int[] count = new int[size];
+        for (int s = 1; s < size; ++s)
+            count[s] = Integer.MAX_VALUE;
+
+        BitSet take = new BitSet(n * size);
+
+        for (int i = 0; i < n; ++i) {
+            int qi = q[i];
+            if (qi == 0) continue;
+
+            int base = i * size;
+            for (int s = size - 1; s >= qi; --s) {
+                int c = count[s - qi];
+                if (c != Integer.MAX_VALUE && c + 1 < count[s]) {
+                    count[s] = c + 1;
+                    take.set(base + s);
+                }
+            }
+        }
+
+        int best = -1;
+        for (int k = 0; k < w && best < 0; ++k) {
+            int from = (int) Math.ceil(lo[k] / unit);
+            int to = upper(hi[k], unit);
+
+            best = pick(count, Math.max(0, from), to, target / unit);
+
+            if (best >= 0 && logger.isDebugEnabled())
+                logger.debug("window " + k + " [" + lo[k] + ", " + hi[k]
+                        + ") met with " + count[best] + " parts");
+        }
+
+        if (best < 0) {
+            // no window met: fill the last one as far as possible.
+            for (int s = upper(hi[w - 1], unit); s >= 0; --s) {
+                if (count[s] != Integer.MAX_VALUE) {
+                    best = s;
+                    break;
+                }
+            }
+
+            logger.debug("no window met, using total " + (best * unit));
+        }
+
+        if (best <= 0) return new int[0];
+
+        int[] chosen = new int[count[best]];
+        int m = 0;
+        for (int i = n - 1, s = best; i >= 0 && s > 0; --i) {
+            if (q[i] != 0 && take.get(i * size + s)) {
+                chosen[m++] = i;
+                s -= q[i];
+            }
+        }
+
+        return chosen;
+    }
+
+    // largest quantized total strictly below h.
+    private int upper(double h, double unit) {
+        int s = (int) Math.ceil(h / unit) - 1;
+        return Math.min(resolution, s);
+    }
+
+    // reachable total in [from, to] with fewest parts, closest to target.
+    private static int pick(int[] count, int from, int to, double target) {
+        int best = -1;
+
+        for (int s = from; s <= to; ++s) {
+            if (count[s] == Integer.MAX_VALUE) continue;
+
+            if (best < 0
+                    || count[s] < count[best]
+                    || (count[s] == count[best] && Math.abs(s - target) < Math.abs(best
+                            - target))) {
+                best = s;
+            }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.part;
+
+import java.util.Arrays;
+
+/**
+ * Checks of {@link PartPlanner} on small sets of parts whose best selection
+ * is known. Prints each case, and exits with status 1 if any fails.
+ */
+public class PartPlannerTest {
+
+    private static int failed = 0;
+
+    /**
+     * The main method.
+     * 
+     * @param arg
+     *            the arguments
+     */
+    public static void main(String[] arg) {
+        PartPlanner planner = new PartPlanner(1000);
+
+        // the only pair in the window is 0.45 + 0.06; 0.2 + 0.25 + 0.06 also
+        // fits, but needs three parts.
+        check("known optimum",
+              planner.plan(new double[] { 0.1, 0.2, 0.25, 0.45, 0.06 },
+                           0.5,
+                           new double[] { 0.48 },
+                           new double[] { 0.53 }),
+              new int[] { 3, 4 });
+
+        // the first window that can be met wins, even if a later one could be
+        // met with fewer parts.
+        check("windows in order",
+              planner.plan(new double[] { 0.1, 0.1, 0.1, 0.5 },
+                           0.3,
+                           new double[] { 0.28, 0.45 },
+                           new double[] { 0.32, 0.55 }),
+              new int[] { 0, 1, 2 });
+
+        // reachable totals are 0.2, 0.35 and 0.55: no window is met, and the
+        // largest total below the end of the last window is used.
+        check("unreachable windows",
+              planner.plan(new double[] { 0.2, 0.35 },
+                           0.42,
+                           new double[] { 0.4, 0.5 },
+                           new double[] { 0.45, 0.52 }),
+              new int[] { 1 });
+
+        // parts using at least the widest window are never chosen.
+        check("large parts skipped",
+              planner.plan(new double[] { 0.9, 0.1, 0.35, 0.2 },
+                           0.3,
+                           new double[] { 0.25 },
+                           new double[] { 0.35 }),
+              new int[] { 1, 3 });
+
+        check("no windows",
+              planner.plan(new double[] { 0.1 },
+                           0.1,
+                           new double[0],
+                           new double[0]),
+              new int[0]);
+
+        System.out.println(failed == 0 ? "Done. All passed." : "Done. "
+                + failed + " failed.");
+
+        if (failed > 0) System.exit(1);
+    }
+
+    private static void check(String name, int[] chosen, int[] expected) {
+        int[] c = chosen.clone();
+        Arrays.sort(c);
+
+        boolean ok = Arrays.equals(c, expected);
+        if (!ok) ++failed;
+
+        System.out.println((ok ? "OK     " : "FAILED ") + name + ": chosen "
+                + Arrays.toString(c) + ", expected "
+                + Arrays.toString(expected));
+    }
+}
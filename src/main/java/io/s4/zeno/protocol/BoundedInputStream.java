@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * The next {@code length} bytes of a stream. Closing this stream skips
+ * whatever has not been read of them, and leaves the underlying stream open.
+ */
+public class BoundedInputStream extends InputStream {
+
+    private final InputStream in;
+
+    private long left;
+
+    public BoundedInputStream(InputStream in, long length) {
+        this.in = in;
+        this.left = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (left <= 0) return -1;
+
+        int b = in.read();
+        if (b < 0) throw new IOException("stream ended " + left
+                + " bytes early");
+
+        --left;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (left <= 0) return -1;
+
+        int n = in.read(b, off, (int) Math.min(len, left));
+        if (n < 0) throw new IOException("stream ended " + left
+                + " bytes early");
+
+        left -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(left, in.available());
+    }
+
+    /**
+     * Skip to the end of the bounded range.
+     */
+    @Override
+    public void close() throws IOException {
+        while (left > 0) {
+            long n = in.skip(left);
+
+            if (n <= 0) {
+                if (in.read() < 0)
+                    throw new IOException("stream ended " + left
+                            + " bytes early");
+                n = 1;
+            }
+
+            left -= n;
+        }
+    }
+}
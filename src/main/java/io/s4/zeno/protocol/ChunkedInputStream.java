@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Read a stream written by {@link ChunkedOutputStream}. End of stream is
+ * reached at the empty chunk.
+ * <p>
+ * Closing this stream skips whatever has not been read up to the end marker,
+ * and leaves the underlying stream open and positioned right after it.
+ */
+public class ChunkedInputStream extends InputStream {
+
+    private final DataInputStream in;
+
+    // bytes left in current chunk.
+    private int left = 0;
+
+    private boolean done = false;
+
+    public ChunkedInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) return -1;
+
+        int b = in.read();
+        if (b < 0) throw new IOException("truncated chunk");
+
+        --left;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!nextChunk()) return -1;
+
+        int n = in.read(b, off, Math.min(len, left));
+        if (n < 0) throw new IOException("truncated chunk");
+
+        left -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (done ? 0 : Math.min(left, in.available()));
+    }
+
+    /**
+     * Skip to the end of the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        while (nextChunk()) {
+            int n = in.skipBytes(left);
+
+            if (n <= 0) {
+                if (in.read() < 0) throw new IOException("truncated chunk");
+                n = 1;
+            }
+
+            left -= n;
+        }
+    }
+
+    // make sure there are bytes to read in the current chunk.
+    private boolean nextChunk() throws IOException {
+        while (!done && left == 0) {
+            int n = in.readInt();
+
+            if (n < 0) throw new IOException("bad chunk length: " + n);
+            if (n == 0) done = true;
+
+            left = n;
+        }
+
+        return !done;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.protocol;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Write a stream of unknown length as a sequence of length-prefixed chunks,
+ * ended by an empty chunk:
+ * 
+ * <pre>
+ *     STREAM := CHUNK* 0
+ *     CHUNK  := LENGTH BYTE{LENGTH}
+ * 
+ *     LENGTH: int, positive
+ * </pre>
+ * 
+ * Closing this stream writes the end marker and flushes, but leaves the
+ * underlying stream open, so that more can be written to it. Read with
+ * {@link ChunkedInputStream}.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    /** Default size of a chunk. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+
+    private final byte[] buf;
+
+    private int count = 0;
+
+    private boolean closed = false;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = new DataOutputStream(out);
+        this.buf = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+
+        if (count == buf.length) writeChunk();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        while (len > 0) {
+            if (count == buf.length) writeChunk();
+
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Write out buffered bytes as a chunk, and flush the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+
+        writeChunk();
+        out.flush();
+    }
+
+    /**
+     * End the stream. The underlying stream is flushed, not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+
+        writeChunk();
+        out.writeInt(0);
+        out.flush();
+
+        closed = true;
+    }
+
+    private void writeChunk() throws IOException {
+        if (count == 0) return;
+
+        out.writeInt(count);
+        out.write(buf, 0, count);
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("chunked stream already ended");
+    }
+}
@@ -28,5 +28,14 @@ public enum Command {
     GetFree,
 
     /** The Take part. */
-    TakePart;
+    TakePart,
+
+    /** Reserve free resource for parts to be sent. */
+    Reserve,
+
+    /** Bind a reservation to parts about to be sent. */
+    Commit,
+
+    /** Cancel a reservation. */
+    Abort;
 }
\ No newline at end of file
@@ -20,10 +20,18 @@ import io.s4.zeno.config.ConfigMap;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
 
 import org.apache.log4j.Logger;
 
@@ -37,6 +45,11 @@ public class Connection {
     /** The Constant logger. */
     private static final Logger logger = Logger.getLogger(Connection.class);
 
+    /** Length of the token that pairs protocol and data sockets. */
+    public static final int TOKEN_LENGTH = 8;
+
+    private static final SecureRandom random = new SecureRandom();
+
     /** The psock. */
     private Socket psock = null;
 
@@ -55,6 +68,9 @@ public class Connection {
     /** The data in. */
     public BufferedInputStream dataIn = null;
 
+    /** Closed along with the connection, if not over sockets. */
+    private Closeable closer = null;
+
     /**
      * Instantiates a new connection.
      * 
@@ -76,6 +92,52 @@ public class Connection {
         dataIn = new BufferedInputStream(dsock.getInputStream());
     }
 
+    /**
+     * Instantiates a new connection over streams rather than sockets, e.g. a
+     * stream on a {@link PeerLink}.
+     * 
+     * @param pin
+     *            protocol input
+     * @param pout
+     *            protocol output
+     * @param din
+     *            data input
+     * @param dout
+     *            data output
+     * @param closer
+     *            closed when the connection is closed.
+     */
+    public Connection(InputStream pin, OutputStream pout, InputStream din,
+            OutputStream dout, Closeable closer) {
+        this.closer = closer;
+
+        out = new PrintWriter(pout, true);
+        in = new BufferedReader(new InputStreamReader(pin));
+
+        dataOut = new BufferedOutputStream(dout);
+        dataIn = new BufferedInputStream(din);
+    }
+
+    /**
+     * Channel for writing to the data socket, e.g. with
+     * {@link java.nio.channels.FileChannel#transferTo}. Buffered data is
+     * flushed first. Writes go straight to the socket if it was opened as a
+     * {@link SocketChannel}, otherwise through {@link #dataOut}, which must
+     * then be flushed.
+     * 
+     * @return the channel
+     * @throws IOException
+     *             if flushing buffered data fails.
+     */
+    public WritableByteChannel dataChannel() throws IOException {
+        dataOut.flush();
+
+        SocketChannel ch = (dsock != null ? dsock.getChannel() : null);
+        if (ch != null && ch.isBlocking()) return ch;
+
+        return Channels.newChannel(dataOut);
+    }
+
     /**
      * Close.
      */
@@ -105,10 +167,20 @@ public class Connection {
         } catch (IOException e) {
             logger.error("could not close data socket connection", e);
         }
+
+        try {
+            if (closer != null) closer.close();
+            closer = null;
+
+        } catch (IOException e) {
+            logger.error("could not close connection", e);
+        }
     }
 
     /**
-     * Creates the to.
+     * Creates the to. A token is sent on both sockets before anything else,
+     * so that a {@link ConnectionListener} can tell which protocol and data
+     * sockets belong together.
      * 
      * @param taker
      *            the taker
@@ -136,7 +208,15 @@ public class Connection {
             psock = new Socket(host, pport);
 
             logger.debug("data sock to " + name + " at " + host + ":" + dport);
-            dsock = new Socket(host, dport);
+            dsock = SocketChannel.open(new InetSocketAddress(host, dport))
+                                 .socket();
+
+            // the same token on both sockets lets the listener pair them.
+            byte[] token = new byte[TOKEN_LENGTH];
+            random.nextBytes(token);
+
+            psock.getOutputStream().write(token);
+            dsock.getOutputStream().write(token);
 
             conn = new Connection(psock, dsock);
             return conn;
@@ -16,60 +16,136 @@
 package io.s4.zeno.protocol;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
-public class ConnectionListener {
+/**
+ * Accepts connections from senders: a protocol socket and a data socket for
+ * each.
+ * <p>
+ * Sockets are accepted without blocking, by a single thread on a
+ * {@link Selector}. Each sender first writes the same token on both of its
+ * sockets (see {@link Connection#createTo}); sockets are paired by token, so
+ * that any number of senders may connect at once, in any order. Unpaired
+ * sockets are dropped after {@value #PAIR_TIMEOUT} ms. Paired connections
+ * are queued for {@link #accept()}. So are connections over peer links, if
+ * the listener is made the acceptor of a {@link PeerLinkPool}.
+ */
+public class ConnectionListener implements PeerLink.Acceptor {
 
     /** The Constant logger. */
     private static final Logger logger = Logger.getLogger(ConnectionListener.class);
 
+    /** ms after which a socket without its pair is dropped. */
+    public static final long PAIR_TIMEOUT = 30000;
+
     /** The psock server. */
-    private ServerSocket psockServer = null;
+    private ServerSocketChannel psockServer = null;
 
     /** The dsock server. */
-    private ServerSocket dsockServer = null;
+    private ServerSocketChannel dsockServer = null;
+
+    private final Selector selector;
+
+    private final LinkedBlockingQueue<Connection> accepted = new LinkedBlockingQueue<Connection>();
+
+    // sockets that have sent their token, waiting for their pair.
+    private final HashMap<String, Half> unpaired = new HashMap<String, Half>();
+
+    private volatile boolean open = true;
 
+    // a socket of a connection, reading its token.
+    private static class Half {
+        final SocketChannel channel;
+
+        final boolean protocol;
+
+        final ByteBuffer token = ByteBuffer.allocate(Connection.TOKEN_LENGTH);
+
+        final long time = System.currentTimeMillis();
+
+        Half(SocketChannel channel, boolean protocol) {
+            this.channel = channel;
+            this.protocol = protocol;
+        }
+    }
 
-    public ConnectionListener(ServerSocket psockServer, ServerSocket dsockServer) {
+    public ConnectionListener(ServerSocketChannel psockServer,
+            ServerSocketChannel dsockServer) throws IOException {
         this.psockServer = psockServer;
         this.dsockServer = dsockServer;
+
+        selector = Selector.open();
+
+        psockServer.configureBlocking(false);
+        dsockServer.configureBlocking(false);
+        psockServer.register(selector, SelectionKey.OP_ACCEPT, Boolean.TRUE);
+        dsockServer.register(selector, SelectionKey.OP_ACCEPT, Boolean.FALSE);
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                select();
+            }
+        }, "connection-listener");
+
+        t.setDaemon(true);
+        t.start();
     }
 
     public static ConnectionListener createInstance(int pport, int dport) {
         logger.debug("creating protocol and data ports. proto=" + pport
                 + " data=" + dport);
 
-        ServerSocket psockServer;
-        ServerSocket dsockServer;
+        ServerSocketChannel psockServer = null;
+        ServerSocketChannel dsockServer = null;
 
         try {
-            psockServer = new ServerSocket(pport);
+            psockServer = ServerSocketChannel.open();
+            psockServer.socket().bind(new InetSocketAddress(pport));
         } catch (IOException e) {
             logger.error("could not create server socket on pport " + pport
                     + ": " + e);
+            close(psockServer);
             return null;
         }
 
         try {
-            dsockServer = new ServerSocket(dport);
+            dsockServer = ServerSocketChannel.open();
+            dsockServer.socket().bind(new InetSocketAddress(dport));
         } catch (IOException e) {
             logger.error("could not create server socket on dport " + dport
                     + ": " + e);
-            try {
-                psockServer.close();
-            } catch (IOException e1) {
-                logger.error("error closing server socket at pport " + pport
-                        + " after failing to create server socket at dport "
-                        + dport);
-            }
+            close(dsockServer);
+            close(psockServer);
 
             return null;
         }
 
-        return new ConnectionListener(psockServer, dsockServer);
+        try {
+            return new ConnectionListener(psockServer, dsockServer);
+
+        } catch (IOException e) {
+            logger.error("could not create selector for ports " + pport
+                    + " and " + dport + ": " + e);
+            close(dsockServer);
+            close(psockServer);
+
+            return null;
+        }
     }
 
     /**
@@ -78,46 +154,207 @@ public class ConnectionListener {
      * @return true, if successful
      */
     public boolean good() {
-        return psockServer != null && dsockServer != null;
+        return open;
     }
 
     /**
-     * Accept.
+     * Wait for a connection. Blocks till a sender connects or the listener is
+     * closed.
      * 
-     * @return the connection
+     * @return the connection, or null if the listener has been closed.
      */
     public Connection accept() {
         try {
-            Socket psock = psockServer.accept();
-            Socket dsock = dsockServer.accept();
-
-            return new Connection(psock, dsock);
+            while (open) {
+                Connection conn = accepted.poll(1000, TimeUnit.MILLISECONDS);
+                if (conn != null) return conn;
+            }
 
-        } catch (IOException e) {
-            logger.error("could not accept connections: " + e);
-            close();
-            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+
+        return null;
+    }
+
+    /**
+     * Queue a connection opened over a peer link, to be taken by
+     * {@link #accept()} along with those accepted here.
+     */
+    public void accepted(PeerLink link, Connection conn) {
+        if (open)
+            accepted.offer(conn);
+        else
+            conn.close();
     }
 
     /**
      * Close.
      */
     public void close() {
+        open = false;
+        selector.wakeup();
+    }
+
+    // accept sockets and read tokens, till closed.
+    private void select() {
         try {
-            if (psockServer != null) psockServer.close();
-            psockServer = null;
+            while (open) {
+                selector.select(1000);
+
+                List<Half> done = new ArrayList<Half>();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                                                      .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable())
+                        accept(key);
+                    else if (key.isReadable()) readToken(key, done);
+                }
+
+                if (!done.isEmpty()) {
+                    // deregister cancelled keys before making channels
+                    // blocking again.
+                    selector.selectNow();
+
+                    for (Half h : done)
+                        pair(h);
+                }
+
+                expire();
+            }
 
         } catch (IOException e) {
-            logger.error("could not close protocol socket connection: " + e);
+            logger.error("error in connection listener", e);
+
+        } catch (ClosedSelectorException e) {
         }
 
+        open = false;
+
         try {
-            if (dsockServer != null) dsockServer.close();
-            dsockServer = null;
+            selector.close();
+        } catch (IOException e) {
+        }
+
+        close(psockServer);
+        close(dsockServer);
+
+        for (Half h : unpaired.values())
+            close(h.channel);
+        unpaired.clear();
+
+        logger.info("connection listener closed");
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        boolean protocol = (Boolean) key.attachment();
+        SocketChannel ch = ((ServerSocketChannel) key.channel()).accept();
+        if (ch == null) return;
+
+        ch.configureBlocking(false);
+        ch.register(selector, SelectionKey.OP_READ, new Half(ch, protocol));
+    }
+
+    private void readToken(SelectionKey key, List<Half> done) {
+        Half h = (Half) key.attachment();
+
+        try {
+            if (h.channel.read(h.token) < 0) {
+                key.cancel();
+                close(h.channel);
+                return;
+            }
+
+        } catch (IOException e) {
+            logger.debug("error reading token: " + e);
+            key.cancel();
+            close(h.channel);
+            return;
+        }
+
+        if (!h.token.hasRemaining()) {
+            key.cancel();
+            done.add(h);
+        }
+    }
+
+    // pair a socket whose token has been read with its other half, if that
+    // has arrived too.
+    private void pair(Half h) {
+        String token = toHex(h.token.array());
+        Half other = unpaired.remove(token);
+
+        if (other == null) {
+            unpaired.put(token, h);
+            return;
+        }
 
+        if (other.protocol == h.protocol) {
+            logger.warn("dropping sockets with duplicate token " + token);
+            close(h.channel);
+            close(other.channel);
+            return;
+        }
+
+        Half p = (h.protocol ? h : other);
+        Half d = (h.protocol ? other : h);
+
+        try {
+            p.channel.configureBlocking(true);
+            d.channel.configureBlocking(true);
+
+            accepted.add(new Connection(p.channel.socket(), d.channel.socket()));
+
+        } catch (IOException e) {
+            logger.error("could not set up connection from "
+                    + p.channel.socket().getRemoteSocketAddress() + ": " + e);
+            close(p.channel);
+            close(d.channel);
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+
+        // sockets still sending their token.
+        for (SelectionKey key : selector.keys()) {
+            Object a = key.attachment();
+            if (a instanceof Half && now - ((Half) a).time > PAIR_TIMEOUT) {
+                key.cancel();
+                close(((Half) a).channel);
+            }
+        }
+
+        Iterator<Half> i = unpaired.values().iterator();
+        while (i.hasNext()) {
+            Half h = i.next();
+            if (now - h.time > PAIR_TIMEOUT) {
+                logger.info("dropping unpaired socket from "
+                        + h.channel.socket().getRemoteSocketAddress());
+                close(h.channel);
+                i.remove();
+            }
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        StringBuilder s = new StringBuilder();
+        for (byte x : b)
+            s.append(String.format("%02x", x));
+
+        return s.toString();
+    }
+
+    private static void close(Channel ch) {
+        try {
+            if (ch != null) ch.close();
         } catch (IOException e) {
-            logger.error("could not close data socket connection: " + e);
         }
     }
-}
\ No newline at end of file
+}
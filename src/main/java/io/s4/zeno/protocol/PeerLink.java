@@ -0,0 +1,577 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * A persistent link between two sites, carrying any number of
+ * {@link Connection}s over a single socket.
+ * <p>
+ * Each connection is a stream on the link, with a protocol channel and a data
+ * channel. Bytes are sent in frames tagged with stream and channel, so that
+ * connections opened one after the other, or at the same time, need neither
+ * new sockets nor TCP handshakes. Either side may open streams: the side that
+ * dialed uses odd stream ids, the other even ones.
+ * 
+ * <pre>
+ *     LINK  := HELLO FRAME*
+ *     HELLO := MAGIC NAME
+ *     FRAME := STREAM TYPE CHANNEL LENGTH PAYLOAD
+ * 
+ *     MAGIC: int, NAME: UTF, STREAM: int, TYPE: byte (OPEN, DATA, CREDIT,
+ *     CLOSE), CHANNEL: byte (0: protocol, 1: data), LENGTH: int
+ * </pre>
+ * 
+ * Each channel has a window of {@value #WINDOW} bytes: the sender stops when
+ * it has sent that much more than the receiver has returned as CREDIT. A
+ * stream that is not being read thus holds back only its own sender, and
+ * never the link.
+ */
+public class PeerLink {
+    private static final Logger logger = Logger.getLogger(PeerLink.class);
+
+    private static final int MAGIC = 0x5A504C31;
+
+    private static final byte OPEN = 0;
+
+    private static final byte DATA = 1;
+
+    private static final byte CREDIT = 2;
+
+    private static final byte CLOSE = 3;
+
+    private static final int MAX_FRAME = 32 * 1024;
+
+    /** Bytes that may be sent on a channel ahead of credit. */
+    public static final int WINDOW = 256 * 1024;
+
+    /** Milliseconds to wait for a dialed site to accept the socket. */
+    public static final int CONNECT_TIMEOUT = 10000;
+
+    /**
+     * Receives connections opened by the other side.
+     */
+    public interface Acceptor {
+        /**
+         * Called from the thread reading the link. Must not block.
+         */
+        void accepted(PeerLink link, Connection conn);
+    }
+
+    private final Socket sock;
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    private final String peer;
+
+    private final Acceptor acceptor;
+
+    private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+
+    private final AtomicInteger nextId;
+
+    private volatile boolean open = true;
+
+    private PeerLink(Socket sock, DataInputStream in, DataOutputStream out,
+            String peer, boolean dialed, Acceptor acceptor) {
+        this.sock = sock;
+        this.in = in;
+        this.out = out;
+        this.peer = peer;
+        this.acceptor = acceptor;
+        this.nextId = new AtomicInteger(dialed ? 1 : 2);
+
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "peerlink-" + peer);
+
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Dial a site.
+     * 
+     * @param name
+     *            name of this site.
+     * @param host
+     *            host of the other site.
+     * @param port
+     *            its link port.
+     * @param acceptor
+     *            receives connections opened by the other site. If null,
+     *            they are refused.
+     * @throws IOException
+     *             if the site cannot be reached within
+     *             {@link #CONNECT_TIMEOUT} ms, or the handshake fails.
+     */
+    public static PeerLink connect(String name, String host, int port,
+            Acceptor acceptor) throws IOException {
+        Socket s = SocketChannel.open().socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+
+        return handshake(s, name, true, acceptor);
+    }
+
+    /**
+     * Complete a link dialed by another site.
+     * 
+     * @param s
+     *            socket accepted from the other site.
+     * @param name
+     *            name of this site.
+     * @param acceptor
+     *            receives connections opened by the other site. If null,
+     *            they are refused.
+     */
+    public static PeerLink accept(Socket s, String name, Acceptor acceptor)
+            throws IOException {
+        return handshake(s, name, false, acceptor);
+    }
+
+    private static PeerLink handshake(Socket s, String name, boolean dialed,
+            Acceptor acceptor) throws IOException {
+        try {
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            s.setSoTimeout(10000);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+            out.writeInt(MAGIC);
+            out.writeUTF(name);
+            out.flush();
+
+            if (in.readInt() != MAGIC) throw new IOException("not a peer link");
+            String peer = in.readUTF();
+
+            s.setSoTimeout(0);
+
+            logger.info((dialed ? "dialed" : "accepted") + " link with "
+                    + peer + " at " + s.getRemoteSocketAddress());
+
+            return new PeerLink(s, in, out, peer, dialed, acceptor);
+
+        } catch (IOException e) {
+            try {
+                s.close();
+            } catch (IOException e1) {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Name of the site at the other end.
+     */
+    public String peer() {
+        return peer;
+    }
+
+    /**
+     * @return true until the link fails or is closed.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Open a connection to the other side.
+     * 
+     * @return the connection. Closing it closes the stream, not the link.
+     * @throws IOException
+     *             if the link is down.
+     */
+    public Connection open() throws IOException {
+        Stream s = new Stream(nextId.getAndAdd(2));
+        streams.put(s.id, s);
+
+        try {
+            send(s.id, OPEN, 0, null, 0, 0);
+        } catch (IOException e) {
+            streams.remove(s.id);
+            throw e;
+        }
+
+        return s.connection();
+    }
+
+    /**
+     * Close the link and all connections on it.
+     */
+    public void close() {
+        fail(new IOException("link closed"));
+    }
+
+    public String toString() {
+        return "link to " + peer + " (" + streams.size() + " streams)";
+    }
+
+    // read and dispatch frames till the link fails.
+    private void read() {
+        try {
+            while (open) {
+                int id = in.readInt();
+                byte type = in.readByte();
+                int ch = in.readByte();
+                int len = in.readInt();
+
+                if (len < 0 || len > MAX_FRAME || ch < 0 || ch > 1)
+                    throw new IOException("bad frame: stream=" + id
+                            + " type=" + type + " channel=" + ch
+                            + " length=" + len);
+
+                Stream s = streams.get(id);
+
+                switch (type) {
+                    case OPEN:
+                        in.skipBytes(len);
+                        opened(id);
+                        break;
+
+                    case DATA:
+                        byte[] b = new byte[len];
+                        in.readFully(b);
+
+                        // data for streams closed here is dropped.
+                        if (s != null && len > 0) s.ins[ch].put(b);
+                        break;
+
+                    case CREDIT:
+                        int n = in.readInt();
+                        if (s != null) s.outs[ch].credit(n);
+                        break;
+
+                    case CLOSE:
+                        in.skipBytes(len);
+                        if (s != null) s.closed();
+                        break;
+
+                    default:
+                        throw new IOException("bad frame type: " + type);
+                }
+            }
+
+        } catch (IOException e) {
+            if (open) logger.info("link to " + peer + " failed: " + e);
+            fail(e);
+        }
+    }
+
+    // the other side opened a stream.
+    private void opened(int id) {
+        if (acceptor == null || (id & 1) == (nextId.get() & 1)) {
+            logger.warn("refusing stream " + id + " from " + peer);
+            try {
+                send(id, CLOSE, 0, null, 0, 0);
+            } catch (IOException e) {
+            }
+            return;
+        }
+
+        Stream s = new Stream(id);
+        streams.put(id, s);
+
+        acceptor.accepted(this, s.connection());
+    }
+
+    private void fail(IOException e) {
+        open = false;
+
+        try {
+            sock.close();
+        } catch (IOException e1) {
+        }
+
+        for (Stream s : streams.values())
+            s.failed(e);
+
+        streams.clear();
+    }
+
+    private void send(int id, byte type, int ch, byte[] b, int off, int len)
+            throws IOException {
+        if (!open) throw new IOException("link to " + peer + " is closed");
+
+        try {
+            synchronized (out) {
+                out.writeInt(id);
+                out.writeByte(type);
+                out.writeByte(ch);
+                out.writeInt(len);
+                if (len > 0) out.write(b, off, len);
+                out.flush();
+            }
+
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    private void sendCredit(int id, int ch, int n) {
+        byte[] b = { (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8),
+                (byte) n };
+
+        try {
+            send(id, CREDIT, ch, b, 0, 4);
+        } catch (IOException e) {
+            // link failed: the stream will find out.
+        }
+    }
+
+    // a connection on the link.
+    private class Stream implements Closeable {
+        final int id;
+
+        final In[] ins = { new In(this, 0), new In(this, 1) };
+
+        final Out[] outs = { new Out(this, 0), new Out(this, 1) };
+
+        private volatile boolean closed = false;
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        Connection connection() {
+            return new Connection(ins[0], outs[0], ins[1], outs[1], this);
+        }
+
+        // closed here.
+        public void close() {
+            if (closed) return;
+
+            closed();
+
+            try {
+                send(id, CLOSE, 0, null, 0, 0);
+            } catch (IOException e) {
+            }
+        }
+
+        // closed by the other side: what has arrived can still be read.
+        void closed() {
+            closed = true;
+            streams.remove(id);
+
+            for (In i : ins)
+                i.end(null);
+            for (Out o : outs)
+                o.end(null);
+        }
+
+        void failed(IOException e) {
+            closed = true;
+
+            for (In i : ins)
+                i.end(e);
+            for (Out o : outs)
+                o.end(e);
+        }
+    }
+
+    // incoming side of a channel.
+    private class In extends InputStream {
+        private final Stream stream;
+
+        private final int ch;
+
+        private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+
+        // read position in first chunk.
+        private int pos = 0;
+
+        // bytes read but not yet returned as credit.
+        private int consumed = 0;
+
+        private boolean eof = false;
+
+        private IOException error = null;
+
+        In(Stream stream, int ch) {
+            this.stream = stream;
+            this.ch = ch;
+        }
+
+        synchronized void put(byte[] b) {
+            chunks.add(b);
+            notifyAll();
+        }
+
+        synchronized void end(IOException e) {
+            eof = true;
+            error = e;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            int n = 0;
+            int credit = 0;
+
+            synchronized (this) {
+                while (chunks.isEmpty()) {
+                    if (error != null)
+                        throw new IOException("link to " + peer + " failed: "
+                                + error.getMessage());
+                    if (eof) return -1;
+
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+
+                while (n < len && !chunks.isEmpty()) {
+                    byte[] c = chunks.getFirst();
+                    int k = Math.min(len - n, c.length - pos);
+
+                    System.arraycopy(c, pos, b, off + n, k);
+                    n += k;
+                    pos += k;
+
+                    if (pos == c.length) {
+                        chunks.removeFirst();
+                        pos = 0;
+                    }
+                }
+
+                consumed += n;
+                if (consumed >= WINDOW / 2) {
+                    credit = consumed;
+                    consumed = 0;
+                }
+            }
+
+            if (credit > 0 && !stream.closed) sendCredit(stream.id, ch, credit);
+
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            int a = -pos;
+            for (byte[] c : chunks)
+                a += c.length;
+
+            return a;
+        }
+    }
+
+    // outgoing side of a channel.
+    private class Out extends OutputStream {
+        private final Stream stream;
+
+        private final int ch;
+
+        private int credit = WINDOW;
+
+        private boolean closed = false;
+
+        private IOException error = null;
+
+        Out(Stream stream, int ch) {
+            this.stream = stream;
+            this.ch = ch;
+        }
+
+        synchronized void credit(int n) {
+            credit += n;
+            notifyAll();
+        }
+
+        synchronized void end(IOException e) {
+            closed = true;
+            error = e;
+            notifyAll();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n;
+
+                synchronized (this) {
+                    while (credit == 0 && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+
+                    if (error != null)
+                        throw new IOException("link to " + peer + " failed: "
+                                + error.getMessage());
+                    if (closed) throw new IOException("stream closed");
+
+                    n = Math.min(len, Math.min(credit, MAX_FRAME));
+                    credit -= n;
+                }
+
+                send(stream.id, DATA, ch, b, off, n);
+
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
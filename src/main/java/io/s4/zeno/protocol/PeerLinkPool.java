@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.protocol;
+
+import io.s4.zeno.config.ConfigMap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * The {@link PeerLink}s of a site, at most one per other site, kept open and
+ * reused for all connections to and from it.
+ * <p>
+ * Links are dialed on the first connection to a site and accepted at the
+ * port {@code port.receive.link}. Links dialed by other sites are reused for
+ * connections to them as well. Connections opened by other sites, over any
+ * link, are queued for {@link #accept(long)}, or handed to the acceptor set
+ * with {@link #setAcceptor(PeerLink.Acceptor)}.
+ */
+public class PeerLinkPool implements PeerLink.Acceptor {
+    private static final Logger logger = Logger.getLogger(PeerLinkPool.class);
+
+    private final String name;
+
+    private final int port;
+
+    private final ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<String, PeerLink>();
+
+    private final ConcurrentHashMap<String, Object> dialLocks = new ConcurrentHashMap<String, Object>();
+
+    // all links, including those accepted while another one was in use.
+    private final Set<PeerLink> all = Collections.synchronizedSet(new HashSet<PeerLink>());
+
+    private final LinkedBlockingQueue<Connection> incoming = new LinkedBlockingQueue<Connection>();
+
+    // receives connections instead of incoming, if set.
+    private PeerLink.Acceptor acceptor = null;
+
+    private ServerSocket server = null;
+
+    private volatile boolean open = false;
+
+    /**
+     * @param name
+     *            name of this site.
+     * @param port
+     *            port at which to accept links.
+     */
+    public PeerLinkPool(String name, int port) {
+        this.name = name;
+        this.port = port;
+    }
+
+    /**
+     * Start accepting links.
+     * 
+     * @return true if listening at the port.
+     */
+    public synchronized boolean start() {
+        if (open) return true;
+
+        try {
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(port));
+
+        } catch (IOException e) {
+            logger.error("could not listen for links at port " + port, e);
+            try {
+                if (server != null) server.close();
+            } catch (IOException e1) {
+            }
+            server = null;
+            return false;
+        }
+
+        open = true;
+
+        final ServerSocket ss = server;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                listen(ss);
+            }
+        }, "peerlink-accept");
+
+        t.setDaemon(true);
+        t.start();
+
+        logger.info("accepting links at port " + port);
+
+        return true;
+    }
+
+    /**
+     * Stop accepting links, and close all of them.
+     */
+    public synchronized void close() {
+        open = false;
+
+        try {
+            if (server != null) server.close();
+        } catch (IOException e) {
+            logger.error("could not close link server socket", e);
+        }
+
+        server = null;
+
+        synchronized (all) {
+            for (PeerLink l : all)
+                l.close();
+
+            all.clear();
+        }
+
+        links.clear();
+    }
+
+    /**
+     * Open a connection to a site, over its link. Sites that do not advertise
+     * {@code port.receive.link} are connected to with
+     * {@link Connection#createTo(ConfigMap)}.
+     * 
+     * @param peerName
+     *            name of the site.
+     * @param peer
+     *            info of the site.
+     * @return the connection, or null if it could not be made.
+     */
+    public Connection connect(String peerName, ConfigMap peer) {
+        String host = peer.get("IPAddress");
+        int lport = peer.getInt("port.receive.link", -1);
+
+        if (lport <= 0) return Connection.createTo(peer);
+
+        if (host == null) {
+            logger.error("cannot link to site " + peerName
+                    + ". insufficient information");
+            return null;
+        }
+
+        // a link may have failed since it was last used: retry once on a
+        // new one.
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            try {
+                return link(peerName, host, lport).open();
+
+            } catch (IOException e) {
+                logger.info("could not open connection to " + peerName
+                        + ": " + e);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Wait for a connection opened by another site.
+     * 
+     * @param timeout
+     *            milliseconds to wait.
+     * @return the connection, or null on timeout.
+     */
+    public Connection accept(long timeout) throws InterruptedException {
+        return incoming.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand connections opened by other sites to an acceptor instead of
+     * queueing them for {@link #accept(long)}. Connections already queued
+     * are handed over at once.
+     * 
+     * @param acceptor
+     *            receives connections, or null to queue them again.
+     */
+    public void setAcceptor(PeerLink.Acceptor acceptor) {
+        synchronized (incoming) {
+            this.acceptor = acceptor;
+            if (acceptor == null) return;
+
+            Connection conn;
+            while ((conn = incoming.poll()) != null)
+                acceptor.accepted(null, conn);
+        }
+    }
+
+    public void accepted(PeerLink link, Connection conn) {
+        synchronized (incoming) {
+            if (acceptor != null)
+                acceptor.accepted(link, conn);
+            else
+                incoming.offer(conn);
+        }
+    }
+
+    // open link to a site, dialing it if there is none. Only callers for the
+    // same site wait for a dial.
+    private PeerLink link(String peerName, String host, int lport)
+            throws IOException {
+        PeerLink l = links.get(peerName);
+        if (l != null && l.isOpen()) return l;
+
+        synchronized (dialLock(peerName)) {
+            l = links.get(peerName);
+            if (l != null && l.isOpen()) return l;
+
+            l = PeerLink.connect(name, host, lport, this);
+            links.put(peerName, l);
+            add(l);
+
+            return l;
+        }
+    }
+
+    // lock held while dialing a site.
+    private Object dialLock(String peerName) {
+        Object lock = dialLocks.get(peerName);
+        if (lock != null) return lock;
+
+        Object created = new Object();
+        lock = dialLocks.putIfAbsent(peerName, created);
+
+        return (lock != null ? lock : created);
+    }
+
+    // keep track of a link, forgetting those that have failed.
+    private void add(PeerLink l) {
+        synchronized (all) {
+            Iterator<PeerLink> i = all.iterator();
+            while (i.hasNext())
+                if (!i.next().isOpen()) i.remove();
+
+            all.add(l);
+        }
+    }
+
+    private void listen(ServerSocket ss) {
+        while (open) {
+            Socket s;
+            try {
+                s = ss.accept();
+            } catch (IOException e) {
+                if (open) logger.error("error accepting link", e);
+                return;
+            }
+
+            try {
+                PeerLink l = PeerLink.accept(s, name, this);
+                add(l);
+
+                // reuse for connections to the site, unless it is already
+                // linked.
+                PeerLink old = links.get(l.peer());
+                if (old == null || !old.isOpen()) links.put(l.peer(), l);
+
+            } catch (IOException e) {
+                logger.error("could not complete link from "
+                        + s.getRemoteSocketAddress() + ": " + e);
+            }
+        }
+    }
+
+    public String toString() {
+        return links.values().toString();
+    }
+}
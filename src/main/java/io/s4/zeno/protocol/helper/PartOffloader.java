@@ -24,13 +24,21 @@ import io.s4.zeno.protocol.Connection;
 import io.s4.zeno.resource.FlexibleResource;
 import io.s4.zeno.resource.TimeSliceResource;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Logger;
 
@@ -39,6 +47,20 @@ public class PartOffloader {
     private static final Logger logger = Logger.getLogger(PartOffloader.class);
     private Site site;
 
+    private static final ThreadFactory offloadThreads = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "part-offload");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    // parts must be silent for SILENCE ms before they are sent, and are
+    // given FREEZE_TIMEOUT ms to fall silent.
+    private static final long SILENCE = 5000;
+
+    private static final long FREEZE_TIMEOUT = 30000;
+
     public PartOffloader(Site site) {
         this.site = site;
     }
@@ -58,8 +80,8 @@ public class PartOffloader {
         for (Cluster.Site rs : site.cluster().getAllSites()) {
             if (rs == site) continue; // skip "this" node
 
-            Resource free = TimeSliceResource.fromString(rs.info()
-                                                           .get("resource.free"));
+            Resource free = new TimeSliceResource(site.loadView()
+                                                      .getFree(rs, 0.0));
 
             if (free.canAcceptPartial(wanted)) {
                 resourceMap.put(free, rs);
@@ -72,6 +94,14 @@ public class PartOffloader {
 
     /**
      * Identify and transfer some parts consuming a certain amount of resources
+     * <p>
+     * Capacity is reserved at each taker while it is probed, up to the usage
+     * of the parts not yet planned, so that other sites offloading at the same
+     * time do not plan on it as well. Reservations are committed when parts
+     * are sent, and aborted at takers that are not used. The parts are frozen
+     * before any taker is probed, as waiting for them to fall silent may take
+     * longer than reservations are held; parts left out of the plan are then
+     * resumed.
      * 
      * @param res
      *            FlexibleResource that has to be offloaded from this node.
@@ -102,29 +132,46 @@ public class PartOffloader {
                         + " parts to send");
 
                 if (busyParts.hasNext()) {
+                    if (!PartMap.freezeParts(busyPartsCollection,
+                                             SILENCE,
+                                             FREEZE_TIMEOUT)) {
+                        logger.info("could not freeze parts to send");
+                        return 0;
+                    }
+
                     Part currentPart = null;
                     OffloadPlan plan = new OffloadPlan();
 
+                    // usage of parts not yet planned
+                    double left = timeSlice(busyPartsCollection);
+
                     // 1: offload some parts to each taker
                     for (Cluster.Site taker : takers) {
                         logger.info("trying taker: " + taker.name());
 
                         // connect
-                        Connection conn = Connection.createTo(taker.info());
+                        Connection conn = connect(taker);
                         if (conn == null) continue;
 
                         logger.debug("connected");
 
-                        // get latest free resource report
-                        Sender sender = new Sender(conn);
-                        if (!sender.hello(site.name())) {
+                        // get latest free resource report, and reserve
+                        // some of it
+                        Sender.Reservation r = new Sender(conn).reserve(site.name(),
+                                                                        left);
+                        if (r == null) {
                             logger.info(taker.name() + " rejected connection");
                             continue;
                         }
 
-                        Resource free = sender.getFreeResource();
+                        logger.debug("reservation at " + taker.name() + ": "
+                                + r);
+
+                        if (r.id < 0) continue;
+
+                        plan.reserve(taker, r.id);
 
-                        sender.goodbye();
+                        Resource free = r.free;
 
                         if (nodeFreeReserve != null) {
                             // want to keep atleast nodeFreeReserve
@@ -137,6 +184,11 @@ public class PartOffloader {
                             free.reduce(nodeFreeReserve);
                         }
 
+                        // plan on no more than was reserved
+                        if (free instanceof TimeSliceResource
+                                && ((TimeSliceResource) free).getTimeSlice() > r.granted)
+                            free = new TimeSliceResource(r.granted);
+
                         if (!free.isEmpty()) {
 
                             // send as many parts as we can fit into free
@@ -149,6 +201,7 @@ public class PartOffloader {
 
                                 if (free.canAccept(used)) {
                                     plan.add(taker, currentPart);
+                                    left -= timeSlice(Collections.singletonList(currentPart));
                                     currentPart = null;
 
                                 } else {
@@ -159,6 +212,11 @@ public class PartOffloader {
                         }
                     }
 
+                    // resume parts that are not to be sent.
+                    resumeUnplanned(busyPartsCollection, plan.getAll());
+
+                    plan.abortUnused();
+
                     OffloadPlan remaining = plan.execute();
 
                     logger.info("remaining to offload: " + remaining.toString());
@@ -190,6 +248,9 @@ public class PartOffloader {
 
         HashMap<Cluster.Site, List<Part>> plan;
 
+        // capacity reserved at takers
+        HashMap<Cluster.Site, Long> reservations = new HashMap<Cluster.Site, Long>();
+
         private OffloadPlan(HashMap<Cluster.Site, List<Part>> plan) {
             this.plan = plan;
         }
@@ -207,6 +268,30 @@ public class PartOffloader {
             partList.add(part);
         }
 
+        public void reserve(Cluster.Site host, long id) {
+            reservations.put(host, id);
+        }
+
+        // id of reservation at a taker, or -1.
+        long reservation(Cluster.Site host) {
+            Long id = reservations.get(host);
+            return (id != null ? id : -1);
+        }
+
+        /**
+         * Abort reservations at takers that have no parts in the plan.
+         */
+        public void abortUnused() {
+            Iterator<Cluster.Site> i = reservations.keySet().iterator();
+            while (i.hasNext()) {
+                Cluster.Site taker = i.next();
+                if (!get(taker).isEmpty()) continue;
+
+                abort(taker, reservations.get(taker));
+                i.remove();
+            }
+        }
+
         public List<Part> get(Cluster.Site host) {
             List<Part> ret = plan.get(host);
 
@@ -233,63 +318,61 @@ public class PartOffloader {
             return s;
         }
 
+        /**
+         * Send all parts in the plan, which must have been frozen, to their
+         * takers. Takers
+         * are sent to concurrently, up to {@code offload.parallel} at a time
+         * (default: 4); parts to each taker are pipelined on one connection,
+         * {@code offload.window} ahead of responses (default: 8).
+         * 
+         * @return plan of parts that could not be sent.
+         */
         public OffloadPlan execute() {
             HashMap<Cluster.Site, List<Part>> remaining = new HashMap<Cluster.Site, List<Part>>(plan);
 
-            long silence = 5000;
-            long timeout = 30000;
-            if (PartMap.freezeParts(getAll(), silence, timeout)) {
-
-                for (Cluster.Site taker : plan.keySet()) {
-                    logger.info("sending to taker: " + taker.name());
-
-                    // connect
-                    Connection conn = Connection.createTo(taker.info());
-                    if (conn == null) continue;
-
-                    logger.debug("connected");
-
-                    Sender sender = new Sender(conn);
-                    
-                    if (!sender.hello(site.name())) {
-                        logger.info(taker.name() + " rejected connection");
+            int parallel = Math.max(1,
+                                    Math.min(plan.size(),
+                                             site.spec()
+                                                 .getInt("offload.parallel",
+                                                         4)));
+
+            ExecutorService executor = Executors.newFixedThreadPool(parallel,
+                                                                    offloadThreads);
+
+            HashMap<Cluster.Site, Future<List<Part>>> results = new HashMap<Cluster.Site, Future<List<Part>>>();
+
+            try {
+                for (Cluster.Site taker : plan.keySet())
+                    results.put(taker,
+                                executor.submit(new SendTask(taker,
+                                                             get(taker),
+                                                             reservation(taker))));
+
+                for (Map.Entry<Cluster.Site, Future<List<Part>>> e : results.entrySet()) {
+                    List<Part> failed;
+                    try {
+                        failed = e.getValue().get();
+                    } catch (ExecutionException x) {
+                        logger.error("error sending to taker "
+                                + e.getKey().name(), x.getCause());
                         continue;
                     }
 
-                    int senderCount = 0;
-
-                    List<Part> parts = get(taker);
-
-                    List<Part> failed = new ArrayList<Part>();
-                    for (Part p : parts) {
-                        if (sender.sendPart(p)) {
-                            // managed to send current part
-
-                            logger.debug("sent part " + p.id());
-
-                            site.job().partMap().forget(p);
-
-                            ++senderCount;
-
-                        } else {
-                            logger.info("failed to send part: " + p.id());
-                            failed.add(p);
-                        }
-                    }
-
-                    sender.goodbye();
-
-                    logger.info("sent " + senderCount + " parts to taker "
-                            + taker.name() + ". " + failed.size() + " failed");
-
                     if (failed.size() == 0)
-                        remaining.remove(taker);
+                        remaining.remove(e.getKey());
                     else
-                        remaining.put(taker, failed);
+                        remaining.put(e.getKey(), failed);
                 }
 
+            } catch (InterruptedException e) {
+                logger.info("interrupted while sending parts", e);
+                Thread.currentThread().interrupt();
+
+            } finally {
+                executor.shutdown();
             }
 
+
             return new OffloadPlan(remaining);
         }
 
@@ -305,4 +388,112 @@ public class PartOffloader {
             return s;
         }
     }
+
+    // connection to a site: over a peer link if there is a pool of them.
+    private Connection connect(Cluster.Site taker) {
+        if (site.peerLinks() != null)
+            return site.peerLinks().connect(taker.name(), taker.info());
+
+        return Connection.createTo(taker.info());
+    }
+
+    // directory for part snapshots: "transfer.dir" in site spec, or the
+    // default temporary-file directory.
+    private File snapshotDir() {
+        String dir = site.spec().get("transfer.dir");
+        return (dir != null ? new File(dir) : null);
+    }
+
+    // cancel a reservation at a taker. It expires anyway if this fails.
+    private void abort(Cluster.Site taker, long id) {
+        Connection conn = connect(taker);
+        if (conn == null) return;
+
+        if (!new Sender(conn).abort(site.name(), id))
+            logger.info("could not abort reservation " + id + " at "
+                    + taker.name());
+    }
+
+    // resume frozen parts that are not in the plan.
+    private static void resumeUnplanned(Collection<Part> frozen,
+            Collection<Part> planned) {
+        for (Part p : frozen) {
+            if (!planned.contains(p)) p.unpause();
+        }
+    }
+
+    // total time slice used by parts.
+    private static double timeSlice(Collection<Part> parts) {
+        double t = 0.0;
+        for (Part p : parts) {
+            Resource r = p.resourceUsage();
+            if (r instanceof TimeSliceResource)
+                t += ((TimeSliceResource) r).getTimeSlice();
+        }
+
+        return t;
+    }
+
+    // send parts to one taker. returns the parts that were not sent.
+    private class SendTask implements Callable<List<Part>> {
+        private final Cluster.Site taker;
+
+        private final List<Part> parts;
+
+        private final long reservation;
+
+        SendTask(Cluster.Site taker, List<Part> parts, long reservation) {
+            this.taker = taker;
+            this.parts = parts;
+            this.reservation = reservation;
+        }
+
+        public List<Part> call() {
+            logger.info("sending to taker: " + taker.name());
+
+            // connect
+            Connection conn = connect(taker);
+            if (conn == null) return parts;
+
+            logger.debug("connected");
+
+            Sender sender = new Sender(conn,
+                                       site.spec()
+                                           .getInt("offload.window",
+                                                   Sender.DEFAULT_WINDOW),
+                                       site.registry().getHistogram("part_send"),
+                                       snapshotDir());
+
+            if (!sender.hello(site.name())) {
+                logger.info(taker.name() + " rejected connection");
+                conn.close();
+                return parts;
+            }
+
+            if (reservation >= 0
+                    && !sender.commit(reservation, timeSlice(parts)))
+                logger.info("reservation at " + taker.name()
+                        + " has expired. sending anyway");
+
+            List<Part> sent = sender.sendParts(parts);
+
+            sender.goodbye();
+
+            for (Part p : sent) {
+                logger.debug("sent part " + p.id());
+                site.job().partMap().forget(p);
+            }
+
+            List<Part> failed = new ArrayList<Part>(parts);
+            failed.removeAll(sent);
+
+            for (Part p : failed)
+                logger.info("failed to send part: " + p.id());
+
+            logger.info("sent " + sent.size() + " parts to taker "
+                    + taker.name() + ". " + failed.size() + " failed");
+
+            return failed;
+        }
+    }
 }
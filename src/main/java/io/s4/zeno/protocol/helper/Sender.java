@@ -16,12 +16,19 @@
 package io.s4.zeno.protocol.helper;
 
 import io.s4.zeno.Part;
+import io.s4.zeno.PartSnapshot;
 import io.s4.zeno.Resource;
+import io.s4.zeno.protocol.ChunkedOutputStream;
 import io.s4.zeno.protocol.Command;
 import io.s4.zeno.protocol.Connection;
 import io.s4.zeno.resource.TimeSliceResource;
+import io.s4.zeno.statistics.LogHistogram;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -35,9 +42,21 @@ public class Sender {
     /** The Constant logger. */
     private static final Logger logger = Logger.getLogger(Sender.class);
 
+    /** Data length announced for a chunked part state. */
+    public static final int CHUNKED = -1;
+
+    /** Default number of parts sent ahead of responses. */
+    public static final int DEFAULT_WINDOW = 8;
+
     /** The conn. */
     private Connection conn;
 
+    private final int window;
+
+    private final LogHistogram sendTimes;
+
+    private final File snapshotDir;
+
     /**
      * Instantiates a new sender.
      * 
@@ -45,7 +64,28 @@ public class Sender {
      *            the conn
      */
     public Sender(Connection conn) {
+        this(conn, DEFAULT_WINDOW, null, null);
+    }
+
+    /**
+     * Instantiates a new sender.
+     * 
+     * @param conn
+     *            the conn
+     * @param window
+     *            number of parts that may be sent ahead of responses.
+     * @param sendTimes
+     *            if not null, records the time from sending each part to
+     *            its response (seconds).
+     * @param snapshotDir
+     *            directory for part snapshots, or null for the default.
+     */
+    public Sender(Connection conn, int window, LogHistogram sendTimes,
+            File snapshotDir) {
         this.conn = conn;
+        this.window = Math.max(1, window);
+        this.sendTimes = sendTimes;
+        this.snapshotDir = snapshotDir;
     }
 
     public boolean hello(String name) {
@@ -64,6 +104,145 @@ public class Sender {
         return false;
     }
 
+    /**
+     * Capacity reserved at a receiver.
+     */
+    public static class Reservation {
+        /** Free resource at the receiver, before the reservation. */
+        public final Resource free;
+
+        /** Id of the reservation, or -1 if nothing was reserved. */
+        public final long id;
+
+        /** Time slice reserved. */
+        public final double granted;
+
+        Reservation(Resource free, long id, double granted) {
+            this.free = free;
+            this.id = id;
+            this.granted = granted;
+        }
+
+        public String toString() {
+            return "free=" + free + " id=" + id + " granted=" + granted;
+        }
+    }
+
+    /**
+     * Handshake, get the free resource, reserve up to an amount of it and say
+     * goodbye, all in one round trip. The reservation expires after a lease
+     * set by the receiver, unless it is committed with
+     * {@link #commit(long, double)} in a later session. The connection is
+     * closed.
+     * 
+     * @param name
+     *            name of this site.
+     * @param amount
+     *            time slice wanted.
+     * @return the reservation, or null if the receiver rejected the
+     *         connection.
+     */
+    public Reservation reserve(String name, double amount) {
+        try {
+            conn.out.println(name + '\n' + Command.GetFree + '\n'
+                    + Command.Reserve + '\n' + amount + '\n' + Command.Bye);
+
+            String response = conn.in.readLine();
+            logger.debug("handshake response: " + response);
+
+            if (response == null || !response.equals("OK")) return null;
+
+            Resource free = TimeSliceResource.fromString(conn.in.readLine());
+
+            response = conn.in.readLine();
+            logger.debug("reserve response: " + response);
+
+            long id = -1;
+            double granted = 0.0;
+
+            String[] f = (response != null ? response.split(" ") : new String[0]);
+            if (f.length == 3 && f[0].equals("OK")) {
+                try {
+                    id = Long.parseLong(f[1]);
+                    granted = Double.parseDouble(f[2]);
+                } catch (NumberFormatException e) {
+                    logger.error("malformed reserve response: " + response);
+                    id = -1;
+                    granted = 0.0;
+                }
+            }
+
+            return new Reservation(free, id, granted);
+
+        } catch (IOException e) {
+            logger.error("error while reserving at taker: " + e);
+            return null;
+
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Commit a reservation to the parts about to be sent in this session, and
+     * cut it down to what they use. Parts are still sent if the reservation
+     * has expired; they are then admitted against what is free at the
+     * receiver.
+     * 
+     * @param id
+     *            id of the reservation.
+     * @param amount
+     *            time slice used by the parts.
+     * @return true if the reservation was still held.
+     */
+    public boolean commit(long id, double amount) {
+        try {
+            conn.out.println(Command.Commit.toString() + '\n' + id + '\n'
+                    + amount);
+
+            String response = conn.in.readLine();
+            logger.debug("commit response: " + response);
+
+            return "OK".equals(response);
+
+        } catch (IOException e) {
+            logger.error("error while committing reservation: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Handshake, cancel a reservation and say goodbye, all in one round trip.
+     * The connection is closed.
+     * 
+     * @param name
+     *            name of this site.
+     * @param id
+     *            id of the reservation.
+     * @return true if the reservation was released.
+     */
+    public boolean abort(String name, long id) {
+        try {
+            conn.out.println(name + '\n' + Command.Abort + '\n' + id + '\n'
+                    + Command.Bye);
+
+            String response = conn.in.readLine();
+            if (response == null || !response.equals("OK")) return false;
+
+            response = conn.in.readLine();
+            logger.debug("abort response: " + response);
+
+            return "OK".equals(response);
+
+        } catch (IOException e) {
+            logger.error("error while aborting reservation: " + e);
+            return false;
+
+        } finally {
+            conn.close();
+        }
+    }
+
     /**
      * Goodbye.
      */
@@ -94,39 +273,124 @@ public class Sender {
     }
 
     /**
-     * Send part to a receiver.
+     * Send parts to a receiver. The state of each part follows its TakePart
+     * command on the data socket:
+     * 
+     * <pre>
+     *     TakePart
+     *     PARTID
+     *     LENGTH
+     *     USAGE
+     * </pre>
+     * 
+     * USAGE is the time slice used by the part, against which the receiver
+     * admits it.
+     * 
+     * If the part makes a {@link PartSnapshot}, LENGTH is its size and the
+     * file is transferred as is. Otherwise LENGTH is -1 and the state is
+     * streamed in chunks (see {@link ChunkedOutputStream}).
+     * 
+     * Parts are pipelined: up to {@code window} of them are sent before the
+     * response to the first one is read. Responses come in the order in which
+     * parts were sent.
      * 
-     * @param part
-     *            the part
-     * @return true, if successful
+     * @param parts
+     *            parts to send. Each one is paused before it is sent.
+     * @return parts that were taken by the receiver.
      */
-    public boolean sendPart(Part part) {
+    public List<Part> sendParts(List<Part> parts) {
+        List<Part> taken = new ArrayList<Part>();
+
+        LinkedList<Part> inFlight = new LinkedList<Part>();
+        LinkedList<Long> started = new LinkedList<Long>();
+
         try {
-            // first pause the part. It may already be paused, but that's OK
-            part.pause();
+            for (Part part : parts) {
+                while (inFlight.size() >= window)
+                    collect(inFlight, started, taken);
 
-            // then send it over
-            byte[] data = part.getData();
+                started.add(System.nanoTime());
+                inFlight.add(part);
 
-            logger.debug("sending part " + part.id());
+                send(part);
+            }
 
-            String command = Command.TakePart.toString() + '\n' + part.id()
-                    + '\n' + data.length;
-            conn.out.println(command);
+            while (!inFlight.isEmpty())
+                collect(inFlight, started, taken);
 
-            logger.debug(command);
+        } catch (IOException e) {
+            logger.error("error while sending part data: " + e + ". "
+                    + inFlight.size() + " parts unacknowledged");
+        }
 
-            // conn.dataOut.write(data);
-            // conn.dataOut.flush();
+        return taken;
+    }
 
-            String response = conn.in.readLine();
-            logger.debug("got response: " + response);
+    // send command and state of a part, without waiting for a response.
+    private void send(Part part) throws IOException {
+        // first pause the part. It may already be paused, but that's OK
+        part.pause();
 
-            return (response != null && response.equals("OK"));
+        logger.debug("sending part " + part.id());
 
-        } catch (IOException e) {
-            logger.error("error while sending part data: " + e);
-            return false;
+        // parts with large state ship a snapshot of known length, straight
+        // from file to socket.
+        PartSnapshot snapshot = part.snapshot(snapshotDir);
+        if (snapshot != null) {
+            try {
+                String command = takePart(part, snapshot.length());
+                conn.out.println(command);
+
+                logger.debug(command);
+
+                snapshot.transferTo(conn.dataChannel());
+                conn.dataOut.flush();
+
+            } finally {
+                snapshot.delete();
+            }
+
+            return;
         }
+
+        String command = takePart(part, CHUNKED);
+        conn.out.println(command);
+
+        logger.debug(command);
+
+        // then stream its state
+        ChunkedOutputStream data = new ChunkedOutputStream(conn.dataOut);
+        part.writeState(data);
+        data.close();
+    }
+
+    // TakePart command for a part with state of given length.
+    private static String takePart(Part part, long length) {
+        double usage = ((TimeSliceResource) part.resourceUsage()).getTimeSlice();
+
+        return Command.TakePart.toString() + '\n' + part.id() + '\n' + length
+                + '\n' + usage;
+    }
+
+    // read the response for the oldest part in flight.
+    private void collect(LinkedList<Part> inFlight, LinkedList<Long> started,
+            List<Part> taken) throws IOException {
+        String response = conn.in.readLine();
+        logger.debug("got response: " + response);
+
+        if (response == null)
+            throw new IOException("connection closed by receiver");
+
+        Part part = inFlight.removeFirst();
+        long start = started.removeFirst();
+
+        if (sendTimes != null)
+            sendTimes.record((System.nanoTime() - start) * 1e-9);
+
+        if (response.equals("OK"))
+            taken.add(part);
+        else
+            logger.info("receiver did not take part " + part.id() + ": "
+                    + response);
     }
-}
\ No newline at end of file
+}
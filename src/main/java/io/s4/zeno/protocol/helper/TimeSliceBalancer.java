@@ -94,7 +94,7 @@ public class TimeSliceBalancer {
         HashMap<String, Double> nodeFree = new HashMap<String, Double>();
 
         for (Cluster.Site rs : allSites) {
-            double f = rs.info().getDouble("resource.free", -1.0);
+            double f = site.loadView().getFree(rs, -1.0);
 
             logger.debug("advertised free resources for " + rs.name() + ": "
                     + f);
@@ -193,20 +193,20 @@ public class FlexibleTimeSliceResource extends TimeSliceResource implements
     }
 
     /**
-     * Lo.
+     * Least amount of resource that is acceptable.
      * 
-     * @return the double
+     * @return time slice less the lower margin.
      */
-    private double lo() {
+    public double lo() {
         return timeSlice - marginLo;
     }
 
     /**
-     * Hi.
+     * Amount of resource that must not be reached.
      * 
-     * @return the double
+     * @return time slice plus the upper margin.
      */
-    private double hi() {
+    public double hi() {
         return timeSlice + marginHi;
     }
 
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.resource;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Time slice promised to work that is not yet reflected in the load of a
+ * site, e.g. parts being received. Each reservation expires after a lease,
+ * by which time the load monitors are expected to have caught up with the
+ * work, or the work has not come.
+ * <p>
+ * Reservations are made against a measured free time slice with
+ * {@link #tryReserve(long, double, double, long)}, which admits a demand only
+ * if it fits into what is free less what is already reserved. Concurrent receivers
+ * thus cannot together admit more than is free.
+ * <p>
+ * A reservation may be drawn on by later ones: e.g. capacity reserved for a
+ * sender ahead of a transfer is moved to each part as it arrives.
+ */
+public class ResourceLedger {
+    private static final Logger logger = Logger.getLogger(ResourceLedger.class);
+
+    private static class Entry {
+        double amount;
+
+        long expiry;
+
+        Entry(double amount, long expiry) {
+            this.amount = amount;
+            this.expiry = expiry;
+        }
+    }
+
+    private final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+
+    private long nextId = 1;
+
+    private double reserved = 0.0;
+
+    /**
+     * Reserve a time slice, drawing first on an existing reservation. What is
+     * not covered by that reservation must fit into what is free.
+     * 
+     * @param from
+     *            id of reservation to draw on, or -1 for none.
+     * @param free
+     *            free time slice, as measured.
+     * @param amount
+     *            time slice to reserve.
+     * @param lease
+     *            ms after which the new reservation expires.
+     * @return id of the new reservation, or -1 if it does not fit. Nothing
+     *         is drawn in that case.
+     */
+    public synchronized long tryReserve(long from, double free, double amount,
+            long lease) {
+        expire();
+
+        double a = Math.max(0.0, amount);
+
+        Entry e = (from >= 0 ? entries.get(from) : null);
+        double drawn = (e != null ? Math.min(e.amount, a) : 0.0);
+
+        if (a > drawn && reserved - drawn + a > free) {
+            logger.debug("cannot reserve " + amount + ": free=" + free
+                    + " reserved=" + reserved + " drawn=" + drawn);
+            return -1;
+        }
+
+        if (e != null) {
+            e.amount -= drawn;
+            reserved -= drawn;
+        }
+
+        return add(a, lease);
+    }
+
+    /**
+     * Reserve as much of a time slice as fits into what is free less what is
+     * already reserved.
+     * 
+     * @return id of the reservation, or -1 if nothing fits.
+     */
+    public synchronized long reserveUpTo(double free, double amount, long lease) {
+        expire();
+
+        double a = Math.min(amount, free - reserved);
+        if (a <= 0.0) return -1;
+
+        return add(a, lease);
+    }
+
+    /**
+     * Extend a reservation.
+     * 
+     * @param id
+     *            id of reservation
+     * @param lease
+     *            ms from now after which it expires.
+     * @return true if the reservation was still held.
+     */
+    public synchronized boolean renew(long id, long lease) {
+        expire();
+
+        Entry e = entries.get(id);
+        if (e == null) return false;
+
+        e.expiry = System.currentTimeMillis() + lease;
+        return true;
+    }
+
+    /**
+     * Cut a reservation down to an amount, and extend it.
+     * 
+     * @param id
+     *            id of reservation
+     * @param amount
+     *            time slice to keep, at most what is reserved.
+     * @param lease
+     *            ms from now after which it expires.
+     * @return true if the reservation was still held.
+     */
+    public synchronized boolean trim(long id, double amount, long lease) {
+        if (!renew(id, lease)) return false;
+
+        Entry e = entries.get(id);
+        double a = Math.max(0.0, Math.min(e.amount, amount));
+
+        reserved -= e.amount - a;
+        e.amount = a;
+
+        return true;
+    }
+
+    /**
+     * Time slice held by a reservation.
+     * 
+     * @return amount reserved, or 0 if the reservation is not held.
+     */
+    public synchronized double amount(long id) {
+        expire();
+
+        Entry e = entries.get(id);
+        return (e != null ? e.amount : 0.0);
+    }
+
+    /**
+     * Cancel a reservation before it expires.
+     * 
+     * @return true if the reservation was still held.
+     */
+    public synchronized boolean release(long id) {
+        Entry e = entries.remove(id);
+        if (e == null) return false;
+
+        reserved -= e.amount;
+        if (entries.isEmpty()) reserved = 0.0;
+
+        return true;
+    }
+
+    /**
+     * Total time slice reserved and not expired.
+     */
+    public synchronized double reserved() {
+        expire();
+        return reserved;
+    }
+
+    private long add(double amount, long lease) {
+        long id = nextId++;
+        double a = Math.max(0.0, amount);
+
+        entries.put(id, new Entry(a, System.currentTimeMillis() + lease));
+        reserved += a;
+
+        return id;
+    }
+
+    private void expire() {
+        if (entries.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+
+        Iterator<Entry> i = entries.values().iterator();
+        while (i.hasNext()) {
+            Entry e = i.next();
+            if (e.expiry <= now) {
+                reserved -= e.amount;
+                i.remove();
+            }
+        }
+
+        // no drift from adding and subtracting.
+        if (entries.isEmpty()) reserved = 0.0;
+    }
+
+    public synchronized String toString() {
+        return "reserved " + reserved + " in " + entries.size();
+    }
+}
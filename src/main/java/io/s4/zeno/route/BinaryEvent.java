@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.route;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Binary framing of an event. An event is sent as a fixed size header
+ * followed by its payload:
+ * 
+ * <pre>
+ *     FRAME   := MAGIC VERSION FLAGS GROUP KEY SIZE PAYLOAD
+ *     MAGIC   := 0xB5
+ *     VERSION := 1
+ *     FLAGS   := bit 0 set if the event was held in a queue
+ *     GROUP   := 4 bytes, big-endian
+ *     KEY     := 4 bytes, big-endian
+ *     SIZE    := size of PAYLOAD: 2 bytes, big-endian
+ *     PAYLOAD := LENGTH, followed by bytes reserved for later versions
+ *     LENGTH  := event length (processing time): 8 byte IEEE 754 double,
+ *                big-endian
+ * </pre>
+ * 
+ * Receivers read all fields straight from the frame, without parsing any
+ * text, and skip payload bytes they do not know.
+ * 
+ * The magic byte cannot start a text event or a batch (see
+ * {@link EventBatch}), so receivers can tell the formats apart by the first
+ * byte. A site advertises the formats it can receive through the
+ * {@link #FORMAT_PROPERTY} property in its info.
+ */
+public class BinaryEvent {
+
+    /** First byte of a binary event. */
+    public static final byte MAGIC = (byte) 0xB5;
+
+    /** Current version of the framing. */
+    public static final byte VERSION = 1;
+
+    /** Flag: the event was held in a queue before being sent. */
+    public static final byte FLAG_QUEUED = 0x01;
+
+    /** Size of header in bytes. */
+    public static final int HEADER = 13;
+
+    /** Size of the payload written by this version, in bytes. */
+    public static final int PAYLOAD = 8;
+
+    /** Size of a frame written by this version, in bytes. */
+    public static final int FRAME = HEADER + PAYLOAD;
+
+    /** Site info property listing the event format accepted by a site. */
+    public static final String FORMAT_PROPERTY = "event.format";
+
+    /** Name of the binary format. */
+    public static final String FORMAT_BINARY = "binary";
+
+    /** Name of the text format. */
+    public static final String FORMAT_TEXT = "text";
+
+    private BinaryEvent() {
+    }
+
+    /**
+     * Write an event frame into an array.
+     * 
+     * @param dst
+     *            destination array. Must have at least {@link #FRAME} bytes
+     *            after {@code offset}.
+     * @param offset
+     *            start of frame in dst.
+     * @param group
+     *            event group
+     * @param key
+     *            event key
+     * @param length
+     *            event length
+     * @param flags
+     *            flags
+     * @return number of bytes written.
+     */
+    public static int write(byte[] dst, int offset, int group, int key,
+            double length, byte flags) {
+        int p = offset;
+
+        dst[p++] = MAGIC;
+        dst[p++] = VERSION;
+        dst[p++] = flags;
+        p = putInt(dst, p, group);
+        p = putInt(dst, p, key);
+        dst[p++] = (byte) (PAYLOAD >>> 8);
+        dst[p++] = (byte) PAYLOAD;
+
+        long bits = Double.doubleToLongBits(length);
+        p = putInt(dst, p, (int) (bits >>> 32));
+        p = putInt(dst, p, (int) bits);
+
+        return p - offset;
+    }
+
+    private static int putInt(byte[] dst, int p, int v) {
+        dst[p++] = (byte) (v >>> 24);
+        dst[p++] = (byte) (v >>> 16);
+        dst[p++] = (byte) (v >>> 8);
+        dst[p++] = (byte) v;
+        return p;
+    }
+
+    /**
+     * Does a buffer region hold a binary event?
+     */
+    public static boolean isBinary(ByteBuffer buf, int offset, int length) {
+        return length > 0 && buf.get(offset) == MAGIC;
+    }
+
+    /**
+     * Does an array region hold a binary event?
+     */
+    public static boolean isBinary(byte[] buf, int offset, int length) {
+        return length > 0 && buf[offset] == MAGIC;
+    }
+
+    /**
+     * Check that a buffer region holds a complete frame of a known version.
+     * 
+     * @return true if the frame is valid.
+     */
+    public static boolean isValid(ByteBuffer buf, int offset, int length) {
+        if (length < HEADER || buf.get(offset) != MAGIC
+                || buf.get(offset + 1) != VERSION) return false;
+
+        int size = payloadSize(buf, offset);
+        return size >= PAYLOAD && HEADER + size <= length;
+    }
+
+    /** Flags of a frame starting at offset. */
+    public static byte flags(ByteBuffer buf, int offset) {
+        return buf.get(offset + 2);
+    }
+
+    /** Group of a frame starting at offset. */
+    public static int group(ByteBuffer buf, int offset) {
+        return buf.getInt(offset + 3);
+    }
+
+    /** Key of a frame starting at offset. */
+    public static int key(ByteBuffer buf, int offset) {
+        return buf.getInt(offset + 7);
+    }
+
+    /** Payload size of a frame starting at offset. */
+    public static int payloadSize(ByteBuffer buf, int offset) {
+        return ((buf.get(offset + 11) & 0xFF) << 8)
+                | (buf.get(offset + 12) & 0xFF);
+    }
+
+    /** Event length of a frame starting at offset. */
+    public static double length(ByteBuffer buf, int offset) {
+        return buf.getDouble(offset + HEADER);
+    }
+}
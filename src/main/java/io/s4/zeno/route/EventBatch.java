@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.route;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A number of events packed into a single datagram. Events sent to the same
+ * destination are accumulated in a reusable buffer and sent together, saving
+ * one datagram (and one system call) per event.
+ * <p>
+ * A single text event is sent as its data followed by a one-byte flag. A
+ * single binary event (see {@link BinaryEvent}) is sent as its frame, which
+ * carries its own flags. A batch starts with a marker byte which cannot start
+ * an event, followed by the events, each prefixed with its length:
+ * 
+ * <pre>
+ *     BATCH  := MARKER ENTRY*
+ *     ENTRY  := LENGTH DATA FLAG
+ *     DATA   := text event or binary event frame
+ *     LENGTH := length of DATA: 2 bytes, big-endian
+ *     FLAG   := 1 if the event was held in a queue, 0 otherwise
+ * </pre>
+ */
+public class EventBatch {
+
+    /** First byte of a batched datagram. */
+    public static final byte MARKER = (byte) 0xFE;
+
+    /** Largest payload that fits into a UDP datagram. */
+    public static final int MAX_DATAGRAM = 65507;
+
+    // per-entry overhead: length + flag
+    private static final int OVERHEAD = 3;
+
+    private final byte[] buf;
+
+    private int size = 0;
+
+    private int count = 0;
+
+    // time at which the first event was added to the batch
+    private long firstTime = 0;
+
+    /**
+     * Create a batch with a fixed capacity.
+     * 
+     * @param capacity
+     *            maximum size of the batched datagram in bytes. Capped at
+     *            {@link #MAX_DATAGRAM}
+     */
+    public EventBatch(int capacity) {
+        this.buf = new byte[Math.min(Math.max(capacity, OVERHEAD + 1),
+                                     MAX_DATAGRAM)];
+        clear();
+    }
+
+    /**
+     * Append an event to the batch.
+     * 
+     * @param data
+     *            event data
+     * @param flag
+     *            flag byte to be sent with the event
+     * @return true if the event was added. False if there is not enough space
+     *         left in the batch.
+     */
+    public boolean add(byte[] data, byte flag) {
+        int n = data.length;
+
+        if (n > 0xFFFF || size + n + OVERHEAD > buf.length) return false;
+
+        if (count == 0) firstTime = System.currentTimeMillis();
+
+        buf[size++] = (byte) (n >>> 8);
+        buf[size++] = (byte) n;
+        System.arraycopy(data, 0, buf, size, n);
+        size += n;
+        buf[size++] = flag;
+
+        ++count;
+
+        return true;
+    }
+
+    /**
+     * Append an event to the batch as a binary frame.
+     * 
+     * @param group
+     *            event group
+     * @param key
+     *            event key
+     * @param length
+     *            event length
+     * @param flags
+     *            flags for the binary frame. The entry flag is derived from
+     *            these.
+     * @return true if the event was added. False if there is not enough space
+     *         left in the batch.
+     * @see BinaryEvent
+     */
+    public boolean addBinary(int group, int key, double length, byte flags) {
+        int n = BinaryEvent.FRAME;
+
+        if (size + n + OVERHEAD > buf.length) return false;
+
+        if (count == 0) firstTime = System.currentTimeMillis();
+
+        buf[size++] = (byte) (n >>> 8);
+        buf[size++] = (byte) n;
+        size += BinaryEvent.write(buf, size, group, key, length, flags);
+        buf[size++] = (byte) (flags & BinaryEvent.FLAG_QUEUED);
+
+        ++count;
+
+        return true;
+    }
+
+    /**
+     * Can an event of a certain length ever fit into a batch of this
+     * capacity?
+     * 
+     * @param length
+     *            length of event data
+     * @return true if the event fits into an empty batch.
+     */
+    public boolean fits(int length) {
+        return length <= 0xFFFF && 1 + length + OVERHEAD <= buf.length;
+    }
+
+    /**
+     * Reset the batch for reuse. The buffer is retained.
+     */
+    public void clear() {
+        buf[0] = MARKER;
+        size = 1;
+        count = 0;
+        firstTime = 0;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Number of events in the batch.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Number of bytes in the batch, including the marker.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The underlying buffer. Valid data is in the range {@code [0, size())}.
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Time elapsed since the oldest event in the batch was added.
+     * 
+     * @return age in milliseconds. 0 if the batch is empty.
+     */
+    public long age() {
+        return (count == 0 ? 0 : System.currentTimeMillis() - firstTime);
+    }
+
+    /**
+     * Receiver of events unpacked from a datagram.
+     */
+    public interface Handler {
+        /**
+         * Handle an event.
+         * 
+         * @param buf
+         *            buffer containing event.
+         * @param offset
+         *            start of event data in {@code buf}
+         * @param length
+         *            length of event data, excluding the flag. A binary event is
+         *            passed on as its whole frame.
+         * @param queued
+         *            true if the event was held in a queue before being sent.
+         */
+        void handle(byte[] buf, int offset, int length, boolean queued);
+    }
+
+    /**
+     * Receiver of events unpacked from a datagram held in a
+     * {@link ByteBuffer}.
+     */
+    public interface BufferHandler {
+        /**
+         * Handle an event.
+         * 
+         * @param buf
+         *            buffer containing event. The position and limit of the
+         *            buffer should not be changed.
+         * @param offset
+         *            absolute index of start of event data in {@code buf}
+         * @param length
+         *            length of event data, excluding the flag. A binary event is
+         *            passed on as its whole frame.
+         * @param queued
+         *            true if the event was held in a queue before being sent.
+         */
+        void handle(ByteBuffer buf, int offset, int length, boolean queued);
+    }
+
+    /**
+     * Is a datagram a batch of events?
+     */
+    public static boolean isBatch(byte[] buf, int offset, int length) {
+        return length > 0 && buf[offset] == MARKER;
+    }
+
+    /**
+     * Unpack events from a datagram and pass them to a handler. Both batched
+     * and single-event datagrams are handled.
+     * 
+     * @param buf
+     *            datagram data
+     * @param offset
+     *            start of datagram data in {@code buf}
+     * @param length
+     *            length of datagram
+     * @param handler
+     *            receiver of the unpacked events.
+     * @return number of events unpacked. -1 if the datagram is malformed;
+     *         events preceding the malformed portion are still passed on.
+     */
+    public static int unpack(byte[] buf, int offset, int length,
+            Handler handler) {
+        if (length <= 0) return 0;
+
+        if (BinaryEvent.isBinary(buf, offset, length)) {
+            handler.handle(buf,
+                           offset,
+                           length,
+                           length > 2
+                                   && (buf[offset + 2] & BinaryEvent.FLAG_QUEUED) != 0);
+            return 1;
+        }
+
+        if (!isBatch(buf, offset, length)) {
+            handler.handle(buf,
+                           offset,
+                           length - 1,
+                           buf[offset + length - 1] == (byte) 1);
+            return 1;
+        }
+
+        int end = offset + length;
+        int p = offset + 1;
+        int n = 0;
+
+        while (p < end) {
+            if (p + 2 > end) return -1;
+
+            int len = ((buf[p] & 0xFF) << 8) | (buf[p + 1] & 0xFF);
+            p += 2;
+
+            if (p + len + 1 > end) return -1;
+
+            handler.handle(buf, p, len, buf[p + len] == (byte) 1);
+
+            p += len + 1;
+            ++n;
+        }
+
+        return n;
+    }
+
+    /**
+     * Unpack events from a datagram held in a buffer and pass them to a
+     * handler. Data between the position and limit of the buffer is unpacked.
+     * The buffer itself is not modified.
+     * 
+     * @see #unpack(byte[], int, int, Handler)
+     */
+    public static int unpack(ByteBuffer buf, BufferHandler handler) {
+        int offset = buf.position();
+        int end = buf.limit();
+
+        if (end <= offset) return 0;
+
+        if (BinaryEvent.isBinary(buf, offset, end - offset)) {
+            handler.handle(buf,
+                           offset,
+                           end - offset,
+                           end - offset > 2
+                                   && (buf.get(offset + 2) & BinaryEvent.FLAG_QUEUED) != 0);
+            return 1;
+        }
+
+        if (buf.get(offset) != MARKER) {
+            handler.handle(buf,
+                           offset,
+                           end - offset - 1,
+                           buf.get(end - 1) == (byte) 1);
+            return 1;
+        }
+
+        int p = offset + 1;
+        int n = 0;
+
+        while (p < end) {
+            if (p + 2 > end) return -1;
+
+            int len = ((buf.get(p) & 0xFF) << 8) | (buf.get(p + 1) & 0xFF);
+            p += 2;
+
+            if (p + len + 1 > end) return -1;
+
+            handler.handle(buf, p, len, buf.get(p + len) == (byte) 1);
+
+            p += len + 1;
+            ++n;
+        }
+
+        return n;
+    }
+}
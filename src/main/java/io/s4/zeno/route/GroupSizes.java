@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.route;
+
+import io.s4.zeno.Part;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+
+/**
+ * Number of parts in each group, inferred from the highest part key seen in
+ * the group. Immutable; lookups do not allocate.
+ */
+class GroupSizes {
+
+    // sorted group numbers and corresponding sizes.
+    private final int[] groups;
+
+    private final int[] sizes;
+
+    GroupSizes() {
+        this.groups = new int[0];
+        this.sizes = new int[0];
+    }
+
+    GroupSizes(List<Part.Id> partIds) {
+        TreeMap<Integer, Integer> gsz = new TreeMap<Integer, Integer>();
+
+        for (Part.Id id : partIds) {
+            Integer g = id.group;
+            int k = id.key;
+
+            if (!gsz.containsKey(g) || (gsz.get(g).intValue() <= k)) {
+                gsz.put(g, k + 1);
+            }
+        }
+
+        this.groups = new int[gsz.size()];
+        this.sizes = new int[gsz.size()];
+
+        int i = 0;
+        for (Integer g : gsz.keySet()) {
+            groups[i] = g;
+            sizes[i] = gsz.get(g);
+            ++i;
+        }
+    }
+
+    /**
+     * Number of parts in a group.
+     * 
+     * @return number of parts, or 0 if the group is unknown.
+     */
+    int get(int group) {
+        int i = Arrays.binarySearch(groups, group);
+        return (i >= 0 ? sizes[i] : 0);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < groups.length; ++i) {
+            if (i > 0) sb.append(", ");
+            sb.append(groups[i]).append('=').append(sizes[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
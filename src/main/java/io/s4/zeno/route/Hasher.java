@@ -21,7 +21,18 @@ import java.util.List;
 
 
 public interface Hasher {
+    /** Returned by {@link #hashIndex(int, int)} if no part is found. */
+    long NO_PART = -1L;
+
     Part.Id hash(int group, int key);
 
+    /**
+     * Find the part for an event without allocating an Id.
+     * 
+     * @return the part id packed with {@link Part.Id#pack(int, int)}, or
+     *         {@link #NO_PART} if the group is unknown.
+     */
+    long hashIndex(int group, int key);
+
     void rebuild(List<Part.Id> partIds);
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.route;
+
+import io.s4.zeno.config.ConfigMap;
+import io.s4.zeno.util.ZenoError;
+
+
+/**
+ * Construct a {@link Hasher} based on a specification:
+ * 
+ * <pre>
+ *     "route.hasher"    "modulo": {@link ModuloHasher}
+ *                       "jump": {@link JumpHasher}
+ *                       Default: modulo
+ * </pre>
+ * 
+ * All emitters and sites of a cluster must use the same hasher, or events
+ * will be sent to parts that do not expect them.
+ */
+public class HasherFactory {
+
+    public static final String MODULO = "modulo";
+
+    public static final String JUMP = "jump";
+
+    private final String type;
+
+    public HasherFactory(ConfigMap spec) {
+        String t = spec.get("route.hasher");
+        this.type = (t == null || t.length() == 0 ? MODULO : t);
+    }
+
+    public Hasher getInstance() {
+        if (MODULO.equals(type)) return new ModuloHasher();
+        if (JUMP.equals(type)) return new JumpHasher();
+
+        throw new ZenoError("unknown hasher type in route.hasher: " + type);
+    }
+}
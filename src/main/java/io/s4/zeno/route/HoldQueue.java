@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.route;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Queue of events held while a route is paused. Any number of threads may add
+ * events; a single thread removes them.
+ * <p>
+ * Events are kept in a bounded ring buffer in memory. The number of events and
+ * the number of bytes in the ring are both bounded. Once either bound is
+ * reached, further events are appended to a {@link SpillFile}, and they
+ * continue to go there until the queue is drained, so that events are removed
+ * in the order in which they were added.
+ * <p>
+ * Events may be removed while others are being added. Before the final
+ * drain, the queue is closed. A closed queue refuses new events, so that the
+ * caller can send them directly instead. Closing waits for additions in
+ * progress to complete, so that none are left behind after the queue has been
+ * drained. A closed queue may be reopened if it has to hold events again.
+ */
+public class HoldQueue {
+    private static final Logger logger = Logger.getLogger(HoldQueue.class);
+
+    // ring buffer. sequence numbers mark slots as free or full, as in a
+    // bounded MPMC queue.
+    private final AtomicReferenceArray<byte[]> ring;
+
+    private final AtomicLongArray sequence;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(0);
+
+    // only accessed by the consumer.
+    private long head = 0;
+
+    private final long maxBytes;
+
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    private final AtomicInteger depth = new AtomicInteger(0);
+
+    // set once the ring overflows. cleared when the queue is drained.
+    private volatile boolean spilling = false;
+
+    // guarded by spill.
+    private final SpillFile spill;
+
+    private final AtomicLong spilled = new AtomicLong(0);
+
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private volatile boolean closed = false;
+
+    // number of additions in progress. Also the monitor on which close()
+    // waits for them.
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    /** Maximum ms for which {@link #close()} waits for additions. */
+    public static final long CLOSE_TIMEOUT = 5000;
+
+    /**
+     * Create a hold queue.
+     * 
+     * @param capacity
+     *            maximum number of events in memory. Rounded up to a power of
+     *            two.
+     * @param maxBytes
+     *            maximum number of bytes in memory.
+     * @param spillDir
+     *            directory for spill file.
+     * @param segmentSize
+     *            size of mapped spill file segments.
+     */
+    public HoldQueue(int capacity, long maxBytes, File spillDir,
+            int segmentSize) {
+        int cap = 2;
+        while (cap < capacity)
+            cap <<= 1;
+
+        this.ring = new AtomicReferenceArray<byte[]>(cap);
+        this.sequence = new AtomicLongArray(cap);
+        this.mask = cap - 1;
+
+        for (int i = 0; i < cap; ++i)
+            sequence.set(i, i);
+
+        this.maxBytes = maxBytes;
+        this.spill = new SpillFile(spillDir, segmentSize);
+    }
+
+    /**
+     * Add an event to the queue.
+     * 
+     * @param data
+     *            event. The array is retained, and must not be modified
+     *            afterwards.
+     * @return false if the queue has been closed. The event has not been
+     *         added, and should be sent right away.
+     */
+    public boolean offer(byte[] data) {
+        pending.incrementAndGet();
+
+        try {
+            if (closed) return false;
+
+            if (!spilling) {
+                if (bytes.addAndGet(data.length) <= maxBytes && push(data)) {
+                    depth.incrementAndGet();
+                    return true;
+                }
+
+                bytes.addAndGet(-data.length);
+
+                if (!spilling) {
+                    spilling = true;
+                    logger.info("hold queue full (" + depth.get()
+                            + " events, " + bytes.get()
+                            + " bytes). spilling to disk.");
+                }
+            }
+
+            synchronized (spill) {
+                try {
+                    spill.append(data);
+                    spilled.incrementAndGet();
+
+                    // the queue may have been drained meanwhile.
+                    spilling = true;
+
+                } catch (IOException e) {
+                    logger.error("error spilling held event. dropping: " + e);
+                    dropped.incrementAndGet();
+                }
+            }
+
+            return true;
+
+        } finally {
+            // the last addition to complete after the queue was closed wakes
+            // up close().
+            if (pending.decrementAndGet() == 0 && closed) {
+                synchronized (pending) {
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop accepting events, and wait for additions in progress to complete.
+     * Events added before this returns can then be drained with
+     * {@link #poll()}. Waits at most {@value #CLOSE_TIMEOUT} ms, e.g. for
+     * additions held up writing to the spill file.
+     * 
+     * @return false if additions were still in progress when the wait timed
+     *         out. Their events may be left behind.
+     */
+    public boolean close() {
+        closed = true;
+
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        boolean interrupted = false;
+
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    logger.warn("closed hold queue with " + pending.get()
+                            + " additions still in progress");
+                    break;
+                }
+
+                try {
+                    pending.wait(left);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+
+        return pending.get() == 0;
+    }
+
+    /**
+     * Accept events again after {@link #close()}.
+     */
+    public void reopen() {
+        closed = false;
+    }
+
+    /**
+     * Has the queue been closed?
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Remove the oldest event from the queue. Only one thread may call this.
+     * 
+     * @return the event, or null if the queue is empty.
+     */
+    public byte[] poll() {
+        byte[] data = pop();
+
+        if (data != null) {
+            depth.decrementAndGet();
+            bytes.addAndGet(-data.length);
+            return data;
+        }
+
+        // events in the ring are older than those in the spill file.
+        if (spilling) {
+            synchronized (spill) {
+                data = spill.next();
+                if (data != null) return data;
+
+                // the ring is empty and so is the spill file.
+                spill.release();
+                spilling = false;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Discard all events and delete the spill file.
+     */
+    public void release() {
+        while (pop() != null)
+            ;
+
+        depth.set(0);
+        bytes.set(0);
+
+        synchronized (spill) {
+            spill.release();
+        }
+    }
+
+    /**
+     * Number of events held in memory.
+     */
+    public int depth() {
+        return depth.get();
+    }
+
+    /**
+     * Number of bytes held in memory.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Number of events in the spill file.
+     */
+    public long spillDepth() {
+        synchronized (spill) {
+            return spill.count();
+        }
+    }
+
+    /**
+     * Number of bytes in the spill file.
+     */
+    public long spillBytes() {
+        synchronized (spill) {
+            return spill.bytes();
+        }
+    }
+
+    /**
+     * Total number of events spilled to disk.
+     */
+    public long spilled() {
+        return spilled.get();
+    }
+
+    /**
+     * Total number of events dropped because they could not be spilled.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public String toString() {
+        return "depth=" + depth() + " bytes=" + bytes() + " spilled="
+                + spilled() + " dropped=" + dropped();
+    }
+
+    // add to ring. false if full.
+    private boolean push(byte[] data) {
+        while (true) {
+            long pos = tail.get();
+            int i = (int) pos & mask;
+            long d = sequence.get(i) - pos;
+
+            if (d == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    ring.set(i, data);
+                    sequence.lazySet(i, pos + 1);
+                    return true;
+                }
+
+            } else if (d < 0) {
+                return false;
+            }
+        }
+    }
+
+    // remove from ring. null if empty.
+    private byte[] pop() {
+        int i = (int) head & mask;
+
+        if (sequence.get(i) != head + 1) return null;
+
+        byte[] data = ring.get(i);
+        ring.set(i, null);
+        sequence.lazySet(i, head + mask + 1);
+        ++head;
+
+        return data;
+    }
+}
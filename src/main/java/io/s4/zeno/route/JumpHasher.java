@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.route;
+
+import io.s4.zeno.Part;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Map keys to parts using jump consistent hashing (Lamping and Veach, "A
+ * Fast, Minimal Memory, Consistent Hash Algorithm").
+ * <p>
+ * Within a group of {@code n} parts numbered {@code 0, 1, ..., n-1}, a key is
+ * mapped to part {@code jump(mix(key), n)}. When the group grows from
+ * {@code n} to {@code n+1} parts, only about {@code 1/(n+1)} of the keys move,
+ * all of them to the new part. In contrast, {@link ModuloHasher} remaps almost
+ * every key.
+ * <p>
+ * The number of parts in a group is inferred from the highest part key seen
+ * in that group, as in {@link ModuloHasher}.
+ */
+public class JumpHasher implements Hasher {
+    private static final Logger logger = Logger.getLogger(JumpHasher.class);
+
+    private volatile GroupSizes groupSize = new GroupSizes();
+
+    @Override
+    public Part.Id hash(int group, int key) {
+        long i = hashIndex(group, key);
+
+        if (i != NO_PART) return Part.Id.unpack(i);
+
+        return null;
+    }
+
+    @Override
+    public long hashIndex(int group, int key) {
+        int g = groupSize.get(group);
+
+        if (g > 0) {
+            return Part.Id.pack(group, jump(mix(key), g));
+        }
+
+        return NO_PART;
+    }
+
+    @Override
+    public void rebuild(List<Part.Id> partIds) {
+        GroupSizes gsz = new GroupSizes(partIds);
+
+        groupSize = gsz;
+        logger.debug(gsz);
+    }
+
+    /**
+     * Jump consistent hash.
+     * 
+     * @param key
+     *            64 bit key
+     * @param buckets
+     *            number of buckets. Must be positive.
+     * @return bucket in the range {@code [0, buckets)}
+     */
+    public static int jump(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+
+        return (int) b;
+    }
+
+    /**
+     * Spread the bits of a key. Keys are often small consecutive integers,
+     * which are poor seeds for the generator used by {@link #jump(long, int)}.
+     */
+    static long mix(int key) {
+        long z = (key & 0xFFFFFFFFL) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -17,7 +17,6 @@ package io.s4.zeno.route;
 
 import io.s4.zeno.Part;
 
-import java.util.HashMap;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -26,32 +25,32 @@ import org.apache.log4j.Logger;
 public class ModuloHasher implements Hasher {
     private static final Logger logger = Logger.getLogger(ModuloHasher.class);
 
-    private volatile HashMap<Integer, Integer> groupSize = new HashMap<Integer, Integer>();
+    private volatile GroupSizes groupSize = new GroupSizes();
 
     @Override
     public Part.Id hash(int group, int key) {
-        Integer g = groupSize.get(group);
+        long i = hashIndex(group, key);
 
-        if (g != null) {
-            return new Part.Id(group, key % g.intValue());
-        }
+        if (i != NO_PART) return Part.Id.unpack(i);
 
         return null;
     }
 
     @Override
-    public void rebuild(List<Part.Id> partIds) {
-        HashMap<Integer, Integer> gsz = new HashMap<Integer, Integer>();
+    public long hashIndex(int group, int key) {
+        int g = groupSize.get(group);
 
-        for (Part.Id id : partIds) {
-            Integer g = id.group;
-            int k = id.key;
-
-            if (!gsz.containsKey(g) || (gsz.get(g).intValue() <= k)) {
-                gsz.put(g, k+1);
-            }
+        if (g > 0) {
+            return Part.Id.pack(group, key % g);
         }
 
+        return NO_PART;
+    }
+
+    @Override
+    public void rebuild(List<Part.Id> partIds) {
+        GroupSizes gsz = new GroupSizes(partIds);
+
         groupSize = gsz;
         logger.debug(gsz);
     }
@@ -33,8 +33,27 @@ public interface Router {
      */
     boolean send(int group, int key, byte[] data);
 
+    /**
+     * Send an event given its length, without formatting it as text where
+     * the destination accepts binary events.
+     * 
+     * @param group
+     *            the group
+     * @param key
+     *            the key
+     * @param length
+     *            the event length
+     * @return true, if successful
+     */
+    boolean send(int group, int key, double length);
+
     /**
      * Load.
      */
     void load();
+
+    /**
+     * Send out any events that are waiting to be batched.
+     */
+    void flush();
 }
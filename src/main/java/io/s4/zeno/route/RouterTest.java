@@ -15,6 +15,8 @@
  */
 package io.s4.zeno.route;
 
+import io.s4.zeno.config.ConfigMap;
+import io.s4.zeno.config.JSONConfigMap;
 import io.s4.zeno.config.ZKPaths;
 import io.s4.zeno.util.ZooKeeperHelper;
 
@@ -57,7 +59,10 @@ public class RouterTest {
             }
         });
 
-        RouterTest test = new RouterTest(zk, arg[1]);
+        ConfigMap spec = (arg.length > 3 ? new JSONConfigMap(arg[3])
+                : new JSONConfigMap());
+
+        RouterTest test = new RouterTest(zk, arg[1], spec);
 
         test.dump();
         // test.test1();
@@ -73,7 +78,21 @@ public class RouterTest {
      *            the base
      */
     public RouterTest(ZooKeeper zk, String base) {
-        router = new ZKRouter(new ZooKeeperHelper(zk, 3, 5000), new ZKPaths(base), new ModuloHasher());
+        this(zk, base, new JSONConfigMap());
+    }
+
+    /**
+     * Instantiates a new router test with router parameters.
+     * 
+     * @param zk
+     *            the zk
+     * @param base
+     *            the base
+     * @param spec
+     *            router configuration, e.g. batching parameters.
+     */
+    public RouterTest(ZooKeeper zk, String base, ConfigMap spec) {
+        router = new ZKRouter(new ZooKeeperHelper(zk, 3, 5000), new ZKPaths(base), new HasherFactory(spec).getInstance(), spec);
         router.load();
     }
 
@@ -104,6 +123,8 @@ public class RouterTest {
             t.interrupt();
 
         tset = new HashSet<Thread>();
+
+        router.flush();
     }
 
     /**
@@ -160,7 +181,7 @@ public class RouterTest {
         /** The ts. */
         final int ts;
 
-        final String message;
+        final double tp;
 
         /** The t. */
         Thread t;
@@ -179,7 +200,7 @@ public class RouterTest {
             this.group = group;
             this.key = key;
             this.ts = ts;
-            this.message = group + " " + key + " " + tp;
+            this.tp = tp;
         }
 
         /*
@@ -192,7 +213,7 @@ public class RouterTest {
                 while (tset.contains(t)) {
                     Thread.sleep(ts);
 
-                    if (!router.send(group, key, message.getBytes())) {
+                    if (!router.send(group, key, tp)) {
                         System.out.println("SEND failed for group=" + group + " key=" + key);
                     }
                 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.route;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Append-only file of records, written and read through memory-mapped
+ * segments. Records are read back in the order in which they were appended.
+ * The file is created lazily on the first append and deleted on
+ * {@link #release()}.
+ * <p>
+ * Not thread-safe.
+ * 
+ * <pre>
+ *     RECORD := LENGTH DATA
+ *     LENGTH := length of DATA: 4 bytes
+ * </pre>
+ */
+public class SpillFile {
+    private static final Logger logger = Logger.getLogger(SpillFile.class);
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private File file = null;
+
+    private RandomAccessFile raf = null;
+
+    private FileChannel channel = null;
+
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+    // segment being read.
+    private int readSegment = 0;
+
+    private int readPos = 0;
+
+    private long count = 0;
+
+    private long bytes = 0;
+
+    /**
+     * Create a spill file.
+     * 
+     * @param dir
+     *            directory in which the file is created.
+     * @param segmentSize
+     *            size of each mapped segment in bytes. Records do not span
+     *            segments, so this is at least as large as the largest
+     *            datagram.
+     */
+    public SpillFile(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = Math.max(segmentSize, EventBatch.MAX_DATAGRAM + 4);
+    }
+
+    /**
+     * Append a record.
+     * 
+     * @param data
+     *            record data
+     * @throws IOException
+     *             if the file could not be created or extended.
+     */
+    public void append(byte[] data) throws IOException {
+        MappedByteBuffer seg = (segments.isEmpty() ? null
+                : segments.get(segments.size() - 1));
+
+        if (seg == null || seg.remaining() < data.length + 4) {
+            seg = extend();
+        }
+
+        seg.putInt(data.length);
+        seg.put(data);
+
+        ++count;
+        bytes += data.length;
+    }
+
+    /**
+     * Read the next record.
+     * 
+     * @return record data, or null if all records have been read.
+     */
+    public byte[] next() {
+        while (readSegment < segments.size()) {
+            MappedByteBuffer seg = segments.get(readSegment);
+
+            // segments are written sequentially, so the write position of a
+            // segment marks the end of its data.
+            if (readPos + 4 <= seg.position()) {
+                int n = seg.getInt(readPos);
+                byte[] data = new byte[n];
+
+                ByteBuffer b = seg.duplicate();
+                b.position(readPos + 4);
+                b.get(data);
+
+                readPos += 4 + n;
+
+                --count;
+                bytes -= n;
+
+                return data;
+            }
+
+            if (readSegment == segments.size() - 1) break;
+
+            ++readSegment;
+            readPos = 0;
+        }
+
+        return null;
+    }
+
+    /**
+     * Number of records appended but not yet read.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Number of data bytes appended but not yet read.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Close and delete the file. Unread records are discarded.
+     */
+    public void release() {
+        segments.clear();
+        readSegment = 0;
+        readPos = 0;
+        count = 0;
+        bytes = 0;
+
+        if (channel != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.error("error closing spill file " + file + ": " + e);
+            }
+
+            // mapped segments are unmapped when they are garbage collected.
+            if (!file.delete()) {
+                logger.warn("could not delete spill file " + file);
+                file.deleteOnExit();
+            }
+
+            logger.info("released spill file " + file);
+        }
+
+        file = null;
+        raf = null;
+        channel = null;
+    }
+
+    // map a new segment at the end of the file.
+    private MappedByteBuffer extend() throws IOException {
+        if (channel == null) {
+            file = File.createTempFile("zeno-hold-", ".spill", dir);
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+
+            logger.info("spilling held events to " + file);
+        }
+
+        long offset = (long) segments.size() * segmentSize;
+
+        MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_WRITE,
+                                           offset,
+                                           segmentSize);
+        segments.add(seg);
+
+        return seg;
+    }
+}
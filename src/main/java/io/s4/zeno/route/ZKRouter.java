@@ -16,25 +16,39 @@
 package io.s4.zeno.route;
 
 import io.s4.zeno.Part;
+import io.s4.zeno.config.ConfigMap;
+import io.s4.zeno.config.JSONConfigMap;
 import io.s4.zeno.config.ZKPaths;
+import io.s4.zeno.monitor.SiteMetrics;
+import io.s4.zeno.service.EventParser;
+import io.s4.zeno.util.LongTable;
+import io.s4.zeno.util.ZKFuture;
 import io.s4.zeno.util.ZenoError;
 import io.s4.zeno.util.ZooKeeperHelper;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
@@ -67,6 +81,108 @@ public class ZKRouter implements Router {
     /** The data socket. */
     private DatagramSocket dataSocket = null;
 
+    /**
+     * Maximum size of a batched datagram, in bytes. Batching is disabled if
+     * this is 0.
+     */
+    private final int batchSize;
+
+    /** Maximum time (ms) for which an event may wait in a batch. */
+    private final long batchLinger;
+
+    /** Maximum number of held events in memory, per route. */
+    private final int holdCapacity;
+
+    /** Maximum number of held bytes in memory, per route. */
+    private final long holdBytes;
+
+    /** Directory for files to which held events overflow. */
+    private final File spillDir;
+
+    /** Size of mapped segments of spill files. */
+    private final int spillSegment;
+
+    /** Replays held events after a hold is released. */
+    private final ScheduledExecutorService replayer;
+
+    /**
+     * If true, new events for a route wait behind the held events being
+     * replayed. Otherwise, they are sent right away.
+     */
+    private final boolean replayPriority;
+
+    /** Number of held events replayed at a time, per route. */
+    private final int replaySliceSize;
+
+    /** Interval between replay slices. */
+    private final long replayIntervalMs;
+
+    /**
+     * Send events in binary format to destinations which accept it. If false,
+     * all events are sent as text.
+     */
+    private final boolean binaryEnabled;
+
+    /** Sends out batches that have been waiting for too long. */
+    private ScheduledExecutorService flusher = null;
+
+    /**
+     * Buffer and packet used by a thread to send single events. This avoids
+     * allocating a new array and packet for each event.
+     */
+    private static class SendBuffer {
+        private byte[] data = new byte[1024];
+
+        private final DatagramPacket packet = new DatagramPacket(data, 0);
+
+        /**
+         * Copy event data and flag into the buffer.
+         * 
+         * @return packet wrapping the buffer.
+         */
+        DatagramPacket wrap(byte[] event, byte flag) {
+            int n = event.length + 1;
+
+            ensure(n);
+
+            System.arraycopy(event, 0, data, 0, event.length);
+            data[event.length] = flag;
+
+            packet.setData(data, 0, n);
+
+            return packet;
+        }
+
+        /**
+         * Write event as a binary frame into the buffer.
+         * 
+         * @return packet wrapping the buffer.
+         */
+        DatagramPacket wrapBinary(int group, int key, double length,
+                byte flags) {
+            ensure(BinaryEvent.FRAME);
+
+            int n = BinaryEvent.write(data, 0, group, key, length, flags);
+
+            packet.setData(data, 0, n);
+
+            return packet;
+        }
+
+        /** Parses the length out of text events sent to binary routes. */
+        final EventParser parser = new EventParser();
+
+        private void ensure(int n) {
+            if (data.length < n) data = new byte[Math.max(n, 2 * data.length)];
+        }
+    }
+
+    private final ThreadLocal<SendBuffer> sendBuffer = new ThreadLocal<SendBuffer>() {
+        protected SendBuffer initialValue() {
+            return new SendBuffer();
+        }
+    };
+
     /**
      * The Class Route.
      */
@@ -78,8 +194,35 @@ public class ZKRouter implements Router {
         /** The address. */
         private SocketAddress address = null;
 
-        /** The queue. */
-        private LinkedList<DatagramPacket> queue = null;
+        /** The address, as host:port. */
+        private volatile String dest = null;
+
+        /** Does the destination accept binary events? */
+        private volatile boolean binary = false;
+
+        /** Events held while the route is on hold. */
+        private volatile HoldQueue queue = null;
+
+        /**
+         * Set while held events are being replayed in priority mode. New
+         * events are queued behind the backlog till it has been replayed.
+         */
+        private volatile boolean replaying = false;
+
+        /** Guards changes to hold state and the queue. */
+        private final Object holdLock = new Object();
+
+        /**
+         * Incremented when the route is put on hold, to stop replays in
+         * progress. Guarded by holdLock.
+         */
+        private int drainGeneration = 0;
+
+        /** Events waiting to be sent together. Guarded by this. */
+        private EventBatch batch = null;
+
+        /** Packet used for sending batches. Guarded by this. */
+        private DatagramPacket batchPacket = null;
 
         /**
          * Instantiates a new route.
@@ -106,50 +249,188 @@ public class ZKRouter implements Router {
         /**
          * Send.
          * 
+         * @param group
+         *            the group
+         * @param key
+         *            the key
          * @param data
          *            the data
          * @return true, if successful
          */
-        public boolean send(byte[] data) {
-            byte[] packetData = Arrays.copyOf(data, data.length + 1);
-
-            if (hold) {
+        public boolean send(int group, int key, byte[] data) {
+            if (hold || replaying) {
+                // held events are always queued as text: they may be released
+                // to a destination which does not accept binary events.
+                byte[] packetData = Arrays.copyOf(data, data.length + 1);
                 packetData[packetData.length - 1] = (byte) 1;
-                DatagramPacket packet = new DatagramPacket(packetData,
-                                                           packetData.length);
 
-                LinkedList<DatagramPacket> q = queue;
-                if (q == null) {
-                    logger.warn("SEND failed: hold queue is null");
-                    return false;
+                HoldQueue q = queue;
+                if (q != null && q.offer(packetData)) {
+                    logger.debug("packet added to queue");
+                    return true;
                 }
 
-                // We are either appending to the queue,
-                // or dequeuing, never both. So no need to synchronize
-                q.add(packet);
+                // the hold was released while we were adding, and the queue
+                // has been closed, so send directly.
+            }
+
+            SocketAddress a = address;
+            if (a == null) {
+                logger.warn("SEND failed: destination address is null");
+                return false;
+            }
 
-                logger.debug("packet added to queue");
+            SendBuffer sb = sendBuffer.get();
 
-            } else {
-                DatagramPacket packet = new DatagramPacket(packetData,
-                                                           packetData.length);
+            // the length is parsed once here, rather than at the receiver.
+            if (binary
+                    && sb.parser.parseLength(ByteBuffer.wrap(data),
+                                             0,
+                                             data.length))
+                return sendBinary(group, key, sb.parser.length(), a);
+
+            if (batchSize > 0) return sendBatched(group, key, data, 0.0, false);
 
+            return sendPacket(sb.wrap(data, (byte) 0), a);
+        }
+
+        /**
+         * Send an event given its length, as a binary frame if the destination
+         * accepts it.
+         * 
+         * @param group
+         *            the group
+         * @param key
+         *            the key
+         * @param length
+         *            the event length
+         * @return true, if successful
+         */
+        public boolean send(int group, int key, double length) {
+            SocketAddress a = address;
+
+            if (hold || replaying || !binary || a == null)
+                return send(group, key, (group + " " + key + " " + length).getBytes());
+
+            return sendBinary(group, key, length, a);
+        }
+
+        private boolean sendBinary(int group, int key, double length,
+                SocketAddress a) {
+            if (batchSize > 0) return sendBatched(group, key, null, length, true);
+
+            return sendPacket(sendBuffer.get().wrapBinary(group,
+                                                          key,
+                                                          length,
+                                                          (byte) 0), a);
+        }
+
+        /**
+         * Add an event to the batch for this route. The batch is sent out if
+         * it is full.
+         * 
+         * @param group
+         *            the group
+         * @param key
+         *            the key
+         * @param data
+         *            the data, for a text event
+         * @param length
+         *            the event length, for a binary event
+         * @param binary
+         *            add event as a binary frame
+         * @return true, if successful
+         */
+        private synchronized boolean sendBatched(int group, int key,
+                byte[] data, double length, boolean binary) {
+            if (batch == null) {
+                batch = new EventBatch(batchSize);
+                batchPacket = new DatagramPacket(batch.buffer(), 0);
+            }
+
+            int n = (binary ? BinaryEvent.FRAME : data.length);
+
+            if (!batch.fits(n)) {
+                // too large to be batched. send it by itself, but after
+                // whatever is already waiting.
+                boolean ok = flush();
                 SocketAddress a = address;
-                if (a == null) {
-                    logger.warn("SEND failed: destination address is null");
-                    return false;
-                }
+                if (a == null) return false;
 
-                packet.setSocketAddress(a);
+                DatagramPacket packet = (binary ? sendBuffer.get()
+                                                           .wrapBinary(group,
+                                                                       key,
+                                                                       length,
+                                                                       (byte) 0)
+                        : sendBuffer.get().wrap(data, (byte) 0));
 
-                try {
-                    dataSocket.send(packet);
-                    logger.debug("sent packet");
+                return sendPacket(packet, a) && ok;
+            }
 
-                } catch (Exception e) {
-                    logger.error("SEND failed: " + e);
-                    return false;
-                }
+            if (addToBatch(group, key, data, length, binary)) return true;
+
+            // batch is full.
+            boolean ok = flush();
+            addToBatch(group, key, data, length, binary);
+
+            return ok;
+        }
+
+        private boolean addToBatch(int group, int key, byte[] data,
+                double length, boolean binary) {
+            return (binary ? batch.addBinary(group, key, length, (byte) 0)
+                    : batch.add(data, (byte) 0));
+        }
+
+        /**
+         * Send out all events waiting in the batch.
+         * 
+         * @return true, if successful
+         */
+        public synchronized boolean flush() {
+            if (batch == null || batch.isEmpty()) return true;
+
+            SocketAddress a = address;
+            if (a == null) {
+                logger.warn("Purging batch of " + batch.count()
+                        + " events: address is null");
+                batch.clear();
+                return false;
+            }
+
+            batchPacket.setData(batch.buffer(), 0, batch.size());
+            boolean ok = sendPacket(batchPacket, a);
+
+            batch.clear();
+
+            return ok;
+        }
+
+        /**
+         * Send out the batch if it has been waiting for some time.
+         * 
+         * @param linger
+         *            time in milliseconds.
+         */
+        synchronized void flushIfOlder(long linger) {
+            if (batch != null && batch.age() >= linger) flush();
+        }
+
+        /**
+         * Send a packet to an address.
+         * 
+         * @return true, if successful
+         */
+        private boolean sendPacket(DatagramPacket packet, SocketAddress a) {
+            packet.setSocketAddress(a);
+
+            try {
+                dataSocket.send(packet);
+                logger.debug("sent packet");
+
+            } catch (Exception e) {
+                logger.error("SEND failed: " + e);
+                return false;
             }
 
             return true;
@@ -159,7 +440,7 @@ public class ZKRouter implements Router {
          * Sets the address.
          * 
          * @param dest
-         *            the new address
+         *            the new address, as {@code host:port}
          * @throws IOException
          *             Signals that an I/O exception has occurred.
          */
@@ -180,13 +461,27 @@ public class ZKRouter implements Router {
                 throw new IOException("Malformed host-port " + dest);
             }
 
+            // batched events go to the destination they were sent to.
+            flush();
+
             address = destSock;
+            this.dest = dest;
+            updateFormat();
+        }
+
+        /**
+         * Look up the format accepted by the destination.
+         */
+        void updateFormat() {
+            String d = dest;
+            binary = binaryEnabled && d != null && binaryDests.contains(d);
         }
 
         /**
          * Unset address.
          */
         public void unsetAddress() {
+            flush();
             address = null;
         }
 
@@ -196,54 +491,159 @@ public class ZKRouter implements Router {
          * @return true, if successful
          */
         public boolean setHold() {
-            if (hold) return false;
-
-            if (queue == null) queue = new LinkedList<DatagramPacket>();
+            synchronized (holdLock) {
+                if (hold) return false;
+
+                // stop any drain in progress. events not yet drained stay
+                // ahead of the ones held from now on.
+                ++drainGeneration;
+                replaying = false;
+
+                HoldQueue q = queue;
+                if (q == null)
+                    queue = new HoldQueue(holdCapacity,
+                                          holdBytes,
+                                          spillDir,
+                                          spillSegment);
+                else
+                    q.reopen();
+
+                hold = true;
+            }
 
-            hold = true;
+            // events batched before the hold are not held back.
+            flush();
 
             return true;
         }
 
         /**
-         * Unset hold.
+         * Unset hold. Held events are replayed in the background by the
+         * replay executor.
          * 
          * @return true, if successful
          */
         public boolean unsetHold() {
-            if (!hold) return false;
+            synchronized (holdLock) {
+                if (!hold) return false;
 
-            // unhold it right away. new events will not be queued
-            hold = false;
+                HoldQueue q = queue;
 
-            boolean error = false;
+                if (q == null) {
+                    hold = false;
+                    return true;
+                }
 
-            LinkedList<DatagramPacket> q = queue;
-            if (q != null) {
-                DatagramPacket packet;
+                if (replayPriority) {
+                    // keep queueing new events behind the backlog.
+                    replaying = true;
+                    hold = false;
+                } else {
+                    // unhold it right away. new events will not be queued
+                    hold = false;
+                    q.close();
+                }
+
+                replayer.execute(new Replay(drainGeneration));
+            }
+
+            return true;
+        }
+
+        /**
+         * Discard the route after its part has been removed. Held events are
+         * dropped.
+         */
+        public void discard() {
+            synchronized (holdLock) {
+                ++drainGeneration;
+                replaying = false;
+                hold = false;
+
+                HoldQueue q = queue;
+                queue = null;
+
+                if (q != null) {
+                    q.close();
+                    logger.warn("dropping hold queue of removed part: " + q);
+                    q.release();
+                }
+            }
+
+            unsetAddress();
+        }
+
+        /**
+         * Replays a slice of held events, and reschedules itself till the hold
+         * queue is empty. Stops if the route is put on hold again.
+         */
+        private class Replay implements Runnable {
+            private final int generation;
+
+            private final DatagramPacket packet = new DatagramPacket(new byte[0],
+                                                                     0);
+
+            Replay(int generation) {
+                this.generation = generation;
+            }
+
+            public void run() {
+                synchronized (holdLock) {
+                    if (generation != drainGeneration || hold) return;
+
+                    HoldQueue q = queue;
+                    if (q == null) return;
+
+                    if (replaySlice(q, replaySliceSize)) {
+                        replayer.schedule(this,
+                                          replayIntervalMs,
+                                          TimeUnit.MILLISECONDS);
+                        return;
+                    }
+
+                    if (replaying) {
+                        // new events go out directly from now on. send the
+                        // ones that got in before the queue was closed.
+                        q.close();
+                        replaying = false;
+
+                        while (replaySlice(q, Integer.MAX_VALUE))
+                            ;
+                    }
+
+                    logger.info("released hold queue: " + q);
+                    q.release();
+                    queue = null;
+                }
+            }
+
+            /**
+             * Send up to n events from the queue.
+             * 
+             * @return true if there may be more events in the queue.
+             */
+            private boolean replaySlice(HoldQueue q, int n) {
+                for (int i = 0; i < n; ++i) {
+                    byte[] data = q.poll();
+                    if (data == null) return false;
 
-                // if route is put on hold mid-way, we will stop sending.
-                while (!hold && !q.isEmpty()) {
-                    packet = q.remove();
                     SocketAddress a = address;
                     if (a != null) {
                         try {
+                            packet.setData(data);
                             packet.setSocketAddress(a);
                             dataSocket.send(packet);
 
                         } catch (Exception e) {
                             logger.error("Error sending queued item: " + e);
-                            error = true;
                         }
                     } else {
                         logger.warn("Purging packet: address is null");
                     }
                 }
-            }
-
-            queue = null;
 
-            return !error;
+                return true;
+            }
         }
 
         /*
@@ -252,8 +652,10 @@ public class ZKRouter implements Router {
          * @see java.lang.Object#toString()
          */
         public String toString() {
+            HoldQueue q = queue;
             return (address != null ? address.toString() : "NULL") + ':'
-                    + (hold ? "hold" : "pass");
+                    + (hold ? "hold" : "pass") + (binary ? ":binary" : "")
+                    + (q != null ? "[" + q + "]" : "");
         }
     }
 
@@ -266,6 +668,53 @@ public class ZKRouter implements Router {
      *            the base
      */
     public ZKRouter(ZooKeeperHelper zookeeper, ZKPaths zkpath, Hasher hasher) {
+        this(zookeeper, zkpath, hasher, new JSONConfigMap());
+    }
+
+    /**
+     * Instantiates a new zK router with batching, format, hold queue and replay
+     * parameters read from a config map:
+     * 
+     * <pre>
+     *     "router.batch.size"    maximum size of a batched datagram in bytes.
+     *                            Default: 0, i.e. no batching.
+     *     "router.batch.linger"  maximum time (ms) for which an event may wait
+     *                            in a batch. Default: 5
+     *     "router.format"        "auto": send binary events to destinations
+     *                            that accept them, text to others.
+     *                            "text": send only text events.
+     *                            Default: auto
+     *     "router.hold.capacity" maximum number of events held in memory per
+     *                            paused route. Default: 8192
+     *     "router.hold.bytes"    maximum number of bytes held in memory per
+     *                            paused route. Default: 8MB
+     *     "router.spill.dir"     directory for files to which held events
+     *                            overflow. Default: java.io.tmpdir
+     *     "router.spill.segment" size of mapped spill file segments in bytes.
+     *                            Default: 16MB
+     *     "router.replay.rate"   maximum rate (events/s) at which held events
+     *                            of a route are replayed after the hold is
+     *                            released. 0 for no limit. Default: 0
+     *     "router.replay.mode"   "interleave": new events are sent right away,
+     *                            while held events are replayed.
+     *                            "priority": new events are queued till held
+     *                            events have been replayed.
+     *                            Default: interleave
+     *     "router.replay.threads" number of threads replaying held events.
+     *                            Default: 2
+     * </pre>
+     * 
+     * @param zookeeper
+     *            the zookeeper
+     * @param zkpath
+     *            the zkpath
+     * @param hasher
+     *            the hasher
+     * @param spec
+     *            the config map
+     */
+    public ZKRouter(ZooKeeperHelper zookeeper, ZKPaths zkpath, Hasher hasher,
+            ConfigMap spec) {
         this.zookeeper = zookeeper;
         this.zkpath = zkpath;
         this.routeUpdater = new RouteUpdater();
@@ -273,17 +722,100 @@ public class ZKRouter implements Router {
 
         this.hasher = hasher;
 
+        this.batchSize = Math.max(0, spec.getInt("router.batch.size", 0));
+        this.batchLinger = Math.max(1L, spec.getLong("router.batch.linger", 5L));
+        this.binaryEnabled = !BinaryEvent.FORMAT_TEXT.equals(spec.get("router.format"));
+
+        this.holdCapacity = spec.getInt("router.hold.capacity", 8192);
+        this.holdBytes = spec.getLong("router.hold.bytes", 8L << 20);
+        this.spillSegment = spec.getInt("router.spill.segment", 16 << 20);
+
+        String dir = spec.get("router.spill.dir");
+        this.spillDir = new File(dir != null && dir.length() > 0 ? dir
+                : System.getProperty("java.io.tmpdir"));
+
+        this.replayPriority = "priority".equals(spec.get("router.replay.mode"));
+
+        // replay in slices of about 10ms worth of events.
+        int rate = spec.getInt("router.replay.rate", 0);
+        if (rate <= 0) {
+            this.replaySliceSize = 1000;
+            this.replayIntervalMs = 0;
+        } else if (rate >= 100) {
+            this.replaySliceSize = rate / 100;
+            this.replayIntervalMs = 10;
+        } else {
+            this.replaySliceSize = 1;
+            this.replayIntervalMs = 1000 / rate;
+        }
+
+        int replayThreads = Math.max(1, spec.getInt("router.replay.threads", 2));
+        this.replayer = Executors.newScheduledThreadPool(replayThreads,
+                                                         daemonThreads("zkrouter-replay"));
+
         try {
             this.dataSocket = new DatagramSocket();
         } catch (SocketException e) {
             logger.error("error creating emission socket: " + e);
             this.dataSocket = null;
         }
+
+        if (batchSize > 0) startFlusher();
+    }
+
+    /**
+     * Factory for named daemon threads, so that router threads do not keep the
+     * process alive.
+     */
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Periodically send out batches that have waited for longer than the
+     * linger time.
+     */
+    private void startFlusher() {
+        flusher = Executors.newSingleThreadScheduledExecutor(daemonThreads("zkrouter-flusher"));
+
+        long period = Math.max(1L, batchLinger / 2);
+
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for (Route r : routeMap.values()) {
+                    r.flushIfOlder(batchLinger);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        logger.info("batching events: size=" + batchSize + " linger="
+                + batchLinger);
     }
 
+    /** Time to wait for routes to be read when loading. */
+    private static final long LOAD_TIMEOUT_MS = 30000;
+
+    /** Parts listed in the last read of the map. Never modified. */
+    private volatile Set<Part.Id> knownParts = new HashSet<Part.Id>();
+
     /** The route map. */
     private ConcurrentHashMap<Part.Id, Route> routeMap = new ConcurrentHashMap<Part.Id, Route>();
 
+    /**
+     * Snapshot of the route map keyed by packed part id, used for lookups on
+     * the send path. Republished whenever a route is added to the route map.
+     */
+    private volatile LongTable<Route> routeTable = new LongTable<Route>(new HashMap<Long, Route>());
+
+    /** Serializes rebuilding of the route table. */
+    private final Object routeTableLock = new Object();
+
     private final Hasher hasher;
 
     /**
@@ -315,20 +847,117 @@ public class ZKRouter implements Router {
      * @see io.s4.zeno.router.Router#send(int, byte[])
      */
     public boolean send(int group, int key, byte[] data) {
-        if (dataSocket != null) {
-            Part.Id id = hasher.hash(group, key);
+        Route r = route(group, key);
+        return (r != null && r.send(group, key, data));
+    }
 
-            if (id == null) return false;
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.route.Router#send(int, int, double)
+     */
+    public boolean send(int group, int key, double length) {
+        Route r = route(group, key);
+        return (r != null && r.send(group, key, length));
+    }
 
-            Route r = routeMap.get(id);
+    private Route route(int group, int key) {
+        if (dataSocket == null) return null;
 
-            if (r == null)
-                return false;
-            else
-                return r.send(data);
+        long id = hasher.hashIndex(group, key);
+        if (id == Hasher.NO_PART) return null;
+
+        return routeTable.get(id);
+    }
+
+    /**
+     * Number of events held in memory, over all routes.
+     */
+    public long holdDepth() {
+        long n = 0;
+        for (Route r : routeMap.values()) {
+            HoldQueue q = r.queue;
+            if (q != null) n += q.depth();
+        }
+        return n;
+    }
+
+    /**
+     * Number of bytes held in memory, over all routes.
+     */
+    public long holdBytes() {
+        long n = 0;
+        for (Route r : routeMap.values()) {
+            HoldQueue q = r.queue;
+            if (q != null) n += q.bytes();
         }
+        return n;
+    }
 
-        return false;
+    /**
+     * Number of held events waiting in spill files, over all routes.
+     */
+    public long spillDepth() {
+        long n = 0;
+        for (Route r : routeMap.values()) {
+            HoldQueue q = r.queue;
+            if (q != null) n += q.spillDepth();
+        }
+        return n;
+    }
+
+    /**
+     * Number of held bytes waiting in spill files, over all routes.
+     */
+    public long spillBytes() {
+        long n = 0;
+        for (Route r : routeMap.values()) {
+            HoldQueue q = r.queue;
+            if (q != null) n += q.spillBytes();
+        }
+        return n;
+    }
+
+    /**
+     * Add the depths of hold queues to the metrics of a site:
+     * {@code zeno_router_hold_depth}, {@code zeno_router_hold_bytes},
+     * {@code zeno_router_spill_depth} and {@code zeno_router_spill_bytes}.
+     * 
+     * @param metrics
+     *            metrics of site.
+     */
+    public void exportTo(SiteMetrics metrics) {
+        metrics.register("zeno_router_hold_depth", new SiteMetrics.Gauge() {
+            public double value() {
+                return holdDepth();
+            }
+        });
+        metrics.register("zeno_router_hold_bytes", new SiteMetrics.Gauge() {
+            public double value() {
+                return holdBytes();
+            }
+        });
+        metrics.register("zeno_router_spill_depth", new SiteMetrics.Gauge() {
+            public double value() {
+                return spillDepth();
+            }
+        });
+        metrics.register("zeno_router_spill_bytes", new SiteMetrics.Gauge() {
+            public double value() {
+                return spillBytes();
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see io.s4.zeno.route.Router#flush()
+     */
+    public void flush() {
+        for (Route r : routeMap.values()) {
+            r.flush();
+        }
     }
 
     // //////////////////////////////////////////////////////////
@@ -341,9 +970,158 @@ public class ZKRouter implements Router {
      * @see io.s4.zeno.router.Router#load()
      */
     public void load() {
-        readMap();
+        if (binaryEnabled) listSites();
+        readMap(true);
     }
 
+    // EVENT FORMATS
+    //
+    // Sites listing BinaryEvent.FORMAT_BINARY as their
+    // BinaryEvent.FORMAT_PROPERTY are sent binary events; all others get text.
+    // Route data itself is only host:port, so that routers which do not know
+    // about formats can read it. Formats are read asynchronously, so that
+    // watchers on the zookeeper event thread do not block: the list of sites
+    // is read again only when sites come or go, and the info of a site only
+    // when it changes. Routes send text till the format of their site is
+    // known.
+
+    /** Names of sites whose info is being watched. */
+    private final Set<String> watchedSites = new HashSet<String>();
+
+    /** host:port of each site accepting binary events, by site name. */
+    private final HashMap<String, String> binarySites = new HashMap<String, String>();
+
+    /** host:port of sites accepting binary events. Never modified. */
+    private volatile Set<String> binaryDests = new HashSet<String>();
+
+    // read the list of sites, and the format of sites not seen before.
+    private void listSites() {
+        final ZKFuture<List<String>> f = zookeeper.getChildrenAsync(zkpath.nodeBase,
+                                                                    formatUpdater);
+        f.addListener(new Runnable() {
+            public void run() {
+                List<String> sites;
+                try {
+                    sites = f.result();
+                } catch (KeeperException e) {
+                    logger.error("exception while listing sites at "
+                            + zkpath.nodeBase + ": " + e);
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                List<String> added = new ArrayList<String>();
+                synchronized (binarySites) {
+                    watchedSites.retainAll(sites);
+                    binarySites.keySet().retainAll(sites);
+
+                    for (String name : sites) {
+                        if (watchedSites.add(name)) added.add(name);
+                    }
+                }
+
+                updateFormats();
+
+                for (String name : added)
+                    readFormat(name);
+            }
+        });
+    }
+
+    // read the format of a site from its info.
+    private void readFormat(final String name) {
+        final ZKFuture<byte[]> f = zookeeper.getDataAsync(zkpath.node(name),
+                                                          formatUpdater);
+        f.addListener(new Runnable() {
+            public void run() {
+                byte[] data;
+                try {
+                    data = f.result();
+                } catch (KeeperException.NoNodeException e) {
+                    forgetSite(name);
+                    return;
+                } catch (KeeperException e) {
+                    logger.error("exception while reading event format of site "
+                            + name + ": " + e);
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                String dest = null;
+                if (data != null && data.length > 0) {
+                    ConfigMap info = new JSONConfigMap(new String(data));
+
+                    if (BinaryEvent.FORMAT_BINARY.equals(info.get(BinaryEvent.FORMAT_PROPERTY)))
+                        dest = info.get("IPAddress") + ':'
+                                + info.get("port.event");
+                }
+
+                synchronized (binarySites) {
+                    if (!watchedSites.contains(name)) return;
+
+                    if (dest != null)
+                        binarySites.put(name, dest);
+                    else
+                        binarySites.remove(name);
+                }
+
+                updateFormats();
+            }
+        });
+    }
+
+    private void forgetSite(String name) {
+        synchronized (binarySites) {
+            watchedSites.remove(name);
+            binarySites.remove(name);
+        }
+
+        updateFormats();
+    }
+
+    // update routes to sites whose format has changed.
+    private void updateFormats() {
+        synchronized (binarySites) {
+            Set<String> dests = new HashSet<String>(binarySites.values());
+            if (dests.equals(binaryDests)) return;
+
+            logger.info("sites accepting binary events: " + dests);
+            binaryDests = dests;
+        }
+
+        for (Route r : routeMap.values())
+            r.updateFormat();
+    }
+
+    /** Re-reads formats of sites that come, go or change their info. */
+    private final Watcher formatUpdater = new Watcher() {
+        public void process(WatchedEvent e) {
+            String path = e.getPath();
+            String name = (path != null && path.startsWith(zkpath.nodeBase
+                    + '/') ? path.substring(zkpath.nodeBase.length() + 1)
+                    : null);
+
+            switch (e.getType()) {
+                case NodeChildrenChanged:
+                    listSites();
+                    break;
+
+                case NodeDataChanged:
+                    if (name != null) readFormat(name);
+                    break;
+
+                case NodeDeleted:
+                    if (name != null) forgetSite(name);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    };
+
     /*
      * (non-Javadoc)
      * 
@@ -356,9 +1134,37 @@ public class ZKRouter implements Router {
     }
 
     /**
-     * Read map.
+     * Read map. Only parts that have been added or removed since the last
+     * read are updated. Routes and holds of added parts are read
+     * asynchronously, and applied as the replies arrive.
+     * 
+     * @param wait
+     *            if true, wait for the routes of added parts to be read. Must
+     *            be false when called from a ZooKeeper callback, which would
+     *            otherwise wait for itself.
      */
-    private void readMap() {
+    private void readMap(boolean wait) {
+        CountDownLatch done = diffMap();
+
+        try {
+            if (wait && done != null
+                    && !done.await(LOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warn("timed out waiting for routes to be read");
+            }
+
+        } catch (InterruptedException e) {
+            logger.error("interrupted while reading routes");
+        }
+    }
+
+    /**
+     * Compare the list of parts with the route map, and update routes of parts
+     * that have been added or removed.
+     * 
+     * @return latch counted down as routes and holds of added parts are read.
+     *         null if there are no changes.
+     */
+    private synchronized CountDownLatch diffMap() {
         // scan partsBase
         logger.debug("reading router map from " + zkpath.partsBase);
 
@@ -366,25 +1172,56 @@ public class ZKRouter implements Router {
             List<String> parts = zookeeper.getChildren(zkpath.partsBase
                     + "/items", new Watcher() {
                 public void process(WatchedEvent w) {
-                    readMap();
+                    readMap(false);
                 }
             });
 
-            ArrayList<Part.Id> partIds = new ArrayList<Part.Id>();
+            HashSet<Part.Id> current = new HashSet<Part.Id>();
+            ArrayList<Part.Id> added = new ArrayList<Part.Id>();
 
-            // for each node, check route map and holds.
-            // update routemap
             for (String p : parts) {
                 Part.Id id = Part.Id.fromString(p);
 
-                if (id != null) {
-                    partIds.add(id);
-                    updateDest(zkpath.routeMap(id.toString()));
-                    updateHold(zkpath.routeHold(id.toString()));
+                if (id != null && current.add(id) && !knownParts.contains(id)) {
+                    added.add(id);
                 }
             }
 
-            hasher.rebuild(partIds);
+            ArrayList<Part.Id> removed = new ArrayList<Part.Id>();
+            for (Part.Id id : knownParts) {
+                if (!current.contains(id)) removed.add(id);
+            }
+
+            if (added.isEmpty() && removed.isEmpty()) return null;
+
+            logger.info("parts changed: " + added.size() + " added, "
+                    + removed.size() + " removed");
+
+            // update routemap
+            for (Part.Id id : added) {
+                routeMap.putIfAbsent(id, new Route());
+            }
+
+            knownParts = current;
+
+            for (Part.Id id : removed) {
+                Route r = routeMap.remove(id);
+                if (r != null) r.discard();
+            }
+
+            publishRoutes();
+
+            hasher.rebuild(new ArrayList<Part.Id>(current));
+
+            // read routes and holds of new parts.
+            CountDownLatch done = new CountDownLatch(2 * added.size());
+
+            for (Part.Id id : added) {
+                loadDest(zkpath.routeMap(id.toString()), done);
+                loadHold(zkpath.routeHold(id.toString()), done);
+            }
+
+            return done;
 
         } catch (KeeperException e) {
             logger.error("exception while listing parts: " + e);
@@ -395,6 +1232,127 @@ public class ZKRouter implements Router {
             logger.error("interrupted while listing parts");
         }
 
+        return null;
+    }
+
+    /**
+     * Asynchronously read the destination of a route and watch for changes.
+     * Falls back to {@link #updateDest(String)} on errors.
+     * 
+     * @param path
+     *            the path
+     * @param done
+     *            counted down once the destination has been read.
+     */
+    private void loadDest(final String path, final CountDownLatch done) {
+        final ZKFuture<byte[]> f = zookeeper.getDataAsync(path, routeUpdater);
+
+        f.addListener(new Runnable() {
+            public void run() {
+                try {
+                    Route r = knownRoute(path);
+                    if (r == null) return;
+
+                    // the future has completed, so this does not block.
+                    r.setAddress(new String(f.result()));
+
+                } catch (KeeperException e) {
+                    // no route yet, or an error. updateDest sets a watch for
+                    // the node to be created, and retries on errors.
+                    updateDest(path);
+
+                } catch (IOException e) {
+                    logger.error("address update failed for " + path + ": "
+                            + e);
+
+                } catch (InterruptedException e) {
+                    logger.error("interrupted while reading " + path);
+
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Asynchronously read the hold state of a route and watch for changes.
+     * Falls back to {@link #updateHold(String)} on errors.
+     * 
+     * @param path
+     *            the path
+     * @param done
+     *            counted down once the hold state has been read.
+     */
+    private void loadHold(final String path, final CountDownLatch done) {
+        final ZKFuture<Stat> f = zookeeper.existsAsync(path, holdUpdater);
+
+        f.addListener(new Runnable() {
+            public void run() {
+                try {
+                    Route r = knownRoute(path);
+                    if (r == null) return;
+
+                    if (f.failed()) {
+                        updateHold(path);
+                    } else if (f.stat() != null) {
+                        r.setHold();
+                    } else {
+                        r.unsetHold();
+                    }
+
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Find the route for a route or hold path, if its part is known.
+     * 
+     * @param path
+     *            the path
+     * @return the route, or null if the part has been removed.
+     */
+    private Route knownRoute(String path) {
+        Part.Id id = getId(path);
+        if (id == null || !knownParts.contains(id)) return null;
+
+        return getRoute(id);
+    }
+
+    /**
+     * Get the route for a part, creating it if necessary. The route table is
+     * republished if a route is created.
+     * 
+     * @param id
+     *            the part id
+     * @return the route
+     */
+    private Route getRoute(Part.Id id) {
+        Route r = routeMap.get(id);
+        if (r != null) return r;
+
+        routeMap.putIfAbsent(id, new Route());
+        publishRoutes();
+
+        return routeMap.get(id);
+    }
+
+    /**
+     * Rebuild the route table from the route map.
+     */
+    private void publishRoutes() {
+        synchronized (routeTableLock) {
+            HashMap<Long, Route> m = new HashMap<Long, Route>();
+
+            for (Map.Entry<Part.Id, Route> r : routeMap.entrySet()) {
+                m.put(r.getKey().packed(), r.getValue());
+            }
+
+            routeTable = new LongTable<Route>(m);
+        }
     }
 
     /**
@@ -418,18 +1376,16 @@ public class ZKRouter implements Router {
      */
     private void updateHold(String path) {
         try {
-            Part.Id id = getId(path);
-
-            routeMap.putIfAbsent(id, new Route());
+            Route r = knownRoute(path);
+            if (r == null) return;
 
             if (zookeeper.exists(path, holdUpdater) != null) {
-                routeMap.get(id).setHold();
+                r.setHold();
             } else {
-                routeMap.get(id).unsetHold();
+                r.unsetHold();
             }
 
-            logger.debug("updated hold for " + id + " -> " + routeMap.get(id)
-                    + " (" + path + ")");
+            logger.debug("updated hold -> " + r + " (" + path + ")");
 
         } catch (KeeperException e) {
             logger.error("exception while updating routing hold from " + path
@@ -453,10 +1409,8 @@ public class ZKRouter implements Router {
      */
     private void updateDest(String path) {
         try {
-            Part.Id id = getId(path);
-
-            routeMap.putIfAbsent(id, new Route());
-            Route r = routeMap.get(id);
+            Route r = knownRoute(path);
+            if (r == null) return;
 
             if (zookeeper.exists(path, routeUpdater) != null) {
                 // get dest
@@ -469,8 +1423,8 @@ public class ZKRouter implements Router {
                 try {
                     r.setAddress(dest);
                 } catch (IOException e) {
-                    logger.error("address update failed for partid " + id
-                            + ": " + e);
+                    logger.error("address update failed for " + path + ": "
+                            + e);
                 }
 
             } else {
@@ -478,8 +1432,7 @@ public class ZKRouter implements Router {
                 r.unsetAddress();
             }
 
-            logger.debug("updated route for " + id + " -> " + routeMap.get(id)
-                    + " (" + path + ")");
+            logger.debug("updated route -> " + r + " (" + path + ")");
 
         } catch (KeeperException e) {
             throw (new ZenoError("error while updating routing destination from "
@@ -16,21 +16,39 @@
 package io.s4.zeno.service;
 
 import io.s4.zeno.EventMonitor;
+import io.s4.zeno.Job;
+import io.s4.zeno.Part;
 import io.s4.zeno.Resource;
 import io.s4.zeno.Service;
 import io.s4.zeno.Site;
+import io.s4.zeno.monitor.HistogramEventMonitor;
 
 import org.apache.log4j.Logger;
 
 
 /**
  * Advertise state of site.
+ * <p>
+ * Load is written to the site's info in ZooKeeper. When sites exchange load
+ * reports through {@link LoadGossip} (i.e. {@code gossip.port} is set), the
+ * info is only written every {@code advertise.zkEvery} actions (default 12,
+ * i.e. every minute), for sites that do not take part in the gossip.
  */
 public class Advertiser extends Service {
     private static final Logger logger = Logger.getLogger(Advertiser.class);
 
     private Site site;
 
+    // quantiles published, and their names.
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99" };
+
+    // write to zookeeper every so many actions.
+    private int zkEvery = 1;
+
+    private int actions = 0;
+
     public Advertiser(Site site) {
         this.site = site;
     }
@@ -39,9 +57,16 @@ public class Advertiser extends Service {
         //site.info() is guaranteed to be ready before service is started
         this.setInitialDelay(0, 5000);
         this.setDelay(5000);
+
+        boolean gossip = site.spec().getInt("gossip.port", -1) > 0;
+        zkEvery = Math.max(1, site.spec().getInt("advertise.zkEvery",
+                                                 (gossip ? 12 : 1)));
     }
 
     public void action() {
+        // setting info marks it dirty, so that it is saved by others too.
+        if (actions++ % zkEvery != 0) return;
+
         EventMonitor emon = site.eventMonitor();
         logger.info("load status: " + emon);
 
@@ -53,15 +78,66 @@ public class Advertiser extends Service {
             site.info().set("load.eventLength", String.valueOf(length));
         }
 
+        publishQuantiles();
+
         Resource free = site.loadMonitor().getFreeResource();
         site.info().set("resource.free", free.toString());
 
         site.info().save();
     }
 
+    /**
+     * Publish quantiles of event length, inter-arrival time and queueing delay
+     * for the site, if its monitor keeps histograms. The largest 99th
+     * percentile of event length among parts is published too, if part
+     * monitors keep histograms.
+     */
+    private void publishQuantiles() {
+        HistogramEventMonitor h = site.monitor().histograms();
+
+        if (h != null && h.getHistogramCount() > 0) {
+            for (int i = 0; i < QUANTILES.length; ++i) {
+                double q = QUANTILES[i];
+                String p = QUANTILE_NAMES[i];
+
+                site.info().set("load.eventLength." + p,
+                                String.valueOf(h.getLengthQuantile(q)));
+                site.info().set("load.interval." + p,
+                                String.valueOf(h.getIntervalQuantile(q)));
+                site.info().set("load.delay." + p,
+                                String.valueOf(h.getDelayQuantile(q)));
+            }
+        }
+
+        Job job = site.job();
+        if (job == null || job.partMap() == null) return;
+
+        double max = -1.0;
+        for (Part part : job.partMap().getAll()) {
+            EventMonitor emon = part.eventMonitor();
+
+            if (emon instanceof HistogramEventMonitor) {
+                HistogramEventMonitor ph = (HistogramEventMonitor) emon;
+                if (ph.getHistogramCount() > 0)
+                    max = Math.max(max, ph.getLengthQuantile(0.99));
+            }
+        }
+
+        if (max >= 0.0)
+            site.info().set("load.parts.eventLength.p99", String.valueOf(max));
+    }
+
     public void cleanup() {
         site.info().remove("load.eventRate");
         site.info().remove("load.eventLength");
+
+        for (String p : QUANTILE_NAMES) {
+            site.info().remove("load.eventLength." + p);
+            site.info().remove("load.interval." + p);
+            site.info().remove("load.delay." + p);
+        }
+        site.info().remove("load.parts.eventLength.p99");
+
         site.info().remove("resource.free");
         site.info().save();
     }
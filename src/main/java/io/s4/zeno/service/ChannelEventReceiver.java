@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.service;
+
+import io.s4.zeno.EventMonitor;
+import io.s4.zeno.Part;
+import io.s4.zeno.Service;
+import io.s4.zeno.Site;
+import io.s4.zeno.route.BinaryEvent;
+import io.s4.zeno.route.EventBatch;
+import io.s4.zeno.route.Hasher;
+import io.s4.zeno.util.ZenoError;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Receive events and update load monitor. Datagrams are read from a
+ * {@link DatagramChannel} into a pool of direct buffers by a single I/O
+ * thread, and handed off to a number of worker threads for decoding through a
+ * bounded queue. Decoding does not allocate memory.
+ * <p>
+ * Configuration (site spec):
+ * 
+ * <pre>
+ *     "port.event"                  port on which events are received.
+ *     "receiver.workers"            number of decoding threads.
+ *                                   Default: number of processors.
+ *     "receiver.buffers"            number of pooled datagram buffers.
+ *                                   Default: 256
+ *     "receiver.socket.buffer"      size of socket receive buffer in bytes.
+ *                                   Default: OS default.
+ *     "event.format"                "text" to accept only text events.
+ *                                   Default: binary (text and binary)
+ * </pre>
+ */
+public class ChannelEventReceiver extends Service {
+    private static final Logger logger = Logger.getLogger(ChannelEventReceiver.class);
+
+    // large enough for any datagram.
+    private static final int BUFFER_SIZE = 65536;
+
+    // ms between checks for a closed channel while waiting for a buffer.
+    private static final long POLL_MS = 500;
+
+    public ChannelEventReceiver(Site site, Hasher hasher) {
+        super("channel-event-receiver");
+        this.site = site;
+        this.hasher = hasher;
+    }
+
+    private final Site site;
+
+    private final Hasher hasher;
+
+    private DatagramChannel channel;
+
+    // buffers available for receiving datagrams.
+    private BlockingQueue<ByteBuffer> free;
+
+    // received datagrams waiting to be decoded.
+    private BlockingQueue<ByteBuffer> received;
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    private final AtomicLong eventCount = new AtomicLong(0);
+
+    private final AtomicLong errorCount = new AtomicLong(0);
+
+    protected void initialize() {
+        int p = site.spec().getInt("port.event", -1);
+        if (p <= 0) {
+            throw new ZenoError("mising or invalid property port.event in site spec.");
+        }
+
+        int nWorkers = site.spec().getInt("receiver.workers",
+                                          Runtime.getRuntime()
+                                                 .availableProcessors());
+        if (nWorkers < 1) nWorkers = 1;
+
+        int nBuffers = site.spec().getInt("receiver.buffers", 256);
+        if (nBuffers < nWorkers + 1) nBuffers = nWorkers + 1;
+
+        site.info().set("port.event", String.valueOf(p));
+
+        // binary events can be disabled during a rollout by setting
+        // event.format to text.
+        String format = site.spec().get(BinaryEvent.FORMAT_PROPERTY);
+        if (!BinaryEvent.FORMAT_TEXT.equals(format))
+            format = BinaryEvent.FORMAT_BINARY;
+
+        site.info().set(BinaryEvent.FORMAT_PROPERTY, format);
+        site.info().save();
+
+        try {
+            channel = DatagramChannel.open();
+
+            int sockBuf = site.spec().getInt("receiver.socket.buffer", -1);
+            if (sockBuf > 0) channel.socket().setReceiveBufferSize(sockBuf);
+
+            channel.socket().bind(new InetSocketAddress(p));
+            logger.info("initialized with datagram channel: " + channel.socket());
+
+        } catch (IOException e) {
+            logger.error("exception while creating datagram channel", e);
+            channel = null;
+            return;
+        }
+
+        free = new ArrayBlockingQueue<ByteBuffer>(nBuffers);
+        received = new ArrayBlockingQueue<ByteBuffer>(nBuffers);
+
+        for (int i = 0; i < nBuffers; ++i) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+
+        synchronized (workers) {
+            for (int i = 0; i < nWorkers; ++i) {
+                Thread t = new Thread(new Worker(), serviceName() + "-worker-"
+                        + i);
+                t.setDaemon(true);
+                t.start();
+                workers.add(t);
+            }
+        }
+
+        logger.info("started " + nWorkers + " workers with " + nBuffers
+                + " buffers");
+
+        setInitialDelay(5000);
+        setDelay(1000);
+    }
+
+    @Override
+    public int share() {
+        return 1;
+    }
+
+    @Override
+    protected void action() {
+        if (channel == null) return;
+
+        while (channel.isOpen()) {
+            ByteBuffer buf = null;
+
+            try {
+                // wait in steps, so that a closed channel is noticed even if
+                // the workers have stopped and no buffer comes back.
+                buf = free.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (buf == null) continue;
+
+                buf.clear();
+
+                if (channel.receive(buf) == null) {
+                    free.add(buf);
+                    continue;
+                }
+
+                buf.flip();
+                while (!received.offer(buf, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (!channel.isOpen()) {
+                        free.offer(buf);
+                        return;
+                    }
+                }
+
+            } catch (ClosedChannelException e) {
+                logger.info("channel closed. stopping.");
+                if (buf != null) free.offer(buf);
+                break;
+
+            } catch (IOException e) {
+                logger.error("error receiving datagram: " + e);
+                if (buf != null) free.offer(buf);
+
+            } catch (InterruptedException e) {
+                logger.info("interrupted. stopping.");
+                if (buf != null) free.offer(buf);
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected void unblock() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("error while closing channel: " + e);
+            }
+        }
+
+        synchronized (workers) {
+            for (Thread t : workers)
+                t.interrupt();
+
+            workers.clear();
+        }
+    }
+
+    /**
+     * Number of events received so far.
+     */
+    public long eventCount() {
+        return eventCount.get();
+    }
+
+    /**
+     * Number of malformed or misrouted events received so far.
+     */
+    public long errorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * Decodes datagrams and updates monitors.
+     */
+    private class Worker implements Runnable, EventBatch.BufferHandler {
+        private final EventParser parser = new EventParser();
+
+        public void run() {
+            try {
+                while (true) {
+                    ByteBuffer buf = received.take();
+
+                    try {
+                        if (!handleCommand(buf)) {
+                            if (EventBatch.unpack(buf, this) < 0) {
+                                errorCount.incrementAndGet();
+                                logger.error("malformed event batch of length "
+                                        + buf.remaining());
+                            }
+                        }
+                    } finally {
+                        free.put(buf);
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.info("interrupted. stopping worker "
+                        + Thread.currentThread().getName());
+            }
+        }
+
+        // check for pause/resume commands.
+        private boolean handleCommand(ByteBuffer buf) {
+            int n = buf.remaining();
+            if (n > 7) return false;
+
+            if (matches(buf, "pause")) {
+                site.job().pause();
+                logger.info("STATE: " + site.state());
+                return true;
+            } else if (matches(buf, "resume")) {
+                site.job().unpause();
+                logger.info("STATE: " + site.state());
+                return true;
+            }
+
+            return false;
+        }
+
+        // does the buffer contain the command, optionally followed by a
+        // newline?
+        private boolean matches(ByteBuffer buf, String command) {
+            int p = buf.position();
+            int n = buf.remaining();
+            int m = command.length();
+
+            if (n != m && !(n == m + 1 && buf.get(p + m) == '\n')) return false;
+
+            for (int i = 0; i < m; ++i) {
+                if (buf.get(p + i) != command.charAt(i)) return false;
+            }
+
+            return true;
+        }
+
+        public void handle(ByteBuffer buf, int offset, int length,
+                boolean isQueued) {
+            int group, key;
+            double t;
+
+            if (BinaryEvent.isBinary(buf, offset, length)) {
+                // all fields from the frame.
+                if (!BinaryEvent.isValid(buf, offset, length)) {
+                    errorCount.incrementAndGet();
+                    logger.debug("malformed binary event");
+                    return;
+                }
+
+                group = BinaryEvent.group(buf, offset);
+                key = BinaryEvent.key(buf, offset);
+                t = BinaryEvent.length(buf, offset);
+
+            } else {
+                if (!parser.parse(buf, offset, length)) {
+                    errorCount.incrementAndGet();
+                    logger.debug("malformed event");
+                    return;
+                }
+
+                group = parser.group();
+                key = parser.key();
+                t = parser.length();
+            }
+
+            long id = hasher.hashIndex(group, key);
+
+            if (id == Hasher.NO_PART) {
+                errorCount.incrementAndGet();
+                logger.warn("malformed event identifiers: " + group + ","
+                        + key);
+                return;
+            }
+
+            Part part = site.job().partMap().get(id);
+
+            // make sure this event belongs to a part in this site.
+            if (part == null) {
+                errorCount.incrementAndGet();
+                logger.error("received an event for a part that is not owned by this site. partid: "
+                        + Part.Id.unpack(id));
+                return;
+            }
+
+            eventCount.incrementAndGet();
+
+            // Do not count events that are played from queue for the
+            // purposes of monitoring
+            if (!isQueued) {
+                putEvent(site.eventMonitor(), t);
+                putEvent(part.eventMonitor(), t);
+
+            } else {
+                logger.info("RECEIVED QUEUED EVENT FOR PARTID: "
+                        + Part.Id.unpack(id));
+            }
+        }
+
+        private void putEvent(EventMonitor monitor, double t) {
+            if (monitor.isConcurrent()) {
+                monitor.putEvent(t);
+                return;
+            }
+
+            synchronized (monitor) {
+                monitor.putEvent(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.service;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Allocation-free parser for text events of the form
+ * {@code "group key length"}, where group and key are integers and length is
+ * a decimal number. Fields are separated by one or more spaces. A parser
+ * holds the fields of the last parsed event, so each thread should use its
+ * own instance.
+ */
+public class EventParser {
+
+    private int group;
+
+    private int key;
+
+    private double length;
+
+    // current position while parsing.
+    private int pos;
+
+    // end of input.
+    private int end;
+
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; ++i)
+            POW10[i] = POW10[i - 1] * 10.0;
+    }
+
+    public int group() {
+        return group;
+    }
+
+    public int key() {
+        return key;
+    }
+
+    public double length() {
+        return length;
+    }
+
+    /**
+     * Parse an event.
+     * 
+     * @param buf
+     *            buffer containing the event. Its position and limit are not
+     *            changed.
+     * @param offset
+     *            absolute index of start of event in buf
+     * @param n
+     *            length of event in bytes
+     * @return true if the event was parsed successfully. The fields can then be
+     *         read using {@link #group()}, {@link #key()} and {@link #length()}
+     */
+    public boolean parse(ByteBuffer buf, int offset, int n) {
+        pos = offset;
+        end = offset + n;
+
+        skipSpaces(buf);
+        if (!parseInt(buf)) return false;
+        group = (int) lval;
+
+        if (!skipSpaces(buf)) return false;
+        if (!parseInt(buf)) return false;
+        key = (int) lval;
+
+        if (!skipSpaces(buf)) return false;
+        return parseDouble(buf);
+    }
+
+    /**
+     * Parse the last field of a text event as its length. This is used by
+     * routers to send text events on as binary events (see
+     * {@link io.s4.zeno.route.BinaryEvent}), whose group and key are known.
+     * 
+     * @param buf
+     *            buffer containing the event data. Its position and limit are
+     *            not changed.
+     * @param offset
+     *            absolute index of start of data in buf
+     * @param n
+     *            length of data in bytes
+     * @return true if the length was parsed successfully. It can then be read
+     *         using {@link #length()}
+     */
+    public boolean parseLength(ByteBuffer buf, int offset, int n) {
+        end = offset + n;
+
+        // ignore trailing spaces
+        while (end > offset && buf.get(end - 1) == ' ')
+            --end;
+
+        pos = end;
+        while (pos > offset && buf.get(pos - 1) != ' ')
+            --pos;
+
+        return parseDouble(buf);
+    }
+
+    // value of last parsed integer.
+    private long lval;
+
+    // skip spaces. return true if at least one was skipped.
+    private boolean skipSpaces(ByteBuffer buf) {
+        int p = pos;
+        while (pos < end && buf.get(pos) == ' ')
+            ++pos;
+        return pos > p;
+    }
+
+    private boolean parseInt(ByteBuffer buf) {
+        boolean neg = false;
+        if (pos < end && buf.get(pos) == '-') {
+            neg = true;
+            ++pos;
+        }
+
+        int start = pos;
+        long v = 0;
+        while (pos < end) {
+            int d = buf.get(pos) - '0';
+            if (d < 0 || d > 9) break;
+
+            v = v * 10 + d;
+            if (v > 0xFFFFFFFFL) return false;
+            ++pos;
+        }
+
+        if (pos == start) return false;
+
+        lval = (neg ? -v : v);
+
+        return (lval >= Integer.MIN_VALUE && lval <= Integer.MAX_VALUE);
+    }
+
+    private boolean parseDouble(ByteBuffer buf) {
+        int start = pos;
+
+        boolean neg = false;
+        if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+            neg = (buf.get(pos) == '-');
+            ++pos;
+        }
+
+        long mantissa = 0;
+        int digits = 0; // significant digits in mantissa
+        int scale = 0; // power of ten by which mantissa is to be multiplied
+        boolean any = false;
+
+        while (pos < end) {
+            int d = buf.get(pos) - '0';
+            if (d < 0 || d > 9) break;
+
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + d;
+                if (mantissa > 0) ++digits;
+            } else {
+                ++scale;
+            }
+            ++pos;
+        }
+
+        if (pos < end && buf.get(pos) == '.') {
+            ++pos;
+            while (pos < end) {
+                int d = buf.get(pos) - '0';
+                if (d < 0 || d > 9) break;
+
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + d;
+                    if (mantissa > 0) ++digits;
+                    --scale;
+                }
+                ++pos;
+            }
+        }
+
+        if (!any) return false;
+
+        if (pos < end && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+            ++pos;
+            if (!parseInt(buf)) return false;
+            if (lval > 400 || lval < -400) return slowParseDouble(buf, start);
+            scale += (int) lval;
+        }
+
+        // anything other than a field separator following the number is an
+        // error.
+        if (pos < end && buf.get(pos) != ' ') return false;
+
+        double v = mantissa;
+        if (scale > 0) {
+            if (scale >= POW10.length) return slowParseDouble(buf, start);
+            v *= POW10[scale];
+        } else if (scale < 0) {
+            if (-scale >= POW10.length) return slowParseDouble(buf, start);
+            v /= POW10[-scale];
+        }
+
+        length = (neg ? -v : v);
+
+        return true;
+    }
+
+    // rarely used: numbers with extreme exponents.
+    private boolean slowParseDouble(ByteBuffer buf, int start) {
+        int p = start;
+        while (p < end && buf.get(p) != ' ')
+            ++p;
+
+        byte[] b = new byte[p - start];
+        for (int i = 0; i < b.length; ++i)
+            b[i] = buf.get(start + i);
+
+        try {
+            length = Double.parseDouble(new String(b));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        pos = p;
+        return true;
+    }
+}
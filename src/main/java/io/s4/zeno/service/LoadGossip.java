@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.service;
+
+import io.s4.zeno.Cluster;
+import io.s4.zeno.LoadLevel;
+import io.s4.zeno.Resource;
+import io.s4.zeno.Service;
+import io.s4.zeno.Site;
+import io.s4.zeno.cluster.LoadView;
+import io.s4.zeno.resource.TimeSliceResource;
+import io.s4.zeno.util.ZenoError;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Exchange load reports with other sites over UDP, feeding the site's
+ * {@link LoadView}. This keeps frequently changing load information out of
+ * ZooKeeper, which is then only used to find the sites in the cluster and
+ * their gossip ports.
+ * <p>
+ * Every {@code gossip.interval} ms, the site sends its own report, along with
+ * a few fresh reports it has received from others, to {@code gossip.fanout}
+ * sites chosen at random. Reports thus reach all sites in a number of rounds
+ * logarithmic in the size of the cluster, even though each site only sends a
+ * few datagrams per round. Reports carry their age rather than a timestamp, so
+ * that clocks need not be synchronized.
+ * 
+ * <pre>
+ *     DATAGRAM := MAGIC SENDER COUNT REPORT*
+ *     REPORT   := NAME SEQ FREE RATE LENGTH LEVEL AGE
+ * 
+ *     MAGIC: int, SENDER/NAME: UTF, COUNT: short, SEQ: long,
+ *     FREE/RATE/LENGTH: double, LEVEL: byte (ordinal), AGE: int (ms)
+ * </pre>
+ * 
+ * Configured from the site spec:
+ * 
+ * <pre>
+ *     "gossip.port"        UDP port. Required.
+ *     "gossip.interval"    ms between rounds. Default: 1000
+ *     "gossip.fanout"      sites sent to in each round. Default: 3
+ *     "gossip.piggyback"   others' reports sent along. Default: 8
+ * </pre>
+ */
+public class LoadGossip extends Service {
+    private static final Logger logger = Logger.getLogger(LoadGossip.class);
+
+    private static final int MAGIC = 0x5A4C4731;
+
+    // keep datagrams within a typical MTU.
+    private static final int MAX_DATAGRAM = 1400;
+
+    private final Site site;
+
+    private final Random random = new Random();
+
+    private DatagramSocket dsock = null;
+
+    private long interval;
+
+    private int fanout;
+
+    private int piggyback;
+
+    // sequence number of the last report made by this site.
+    private long seq = 0;
+
+    // time of next round.
+    private long next = 0;
+
+    public LoadGossip(Site site) {
+        super("load-gossip");
+        this.site = site;
+    }
+
+    protected void initialize() {
+        int p = site.spec().getInt("gossip.port", -1);
+        if (p <= 0) {
+            throw new ZenoError("mising or invalid property gossip.port in site spec.");
+        }
+
+        interval = site.spec().getLong("gossip.interval", 1000);
+        fanout = site.spec().getInt("gossip.fanout", 3);
+        piggyback = site.spec().getInt("gossip.piggyback", 8);
+
+        site.info().set("port.gossip", String.valueOf(p));
+        site.info().save();
+
+        try {
+            dsock = new DatagramSocket(p);
+            logger.info("initialized with datagram sock: " + dsock.toString());
+        } catch (IOException e) {
+            logger.error("exception while creating datagram sock", e);
+            dsock = null;
+        }
+
+        setInitialDelay(0);
+        setDelay(1000);
+    }
+
+    @Override
+    public int share() {
+        return 1;
+    }
+
+    @Override
+    protected void unblock() {
+        if (dsock != null) dsock.close();
+    }
+
+    @Override
+    protected void action() {
+        if (dsock == null) return;
+
+        byte[] data = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+
+        while (!dsock.isClosed()) {
+            long wait = next - System.currentTimeMillis();
+
+            if (wait <= 0) {
+                round();
+                next = System.currentTimeMillis() + interval;
+                continue;
+            }
+
+            packet.setData(data, 0, data.length);
+
+            try {
+                dsock.setSoTimeout((int) wait);
+                dsock.receive(packet);
+
+                receive(data, packet.getLength());
+
+            } catch (SocketTimeoutException e) {
+                // time for the next round.
+
+            } catch (IOException e) {
+                if (dsock.isClosed()) return;
+                logger.error("error receiving load report: " + e);
+            }
+        }
+    }
+
+    // make a report of this site's load, and send it around.
+    private void round() {
+        LoadView view = site.loadView();
+
+        LoadView.Report self = report();
+        if (self != null) view.update(self);
+
+        List<Cluster.Site> peers = new ArrayList<Cluster.Site>(site.cluster()
+                                                                   .getAllSites());
+        Collections.shuffle(peers, random);
+
+        // fresh reports of others, in random order.
+        List<LoadView.Report> others = new ArrayList<LoadView.Report>();
+        for (LoadView.Report r : view.getAll()) {
+            if (!r.name.equals(site.name()) && view.get(r.name) != null)
+                others.add(r);
+        }
+
+        int sent = 0;
+        for (Cluster.Site peer : peers) {
+            if (sent >= fanout) break;
+            if (peer.name().equals(site.name())) continue;
+
+            InetSocketAddress addr = address(peer);
+            if (addr == null) continue;
+
+            Collections.shuffle(others, random);
+
+            byte[] d = pack(self, others);
+            if (d == null) return;
+
+            try {
+                dsock.send(new DatagramPacket(d, d.length, addr));
+                ++sent;
+
+            } catch (IOException e) {
+                logger.debug("could not send load report to " + peer.name()
+                        + ": " + e);
+            }
+        }
+    }
+
+    // this site's load.
+    private LoadView.Report report() {
+        if (site.loadMonitor() == null) return null;
+
+        Resource free = site.loadMonitor().getFreeResource();
+        double f = (free instanceof TimeSliceResource ? ((TimeSliceResource) free).getTimeSlice()
+                : -1.0);
+
+        double rate = 0.0;
+        double length = 0.0;
+        if (site.eventMonitor().isValid()) {
+            rate = site.eventMonitor().getEventRate();
+            length = site.eventMonitor().getEventLength();
+        }
+
+        long now = System.currentTimeMillis();
+        seq = Math.max(seq + 1, now);
+
+        return new LoadView.Report(site.name(),
+                                   seq,
+                                   f,
+                                   rate,
+                                   length,
+                                   site.loadMonitor().getLevel(),
+                                   now);
+    }
+
+    // gossip address of a site, as advertised in its info.
+    private static InetSocketAddress address(Cluster.Site peer) {
+        String host = peer.info().get("IPAddress");
+        int port = peer.info().getInt("port.gossip", -1);
+
+        if (host == null || port <= 0) return null;
+
+        return new InetSocketAddress(host, port);
+    }
+
+    // pack own report and as many of the others as fit.
+    private byte[] pack(LoadView.Report self, List<LoadView.Report> others) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_DATAGRAM);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            List<LoadView.Report> reports = new ArrayList<LoadView.Report>();
+            if (self != null) reports.add(self);
+
+            for (LoadView.Report r : others) {
+                if (reports.size() > piggyback) break;
+                reports.add(r);
+            }
+
+            while (true) {
+                bytes.reset();
+
+                out.writeInt(MAGIC);
+                out.writeUTF(site.name());
+                out.writeShort(reports.size());
+
+                for (LoadView.Report r : reports)
+                    write(out, r);
+
+                out.flush();
+
+                if (bytes.size() <= MAX_DATAGRAM || reports.size() <= 1)
+                    return bytes.toByteArray();
+
+                reports.remove(reports.size() - 1);
+            }
+
+        } catch (IOException e) {
+            logger.error("error packing load reports", e);
+            return null;
+        }
+    }
+
+    private static void write(DataOutputStream out, LoadView.Report r)
+            throws IOException {
+        out.writeUTF(r.name);
+        out.writeLong(r.seq);
+        out.writeDouble(r.free);
+        out.writeDouble(r.eventRate);
+        out.writeDouble(r.eventLength);
+        out.writeByte(r.level.ordinal());
+        out.writeInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, r.age())));
+    }
+
+    // unpack a datagram into the load view.
+    private void receive(byte[] data, int length) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data,
+                                                                          0,
+                                                                          length));
+        try {
+            if (in.readInt() != MAGIC) {
+                logger.debug("ignoring datagram of length " + length);
+                return;
+            }
+
+            String sender = in.readUTF();
+            int n = in.readShort();
+
+            long now = System.currentTimeMillis();
+            LoadLevel[] levels = LoadLevel.values();
+
+            for (int i = 0; i < n; ++i) {
+                String name = in.readUTF();
+                long seq = in.readLong();
+                double free = in.readDouble();
+                double rate = in.readDouble();
+                double len = in.readDouble();
+                int level = in.readByte();
+                int age = in.readInt();
+
+                // this site knows its own load best.
+                if (name.equals(site.name())) continue;
+
+                if (level < 0 || level >= levels.length) {
+                    logger.debug("bad load level in report from " + sender);
+                    return;
+                }
+
+                site.loadView().update(new LoadView.Report(name,
+                                                           seq,
+                                                           free,
+                                                           rate,
+                                                           len,
+                                                           levels[level],
+                                                           now - age));
+            }
+
+        } catch (IOException e) {
+            logger.debug("malformed load report of length " + length + ": "
+                    + e);
+        }
+    }
+}
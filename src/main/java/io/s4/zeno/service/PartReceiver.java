@@ -17,14 +17,26 @@ package io.s4.zeno.service;
 
 import io.s4.zeno.Job;
 import io.s4.zeno.Part;
+import io.s4.zeno.PartSnapshot;
+import io.s4.zeno.Resource;
 import io.s4.zeno.Service;
 import io.s4.zeno.Site;
+import io.s4.zeno.protocol.BoundedInputStream;
+import io.s4.zeno.protocol.ChunkedInputStream;
 import io.s4.zeno.protocol.Command;
 import io.s4.zeno.protocol.Connection;
 import io.s4.zeno.protocol.ConnectionListener;
+import io.s4.zeno.resource.TimeSliceResource;
 import io.s4.zeno.util.ActivityMonitor;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -32,6 +44,21 @@ import org.apache.log4j.Logger;
 /**
  * If some other site is trying to send work to this site, accept those parts
  * subject to availability here.
+ * <p>
+ * Up to {@code receive.sessions} senders (default: 4) are served at once,
+ * each in its own session. A part is admitted if its usage fits into the free
+ * time slice of this site less what has been reserved for parts admitted
+ * before it. The reservation is held for {@code receive.settle} ms (default:
+ * 10000) after the part is taken, till its load shows in the monitors.
+ * <p>
+ * Senders may also reserve capacity ahead of a transfer, so that several of
+ * them do not plan on the same free resource. Such reservations are held for
+ * {@code receive.lease} ms (default: 10000) unless renewed by a commit, and
+ * the free resource reported by this site is net of them.
+ * <p>
+ * Senders connect on {@code port.receive.protocol} and
+ * {@code port.receive.data}, or over a peer link if both sites have
+ * {@code port.receive.link} set.
  */
 public class PartReceiver extends Service {
     Logger logger = Logger.getLogger(PartReceiver.class);
@@ -44,11 +71,45 @@ public class PartReceiver extends Service {
     }
 
     ConnectionListener listener = null;
+
+    // how long to wait for a sender over peer links, if there is no
+    // listener.
+    private static final long ACCEPT_MS = 1000;
+
     private volatile boolean run = false;
 
+    private ThreadPoolExecutor sessions = null;
+
+    private long settle;
+
+    private long lease;
+
     @Override
     public void initialize() {
+        // snapshots left over from an earlier run of this site.
+        PartSnapshot.clean(snapshotDir());
+
         createListener();
+
+        int n = Math.max(1, site.spec().getInt("receive.sessions", 4));
+        settle = site.spec().getLong("receive.settle", 10000);
+        lease = site.spec().getLong("receive.lease", 10000);
+
+        // no queue: senders beyond the limit are turned away.
+        sessions = new ThreadPoolExecutor(n,
+                                          n,
+                                          60,
+                                          TimeUnit.SECONDS,
+                                          new SynchronousQueue<Runnable>(),
+                                          new ThreadFactory() {
+                                              public Thread newThread(Runnable r) {
+                                                  Thread t = new Thread(r,
+                                                                        "part-receive");
+                                                  t.setDaemon(true);
+                                                  return t;
+                                              }
+                                          });
+
         setInitialDelay(5000); // 5 sec initial delay.
         setDelay(0); // no delay between actions
         run = true;
@@ -63,6 +124,7 @@ public class PartReceiver extends Service {
     public void unblock() {
         run = false;
         if (listener != null) listener.close();
+        if (sessions != null) sessions.shutdown();
     }
 
     private void createListener() {
@@ -87,11 +149,21 @@ public class PartReceiver extends Service {
 
         listener = ConnectionListener.createInstance(pport, dport);
 
-        if (listener == null)
+        if (listener == null) {
             logger.error("failed to create ConnectionListener for part receiver with dport="
                     + dport + ", pport=" + pport);
+            return;
+        }
 
         logger.info("Listener created at dport=" + dport + " pport=" + pport);
+
+        // connections also arrive over links to other sites, if there is a
+        // pool of them. They are queued along with those from sites that do
+        // not link.
+        if (site.peerLinks() != null) {
+            logger.info("receiving over peer links");
+            site.peerLinks().setAcceptor(listener);
+        }
     }
 
     // PROTOCOL
@@ -104,10 +176,27 @@ public class PartReceiver extends Service {
     // ...
     // bye ->
     //
+    // TakePart commands may be sent ahead of their responses. The state of
+    // each part follows its command on the data socket.
+    //
+    // Each sender is served in a session of its own, so that several may
+    // send at once. A part is refused with FAILED full if its USAGE does not
+    // fit into what is free and not reserved for other parts.
+    //
+    // Reserve AMOUNT        <- OK ID GRANTED / FAILED full
+    // Commit ID AMOUNT      <- OK / FAILED expired
+    // Abort ID              <- OK / FAILED expired
+    //
+    // (arguments on lines of their own.) Reserve holds up to AMOUNT of the
+    // free resource for receive.lease ms. Commit binds a reservation to the
+    // session, cuts it down to AMOUNT and renews it: parts taken in the
+    // session draw on it first, and what is left is released at Bye. Abort
+    // releases a reservation.
+    //
     // DONE
     public void action() {
         if (!run) return;
-        Connection conn = listener.accept();
+        Connection conn = accept();
         if (conn == null) return;
 
         if (!run) {
@@ -118,121 +207,255 @@ public class PartReceiver extends Service {
         logger.debug("connected to a sender.");
 
         try {
-            String senderName = conn.in.readLine();
+            sessions.execute(new Receiver(conn));
 
-            // make sure some time has elapsed since last part_send
-            ActivityMonitor sendActivity = site.registry()
-                                               .getActivityMonitor("part_send");
-
-            if (!sendActivity.isSilent(5000)) {
-                logger.info("site is recovering from a recent send.");
-                conn.out.println("FAILED recovering");
-                return;
-            }
-
-            conn.out.println("OK");
-
-            logger.info("started RECEIVE protocol with sender " + senderName);
+        } catch (RejectedExecutionException e) {
+            logger.info("too many senders. cannot receive any new parts now.");
+            conn.out.println("FAILED busy");
+            conn.close();
+        }
+    }
 
-            Receiver receiver = new Receiver(senderName, conn);
+    // next connection from a sender, or null. Connections over peer links
+    // are queued at the listener, if there is one.
+    private Connection accept() {
+        if (listener != null) return listener.accept();
 
-            if (!site.registry().tryLockAndRun("part_transfer", receiver)) {
-                logger.info("site is busy with another part transfer. cannot receive any new parts now.");
-                conn.out.println("FAILED busy");
-                return;
-            }
+        try {
+            if (site.peerLinks() != null)
+                return site.peerLinks().accept(ACCEPT_MS);
 
-        } catch (IOException e) {
-            logger.error("exception while reading name from sender.", e);
+            Thread.sleep(ACCEPT_MS); // nothing to accept from
+            return null;
 
-        } finally {
-            conn.close();
+        } catch (InterruptedException e) {
+            return null;
         }
     }
 
-    // Core logic for receiving parts.
+    // Core logic for receiving parts, in a session with one sender.
     private class Receiver implements Runnable {
-        public Receiver(String senderName, Connection conn) {
-            this.senderName = senderName;
+        public Receiver(Connection conn) {
             this.conn = conn;
         }
 
         private Connection conn;
-        private String senderName;
+        private String senderName = null;
 
-        public void run() {
+        // reservation committed to this session
+        private long bound = -1;
 
+        public void run() {
             try {
-                int partsTaken = 0;
-                String line;
+                senderName = conn.in.readLine();
 
-                cmd_loop: while ((line = conn.in.readLine()) != null) {
-                    Command command = null;
-                    try {
-                        command = Command.valueOf(line);
-                    } catch (IllegalArgumentException e) {
-                        logger.error("illegal command from sender "
-                                + senderName + ": " + line, e);
+                // make sure some time has elapsed since last part_send
+                ActivityMonitor sendActivity = site.registry()
+                                                   .getActivityMonitor("part_send");
 
-                        conn.out.println("FAILED illegal-command");
-                        return;
-                    }
-
-                    switch (command) {
-                        case Bye:
-                            break cmd_loop;
-
-                        case GetFree:
-                            conn.out.println(site.loadMonitor()
-                                                 .getFreeResource()
-                                                 .toString());
-                            break;
-
-                        case TakePart:
-                            if (acceptPart(conn, senderName)) partsTaken++;
-                            break;
-
-                        default:
-                            logger.warn("unknown command: " + line);
-                            conn.out.println("FAILED illegal-command");
-                            break cmd_loop;
-                    }
+                if (!sendActivity.isSilent(5000)) {
+                    logger.info("site is recovering from a recent send.");
+                    conn.out.println("FAILED recovering");
+                    return;
                 }
 
-                if (partsTaken > 0) {
-                    logger.info("took over " + partsTaken
-                            + " parts from sender " + senderName);
+                if (busy()) {
+                    logger.info("site is busy with a part transfer of its own. cannot receive any new parts now.");
+                    conn.out.println("FAILED busy");
+                    return;
+                }
 
-                    site.registry().addCount("part_recv", partsTaken);
-                    site.registry().getActivityMonitor("part_recv").tick();
+                conn.out.println("OK");
 
-                } else {
-                    logger.info("took over no parts from sender " + senderName);
-                }
+                logger.info("started RECEIVE protocol with sender "
+                        + senderName);
+
+                receive();
 
             } catch (IOException e) {
                 logger.error("exception while talking to sender " + senderName,
                              e);
+
+            } finally {
+                if (bound >= 0) site.reservations().release(bound);
+                conn.close();
             }
         }
+
+        private void receive() throws IOException {
+            int partsTaken = 0;
+            String line;
+
+            cmd_loop: while ((line = conn.in.readLine()) != null) {
+                Command command = null;
+                try {
+                    command = Command.valueOf(line);
+                } catch (IllegalArgumentException e) {
+                    logger.error("illegal command from sender "
+                            + senderName + ": " + line, e);
+
+                    conn.out.println("FAILED illegal-command");
+                    return;
+                }
+
+                switch (command) {
+                    case Bye:
+                        break cmd_loop;
+
+                    case GetFree:
+                        conn.out.println(site.loadMonitor()
+                                             .getFreeResource()
+                                             .toString());
+                        break;
+
+                    case TakePart:
+                        long start = System.nanoTime();
+
+                        if (acceptPart(conn, senderName, bound))
+                            partsTaken++;
+
+                        site.registry()
+                            .getHistogram("part_recv")
+                            .record((System.nanoTime() - start) * 1e-9);
+                        break;
+
+                    case Reserve:
+                        reserve(conn);
+                        break;
+
+                    case Commit:
+                        long id = commit(conn);
+                        if (id >= 0) {
+                            if (bound >= 0 && bound != id)
+                                site.reservations().release(bound);
+                            bound = id;
+                        }
+                        break;
+
+                    case Abort:
+                        abort(conn);
+                        break;
+
+                    default:
+                        logger.warn("unknown command: " + line);
+                        conn.out.println("FAILED illegal-command");
+                        break cmd_loop;
+                }
+            }
+
+            if (partsTaken > 0) {
+                logger.info("took over " + partsTaken
+                        + " parts from sender " + senderName);
+
+                site.registry().addCount("part_recv", partsTaken);
+                site.registry().getActivityMonitor("part_recv").tick();
+
+            } else {
+                logger.info("took over no parts from sender " + senderName);
+            }
+        }
+    }
+
+    // whether this site is sending or balancing parts itself, or pausing or
+    // releasing its job. Only a hint: parts are admitted and taken over while
+    // holding the part_transfer lock shared, which those hold exclusively.
+    private boolean busy() {
+        if (!site.registry().tryLockShared("part_transfer")) return true;
+
+        site.registry().unlockShared("part_transfer");
+        return false;
     }
 
-    private boolean acceptPart(Connection conn, String senderName)
+    // TakePart: read header from protocol socket and state from data socket.
+    // The state is always consumed, even if the part is not taken, so that
+    // the next part can be read.
+    private boolean acceptPart(Connection conn, String senderName, long from)
             throws IOException {
+        // PARTID
+        String idStr = conn.in.readLine();
+        Part.Id id = (idStr != null ? Part.Id.fromString(idStr) : null);
+
+        // DATA_LENGTH: byte count, or -1 if chunked
+        long len;
         try {
-            // PARTID
-            Part.Id id = Part.Id.fromString(conn.in.readLine());
+            len = Long.parseLong(String.valueOf(conn.in.readLine()));
+        } catch (NumberFormatException e) {
+            // cannot tell where the state ends: give up on this sender.
+            conn.out.println("FAILED malformed-length");
+            throw new IOException("malformed part length: " + e);
+        }
+
+        // USAGE: time slice used by the part at the sender
+        double usage;
+        try {
+            usage = Double.parseDouble(String.valueOf(conn.in.readLine()));
+        } catch (NumberFormatException e) {
+            conn.out.println("FAILED malformed-usage");
+            throw new IOException("malformed part usage: " + e);
+        }
 
-            // DATA_LENGTH
-            int len = new Integer(conn.in.readLine());
+        // admit the part, reserving its usage.
+        String refusal = null;
+        long reservation = -1;
 
-            // DATA
-            byte[] data = new byte[len];
+        if (id == null) {
+            logger.error("malformed id: " + idStr);
+            refusal = "malformed-partid";
+
+        } else if (!site.registry().tryLockShared("part_transfer")) {
+            refusal = "busy";
+
+        } else {
+            try {
+                reservation = admit(from, usage);
+            } finally {
+                site.registry().unlockShared("part_transfer");
+            }
+
+            if (reservation < 0) {
+                logger.info("no room for partid " + id + " with usage "
+                        + usage + ". " + site.reservations());
+                refusal = "full";
+            }
+        }
+
+        // DATA: chunked state, or a snapshot of known length which is
+        // spooled to a local file. Refused parts are skipped.
+        InputStream data = null;
+        PartSnapshot snapshot = null;
+
+        boolean taken = false;
+        try {
+            if (len < 0)
+                data = new ChunkedInputStream(conn.dataIn);
+            else if (refusal != null)
+                data = new BoundedInputStream(conn.dataIn, len);
+            else
+                snapshot = PartSnapshot.receive(conn.dataIn,
+                                                len,
+                                                snapshotDir());
+
+            if (refusal != null) {
+                conn.out.println("FAILED " + refusal);
+                return false;
+            }
 
             logger.debug("request to take over partid " + id + " with "
-                    + data.length + " bytes data from " + senderName);
+                    + (len < 0 ? "chunked" : String.valueOf(len))
+                    + " bytes data from " + senderName);
+
+            if (!site.registry().tryLockShared("part_transfer")) {
+                conn.out.println("FAILED busy");
+                return false;
+            }
 
-            if (takeover(id, data)) {
+            try {
+                taken = takeover(id, data, snapshot);
+            } finally {
+                site.registry().unlockShared("part_transfer");
+            }
+
+            if (taken) {
                 conn.out.println("OK");
                 logger.debug("OK");
                 return true;
@@ -240,29 +463,138 @@ public class PartReceiver extends Service {
             } else {
                 conn.out.println("FAILED takeover");
                 logger.debug("FAILED");
+                return false;
             }
 
+        } finally {
+            if (data != null) data.close();
+            if (snapshot != null) snapshot.delete();
+
+            if (!taken && reservation >= 0)
+                site.reservations().release(reservation);
+        }
+    }
+
+    // reserve time slice for a part, drawing on a reservation made for it,
+    // if it fits into what is free.
+    private long admit(long from, double usage) {
+        return site.reservations().tryReserve(from, free(), usage, settle);
+    }
+
+    // free time slice, reserved or not.
+    private double free() {
+        Resource free = site.monitor().getUnreservedFreeResource();
+        return (free instanceof TimeSliceResource ? ((TimeSliceResource) free).getTimeSlice()
+                : 0.0);
+    }
+
+    // Reserve: AMOUNT
+    private void reserve(Connection conn) throws IOException {
+        double amount = parseAmount(conn.in.readLine());
+
+        long id = site.reservations().reserveUpTo(free(), amount, lease);
+        if (id < 0) {
+            conn.out.println("FAILED full");
+            return;
+        }
+
+        double granted = site.reservations().amount(id);
+        logger.debug("reserved " + granted + " of " + amount + " as " + id);
+
+        conn.out.println("OK " + id + " " + granted);
+    }
+
+    // Commit: ID AMOUNT. Returns the id, or -1 if the reservation has expired.
+    private long commit(Connection conn) throws IOException {
+        long id = parseId(conn.in.readLine());
+        double amount = parseAmount(conn.in.readLine());
+
+        if (id < 0 || !site.reservations().trim(id, amount, lease)) {
+            conn.out.println("FAILED expired");
+            return -1;
+        }
+
+        conn.out.println("OK");
+        return id;
+    }
+
+    // Abort: ID
+    private void abort(Connection conn) throws IOException {
+        long id = parseId(conn.in.readLine());
+
+        if (id < 0 || !site.reservations().release(id))
+            conn.out.println("FAILED expired");
+        else
+            conn.out.println("OK");
+    }
+
+    private static long parseId(String s) throws IOException {
+        try {
+            return Long.parseLong(String.valueOf(s));
         } catch (NumberFormatException e) {
-            logger.error("malformed id or part length: " + e);
-            conn.out.println("FAILED malformed-partid");
+            throw new IOException("malformed reservation id: " + e);
         }
+    }
 
-        return false;
+    private static double parseAmount(String s) throws IOException {
+        try {
+            return Double.parseDouble(String.valueOf(s));
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed reservation amount: " + e);
+        }
+    }
+
+    // directory for received snapshots: "transfer.dir" in site spec, or the
+    // default temporary-file directory.
+    private File snapshotDir() {
+        String dir = site.spec().get("transfer.dir");
+        return (dir != null ? new File(dir) : null);
     }
 
-    private boolean takeover(Part.Id id, byte[] data) {
+    private boolean takeover(Part.Id id, InputStream data,
+            PartSnapshot snapshot) throws IOException {
         Job job = site.job();
 
         if (job == null) return false;
 
+        boolean known = (job.partMap().get(id) != null);
+
         Part part = job.takeoverPart(id);
         if (part == null) return false;
 
-        // INJECT THE DATA
+        boolean starting = false;
+        boolean started = false;
+        try {
+            // INJECT THE DATA
+            if (snapshot != null)
+                part.restore(snapshot);
+            else
+                part.readState(data);
+
+            starting = true;
+            part.start();
+            started = true;
+
+            return true;
 
-        part.start();
+        } finally {
+            if (!started) abandon(job, part, known, starting);
+        }
+    }
+
+    // let go of a part whose takeover failed, so that the sender remains its
+    // only owner. Ownership only moves to this site when the part is started.
+    private void abandon(Job job, Part part, boolean known, boolean starting) {
+        logger.error("could not take over partid " + part.id()
+                + ". letting go of it.");
+
+        try {
+            if (starting) site.partList().release(part.id());
+        } catch (RuntimeException e) {
+            logger.error("error releasing partid " + part.id(), e);
+        }
 
-        return true;
+        if (!known) job.partMap().forget(part);
     }
 
 }
@@ -18,12 +18,15 @@ package io.s4.zeno.service;
 import io.s4.zeno.Part;
 import io.s4.zeno.Service;
 import io.s4.zeno.Site;
+import io.s4.zeno.route.BinaryEvent;
+import io.s4.zeno.route.EventBatch;
 import io.s4.zeno.route.Hasher;
 import io.s4.zeno.util.ZenoError;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
 
 import org.apache.log4j.Logger;
 
@@ -46,6 +49,9 @@ public class SimpleEventReceiver extends Service {
 
     private DatagramSocket dsock;
 
+    // receive buffer, wrapped for binary parsing.
+    private ByteBuffer wrapped = null;
+
     protected void initialize() {
         int p = site.spec().getInt("port.event", -1);
         if (p <= 0) {
@@ -53,6 +59,14 @@ public class SimpleEventReceiver extends Service {
         }
 
         site.info().set("port.event", String.valueOf(p));
+
+        // binary events can be disabled during a rollout by setting
+        // event.format to text.
+        String format = site.spec().get(BinaryEvent.FORMAT_PROPERTY);
+        if (!BinaryEvent.FORMAT_TEXT.equals(format))
+            format = BinaryEvent.FORMAT_BINARY;
+
+        site.info().set(BinaryEvent.FORMAT_PROPERTY, format);
         site.info().save();
 
         try {
@@ -76,9 +90,21 @@ public class SimpleEventReceiver extends Service {
     protected void action() {
         if (dsock == null) return;
 
+        // the buffer and packet are reused across datagrams. A datagram may
+        // carry a batch of events, so the buffer is as large as a datagram.
+        byte[] data = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        wrapped = ByteBuffer.wrap(data);
+
+        EventBatch.Handler handler = new EventBatch.Handler() {
+            public void handle(byte[] buf, int offset, int length,
+                    boolean queued) {
+                handleEvent(buf, offset, length, queued);
+            }
+        };
+
         while (dsock.isBound()) {
-            byte[] data = new byte[1024];
-            DatagramPacket packet = new DatagramPacket(data, 1024);
+            packet.setData(data, 0, data.length);
 
             try {
                 dsock.receive(packet);
@@ -87,74 +113,119 @@ public class SimpleEventReceiver extends Service {
                 continue;
             }
 
-            String command = new String(packet.getData(), 0, packet.getLength());
-            // System.out.println("packet data: '" + command + "'");
+            int length = packet.getLength();
 
-            if (command.equals("pause") || command.equals("pause\n")) {
-                site.job().pause();
-                logger.info("STATE: " + site.state());
-                continue;
-            } else if (command.equals("resume") || command.equals("resume\n")) {
-                site.job().unpause();
-                logger.info("STATE: " + site.state());
-                continue;
+            if (!EventBatch.isBatch(data, 0, length)
+                    && !BinaryEvent.isBinary(data, 0, length)) {
+                String command = new String(data, 0, length);
+                // System.out.println("packet data: '" + command + "'");
+
+                if (command.equals("pause") || command.equals("pause\n")) {
+                    site.job().pause();
+                    logger.info("STATE: " + site.state());
+                    continue;
+                } else if (command.equals("resume")
+                        || command.equals("resume\n")) {
+                    site.job().unpause();
+                    logger.info("STATE: " + site.state());
+                    continue;
+                }
             }
 
-            String line = new String(packet.getData(),
-                                     0,
-                                     packet.getLength() - 1);
+            if (EventBatch.unpack(data, 0, length, handler) < 0) {
+                logger.error("malformed event batch of length " + length);
+            }
+        }
+    }
 
-            boolean isQueued = (packet.getData()[packet.getLength() - 1] == (byte) 1);
+    /**
+     * Handle a single event.
+     * 
+     * @param buf
+     *            buffer containing the event
+     * @param offset
+     *            start of event in buf
+     * @param length
+     *            length of event, excluding the flag
+     * @param isQueued
+     *            true if the event was held in a queue before being sent.
+     */
+    private void handleEvent(byte[] buf, int offset, int length,
+            boolean isQueued) {
+        if (BinaryEvent.isBinary(buf, offset, length)) {
+            handleBinaryEvent(offset, length, isQueued);
+            return;
+        }
 
-            String[] parts = line.split(" ");
-            if (parts.length < 3) continue;
+        String line = new String(buf, offset, length);
 
-            try {
-                int group = Integer.parseInt(parts[0]);
-                int key = Integer.parseInt(parts[1]);
-                Part.Id id = hasher.hash(group, key);
+        String[] parts = line.split(" ");
+        if (parts.length < 3) return;
 
-                double t = Double.parseDouble(parts[2]);
+        try {
+            int group = Integer.parseInt(parts[0]);
+            int key = Integer.parseInt(parts[1]);
+            Part.Id id = hasher.hash(group, key);
 
-                if (id == null) {
-                    logger.warn("malformed event identifiers: " + parts[0]
-                            + "," + parts[1]);
-                    continue;
-                }
+            double t = Double.parseDouble(parts[2]);
 
-                Part part = site.job().partMap().get(id);
+            if (id == null) {
+                logger.warn("malformed event identifiers: " + parts[0] + ","
+                        + parts[1]);
+                return;
+            }
 
-                // make sure this event belongs to a part in this site.
-                if (part == null) {
-                    logger.error("received an event for a part that is not owned by this site. partid: "
-                            + id);
-                    continue;
-                }
+            putEvent(id, t, isQueued);
 
-                // Do not count events that are played from queue for the
-                // purposes of monitoring
-                if (!isQueued) {
-                    logger.debug("GOT event: " + id);
-                    site.eventMonitor().putEvent(t);
-                    part.eventMonitor().putEvent(t);
-
-                    // System.out.println("rate:"
-                    // + site.eventMonitor().getEventRate()
-                    // + " length:"
-                    // + site.eventMonitor().getEventLength());
-                    // System.out.println("load:"
-                    // + site.loadMonitor().getLevel());
-                    // System.out.println("free:" +
-                    // site.loadMonitor().getFreeResource());
-
-                } else {
-                    logger.info("RECEIVED QUEUED EVENT FOR PARTID: " + id);
-                }
+        } catch (NumberFormatException e) {
+            logger.error("malformed numbers in data: " + e);
+        }
+    }
 
-            } catch (NumberFormatException e) {
-                logger.error("malformed numbers in data: " + e);
-            }
+    /**
+     * Handle a binary event. All fields are read from the frame.
+     */
+    private void handleBinaryEvent(int offset, int length, boolean isQueued) {
+        if (!BinaryEvent.isValid(wrapped, offset, length)) {
+            logger.error("malformed binary event of length " + length);
+            return;
+        }
+
+        int group = BinaryEvent.group(wrapped, offset);
+        int key = BinaryEvent.key(wrapped, offset);
+
+        Part.Id id = hasher.hash(group, key);
+
+        if (id == null) {
+            logger.warn("malformed event identifiers: " + group + "," + key);
+            return;
+        }
+
+        putEvent(id, BinaryEvent.length(wrapped, offset), isQueued);
+    }
+
+    /**
+     * Update monitors with an event.
+     */
+    private void putEvent(Part.Id id, double t, boolean isQueued) {
+        Part part = site.job().partMap().get(id);
+
+        // make sure this event belongs to a part in this site.
+        if (part == null) {
+            logger.error("received an event for a part that is not owned by this site. partid: "
+                    + id);
+            return;
+        }
+
+        // Do not count events that are played from queue for the
+        // purposes of monitoring
+        if (!isQueued) {
+            logger.debug("GOT event: " + id);
+            site.eventMonitor().putEvent(t);
+            part.eventMonitor().putEvent(t);
 
+        } else {
+            logger.info("RECEIVED QUEUED EVENT FOR PARTID: " + id);
         }
     }
 }
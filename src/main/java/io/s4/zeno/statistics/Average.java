@@ -33,6 +33,22 @@ public abstract class Average {
         _e = false;
     }
 
+    /**
+     * Put a value in the sequence a number of times.
+     * 
+     * @param x
+     *            value
+     * @param n
+     *            number of times the value is put. Nothing is put if not
+     *            positive.
+     */
+    public final void put(double x, long n) {
+        if (n <= 0) return;
+
+        update(x, n);
+        _e = false;
+    }
+
     /**
      * Is the sequence empty?
      * 
@@ -51,6 +67,20 @@ public abstract class Average {
      */
     protected abstract void update(double x);
 
+    /**
+     * Update the state with a value repeated a number of times. Concrete
+     * implementations may override this with a closed form.
+     * 
+     * @param x
+     *            the value
+     * @param n
+     *            number of repetitions. Positive.
+     */
+    protected void update(double x, long n) {
+        for (long i = 0; i < n; ++i)
+            update(x);
+    }
+
     /**
      * Get the current average.
      * 
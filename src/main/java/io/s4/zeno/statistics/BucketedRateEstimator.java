@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.statistics;
+
+import io.s4.zeno.util.CoarseClock;
+
+/**
+ * Estimate event arrival rate and mean event length from events counted in
+ * fixed time buckets.
+ * <p>
+ * Events are counted into the current bucket. When a bucket is complete, its
+ * count and total length are added to exponentially decayed sums, along with
+ * the time it covers:
+ * 
+ * <pre>
+ *     For buckets k = 1, 2, ..., i with n<sub>k</sub> events of total length l<sub>k</sub>:
+ * 
+ *     N<sub>i</sub> = d * N<sub>i-1</sub> + n<sub>i</sub>
+ *     L<sub>i</sub> = d * L<sub>i-1</sub> + l<sub>i</sub>
+ *     T<sub>i</sub> = d * T<sub>i-1</sub> + 1
+ * 
+ *     rate   = (N + n) / ((T + f) * width)
+ *     length = (L + l) / (N + n)
+ * 
+ *     Where:
+ *       * n, l are the count and length of the current bucket
+ *       * f is the fraction of the current bucket that has elapsed
+ *       * d = 0.5<sup>width/halfLife</sup>
+ * </pre>
+ * 
+ * Unlike {@link PoissonEstimator}, the estimate does not depend on the time
+ * between consecutive events, which is mostly 0 when events arrive faster
+ * than one per millisecond. The time is read from {@link CoarseClock}, so
+ * adding an event costs a few arithmetic operations.
+ * <p>
+ * Events must not be put concurrently. The estimates may be read from other
+ * threads while events are put: they are computed from a snapshot of the
+ * state, which they do not modify.
+ */
+public class BucketedRateEstimator implements RateEstimator {
+
+    private final long width;
+
+    // decay per bucket.
+    private final double decay;
+
+    // index of current bucket, and its count and length.
+    private long bucket;
+    private long n = 0;
+    private double length = 0.0;
+
+    // decayed sums over complete buckets. time in buckets.
+    private double sumN = 0.0;
+    private double sumLength = 0.0;
+    private double sumTime = 0.0;
+
+    // time of last event. -1 if none.
+    private long last = -1;
+
+    /**
+     * Constructor
+     * 
+     * @param width
+     *            width of buckets in milliseconds. Should be much larger than
+     *            {@link CoarseClock#RESOLUTION}.
+     * @param halfLife
+     *            time after which the weight of a bucket halves, in
+     *            milliseconds.
+     */
+    public BucketedRateEstimator(long width, long halfLife) {
+        this.width = Math.max(1, width);
+        this.decay = Math.pow(0.5, this.width
+                / (double) Math.max(halfLife, this.width));
+        this.bucket = CoarseClock.now() / this.width;
+    }
+
+    public void putEvent() {
+        putEvent(0.0);
+    }
+
+    /**
+     * Signal that an event of some length has arrived at the current time.
+     * 
+     * @param t
+     *            event length
+     */
+    public void putEvent(double t) {
+        long now = CoarseClock.now();
+
+        if (now / width != bucket) roll(now / width);
+
+        ++n;
+        length += t;
+        last = now;
+    }
+
+    // complete buckets up to b.
+    private void roll(long b) {
+        long k = b - bucket;
+        if (k <= 0) return; // clock moved back.
+
+        // the current bucket is followed by k - 1 empty ones.
+        double dk = Math.pow(decay, k);
+        double dk1 = dk / decay;
+
+        sumN = sumN * dk + n * dk1;
+        sumLength = sumLength * dk + length * dk1;
+        sumTime = sumTime * dk + (1 - dk) / (1 - decay);
+
+        bucket = b;
+        n = 0;
+        length = 0.0;
+    }
+
+    public double getRate() {
+        long now = CoarseClock.now();
+        long b = now / width;
+
+        long b0 = bucket;
+        double count = sumN + n;
+        double time = sumTime;
+
+        // as if the current bucket had been rolled up to now, leaving the
+        // state to the thread putting events.
+        long k = b - b0;
+        if (k > 0) {
+            double dk = Math.pow(decay, k);
+
+            count = sumN * dk + n * dk / decay;
+            time = sumTime * dk + (1 - dk) / (1 - decay);
+            b0 = b;
+        }
+
+        double t = time + (now - b0 * width) / (double) width;
+        if (t <= 0.0) return 0.0;
+
+        return 1000.0 * count / (t * width);
+    }
+
+    /**
+     * Gets the current estimate of the mean length of events.
+     * 
+     * @return the mean length. 0 if there have been no events.
+     */
+    public double getMeanLength() {
+        // decay applies equally to counts and lengths, and cancels out unless
+        // the current bucket is rolled.
+        long k = CoarseClock.now() / width - bucket;
+
+        double count, total;
+        if (k > 0) {
+            double dk = Math.pow(decay, k);
+            double dk1 = dk / decay;
+
+            count = sumN * dk + n * dk1;
+            total = sumLength * dk + length * dk1;
+        } else {
+            count = sumN + n;
+            total = sumLength + length;
+        }
+
+        return (count > 0.0 ? total / count : 0.0);
+    }
+
+    public long getMillisSinceLastEvent() {
+        if (last < 0) return Long.MAX_VALUE;
+
+        return Math.max(0, CoarseClock.now() - last);
+    }
+}
@@ -59,6 +59,25 @@ public class ExponentialMovingAverage extends Average {
         w = (1 - a) * w + a;
     }
 
+    /**
+     * Update moving average with {@code n} copies of a value. Equivalent to
+     * calling {@link #update(double)} {@code n} times:
+     * 
+     * <pre>
+     *    b = (1 - a)<sup>n</sup>
+     *    s<sub>i+n</sub> = b * s<sub>i</sub> + (1 - b) * x
+     *    w<sub>i+n</sub> = b * w<sub>i</sub> + (1 - b)
+     * </pre>
+     * 
+     * @see io.s4.zeno.statistics.Average#update(double, long)
+     */
+    protected void update(double x, long n) {
+        double b = Math.pow(1 - a, n);
+
+        s = b * s + (1 - b) * x;
+        w = b * w + (1 - b);
+    }
+
     public double get() {
         return s / w;
     }
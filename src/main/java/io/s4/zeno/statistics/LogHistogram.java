@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram of values with a fixed relative precision, in a fixed amount of
+ * memory. Values are counted in buckets whose width grows with the value, so
+ * that every bucket is narrow compared with the values it holds.
+ * <p>
+ * Values are measured in multiples of a unit, the smallest value told apart
+ * from zero. With {@code p} bits of precision, the first {@code 2^p} units
+ * get a bucket each. Above that, each power of two is split into
+ * {@code 2^(p-1)} buckets of equal width:
+ * 
+ * <pre>
+ *     u = value / unit
+ * 
+ *     u &lt; 2^p:   bucket u
+ *     otherwise:  shift  = (most significant bit of u) - (p-1)
+ *                 bucket = shift * 2^(p-1) + (u &gt;&gt; shift)
+ * </pre>
+ * 
+ * A value is reported as the middle of its bucket, within a fraction
+ * {@code 2^-p} of the recorded value. Values above the highest trackable
+ * value are counted in the last bucket.
+ * <p>
+ * Values may be recorded by many threads at once. Reads are not atomic with
+ * respect to concurrent recording, but never see more events in a bucket than
+ * have been recorded.
+ */
+public class LogHistogram {
+
+    private final double unit;
+
+    private final int precision;
+
+    // number of buckets per power of two above 2^precision.
+    private final int half;
+
+    private final long maxUnits;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong total = new AtomicLong(0);
+
+    /**
+     * Create an empty histogram.
+     * 
+     * @param unit
+     *            smallest value told apart from zero.
+     * @param highest
+     *            highest trackable value.
+     * @param precision
+     *            bits of relative precision, between 1 and 16.
+     */
+    public LogHistogram(double unit, double highest, int precision) {
+        if (unit <= 0.0 || highest < unit)
+            throw new IllegalArgumentException("bad range: unit=" + unit
+                    + " highest=" + highest);
+
+        if (precision < 1 || precision > 16)
+            throw new IllegalArgumentException("bad precision: " + precision);
+
+        this.unit = unit;
+        this.precision = precision;
+        this.half = 1 << (precision - 1);
+        this.maxUnits = Math.max(1L, (long) Math.ceil(highest / unit));
+        this.counts = new AtomicLongArray(index(maxUnits) + 1);
+    }
+
+    /**
+     * Create an empty histogram with the same range and precision as another.
+     */
+    public LogHistogram(LogHistogram h) {
+        this(h.unit, h.maxUnits * h.unit, h.precision);
+    }
+
+    // bucket holding u units.
+    private int index(long u) {
+        if (u < 2 * half) return (int) u;
+
+        int shift = 63 - Long.numberOfLeadingZeros(u) - (precision - 1);
+        return shift * half + (int) (u >>> shift);
+    }
+
+    // smallest number of units in bucket i.
+    private long lowest(int i) {
+        if (i < 2 * half) return i;
+
+        int shift = i / half - 1;
+        return (long) (i - shift * half) << shift;
+    }
+
+    // width of bucket i, in units.
+    private long width(int i) {
+        return (i < 2 * half ? 1L : 1L << (i / half - 1));
+    }
+
+    /**
+     * Record a value.
+     * 
+     * @param x
+     *            value. Negative values are recorded as zero.
+     */
+    public void record(double x) {
+        long u = (x <= 0.0 ? 0L : (long) (x / unit));
+        if (u > maxUnits) u = maxUnits;
+
+        counts.incrementAndGet(index(u));
+        total.incrementAndGet();
+    }
+
+    /**
+     * Number of values recorded.
+     */
+    public long count() {
+        return total.get();
+    }
+
+    /**
+     * Forget all values.
+     */
+    public void clear() {
+        for (int i = 0; i < counts.length(); ++i)
+            counts.set(i, 0L);
+
+        total.set(0L);
+    }
+
+    /**
+     * Value at a quantile of the values recorded.
+     * 
+     * @param q
+     *            quantile, between 0 and 1, e.g. 0.99
+     * @return value below which a fraction q of the values lie. Zero if no
+     *         values have been recorded.
+     */
+    public double quantile(double q) {
+        return quantile(q, this);
+    }
+
+    /**
+     * Value at a quantile of the values recorded in several histograms taken
+     * together. The histograms must have the same range and precision.
+     * 
+     * @param q
+     *            quantile, between 0 and 1, e.g. 0.99
+     * @param hs
+     *            histograms
+     * @return value below which a fraction q of the values lie. Zero if no
+     *         values have been recorded.
+     */
+    public static double quantile(double q, LogHistogram... hs) {
+        LogHistogram h0 = hs[0];
+
+        long n = 0;
+        for (LogHistogram h : hs) {
+            if (h.counts.length() != h0.counts.length() || h.unit != h0.unit)
+                throw new IllegalArgumentException("incompatible histograms");
+
+            n += h.count();
+        }
+
+        if (n == 0) return 0.0;
+
+        // rank of the value sought, counting from 1.
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(1.0, q) * n));
+
+        long seen = 0;
+        for (int i = 0; i < h0.counts.length(); ++i) {
+            for (LogHistogram h : hs)
+                seen += h.counts.get(i);
+
+            if (seen >= rank) return h0.value(i);
+        }
+
+        // values recorded while counting. report the highest seen.
+        for (int i = h0.counts.length() - 1; i >= 0; --i) {
+            for (LogHistogram h : hs)
+                if (h.counts.get(i) > 0) return h0.value(i);
+        }
+
+        return 0.0;
+    }
+
+    // value reported for bucket i: its middle.
+    private double value(int i) {
+        return (lowest(i) + 0.5 * width(i)) * unit;
+    }
+
+    public String toString() {
+        return "count=" + count() + " p50=" + quantile(0.5) + " p90="
+                + quantile(0.9) + " p99=" + quantile(0.99);
+    }
+}
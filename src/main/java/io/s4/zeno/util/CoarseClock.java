@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.util;
+
+/**
+ * A clock with millisecond units and coarse resolution which is cheap to read.
+ * The time is read by a background thread every {@link #RESOLUTION}
+ * milliseconds, and cached. Reading the clock is a volatile read.
+ * <p>
+ * Useful where the time is needed for every event, but a few milliseconds of
+ * error are acceptable.
+ */
+public class CoarseClock {
+
+    /** Interval between updates of the clock, in milliseconds. */
+    public static final long RESOLUTION = 5;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    now = System.currentTimeMillis();
+
+                    try {
+                        Thread.sleep(RESOLUTION);
+                    } catch (InterruptedException e) {
+                        // keep ticking.
+                    }
+                }
+            }
+        }, "coarse-clock");
+
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /**
+     * Current time, as of the last tick of the clock.
+     * 
+     * @return milliseconds since the epoch.
+     */
+    public static long now() {
+        return now;
+    }
+}
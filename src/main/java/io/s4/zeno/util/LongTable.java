@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.util;
+
+import java.util.Map;
+
+
+/**
+ * Immutable hash table with primitive {@code long} keys, using open addressing
+ * with linear probing. Lookups neither allocate nor box. Tables are meant to be
+ * rebuilt on (rare) changes and published through a volatile reference, so
+ * that readers never block.
+ * 
+ * @param <T>
+ *            type of values
+ */
+public class LongTable<T> {
+
+    private final long[] keys;
+
+    private final Object[] values;
+
+    private final int mask;
+
+    private final int size;
+
+    /**
+     * Build a table from a map.
+     * 
+     * @param map
+     *            mapping from keys to values. Null values are not allowed.
+     */
+    public LongTable(Map<Long, ? extends T> map) {
+        int n = map.size();
+
+        // keep load factor at or below 0.5
+        int cap = 2;
+        while (cap < 2 * n)
+            cap <<= 1;
+
+        this.keys = new long[cap];
+        this.values = new Object[cap];
+        this.mask = cap - 1;
+        this.size = n;
+
+        for (Map.Entry<Long, ? extends T> e : map.entrySet()) {
+            long k = e.getKey().longValue();
+            int i = index(k);
+
+            while (values[i] != null && keys[i] != k)
+                i = (i + 1) & mask;
+
+            keys[i] = k;
+            values[i] = e.getValue();
+        }
+    }
+
+    /**
+     * Look up a key.
+     * 
+     * @param key
+     *            key
+     * @return value mapped to key, or null if there is no such key.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(long key) {
+        int i = index(key);
+
+        Object v;
+        while ((v = values[i]) != null) {
+            if (keys[i] == key) return (T) v;
+            i = (i + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * Number of entries in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int index(long key) {
+        key ^= (key >>> 33);
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= (key >>> 33);
+        return (int) key & mask;
+    }
+}
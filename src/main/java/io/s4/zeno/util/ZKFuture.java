@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2010 Yahoo! Inc. All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *              http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License. See accompanying LICENSE file. 
+ */
+package io.s4.zeno.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Result of an asynchronous ZooKeeper operation issued through
+ * {@link ZooKeeperHelper}.
+ * <p>
+ * Besides the {@link Future} methods, the result can be retrieved with
+ * {@link #result()}, which throws the same exceptions as the corresponding
+ * synchronous operation. Listeners added with {@link #addListener(Runnable)}
+ * run once the operation completes, usually on the ZooKeeper event thread. They
+ * must not block waiting for other operations to complete.
+ * 
+ * @param <T>
+ *            type of result.
+ */
+public class ZKFuture<T> implements Future<T> {
+    private static final Logger logger = Logger.getLogger(ZKFuture.class);
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile T value = null;
+
+    private volatile Stat stat = null;
+
+    private volatile KeeperException error = null;
+
+    // null once the future has completed.
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+    /**
+     * Complete the operation successfully.
+     * 
+     * @param value
+     *            result
+     * @param stat
+     *            stat of the node, if any.
+     */
+    void set(T value, Stat stat) {
+        this.value = value;
+        this.stat = stat;
+        complete();
+    }
+
+    /**
+     * Complete the operation with an error.
+     */
+    void fail(KeeperException error) {
+        this.error = error;
+        complete();
+    }
+
+    private void complete() {
+        List<Runnable> l;
+
+        synchronized (this) {
+            l = listeners;
+            listeners = null;
+        }
+
+        done.countDown();
+
+        if (l != null) {
+            for (Runnable r : l)
+                notify(r);
+        }
+    }
+
+    private void notify(Runnable r) {
+        try {
+            r.run();
+        } catch (RuntimeException e) {
+            logger.error("exception in listener", e);
+        }
+    }
+
+    /**
+     * Run a task when the operation completes. If it has already completed,
+     * the task is run right away in the calling thread.
+     */
+    public void addListener(Runnable r) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(r);
+                return;
+            }
+        }
+
+        notify(r);
+    }
+
+    /**
+     * Wait for the operation to complete and get its result.
+     * 
+     * @return result of the operation.
+     * @throws KeeperException
+     *             if the operation failed.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public T result() throws KeeperException, InterruptedException {
+        done.await();
+
+        if (error != null) throw error;
+
+        return value;
+    }
+
+    /**
+     * Stat of the node, for operations that return one along with their
+     * result. Valid once the operation has completed successfully.
+     */
+    public Stat stat() {
+        return stat;
+    }
+
+    /**
+     * Did the operation fail?
+     */
+    public boolean failed() {
+        return isDone() && error != null;
+    }
+
+    /**
+     * Operations cannot be cancelled once issued.
+     * 
+     * @return false
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+
+        if (error != null) throw new ExecutionException(error);
+
+        return value;
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException("zookeeper operation timed out");
+
+        if (error != null) throw new ExecutionException(error);
+
+        return value;
+    }
+}
@@ -17,8 +17,15 @@ package io.s4.zeno.util;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
@@ -44,6 +51,21 @@ public class ZooKeeperHelper {
     /** The retry time. */
     private int retryTime = 0;
 
+    /** Default limit on asynchronous operations in flight. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    /** The limit on asynchronous operations in flight. */
+    private final int maxInFlight;
+
+    /** The number of asynchronous operations in flight. */
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    /** Asynchronous operations waiting to be issued. */
+    private final ConcurrentLinkedQueue<AsyncOperation<?>> waiting = new ConcurrentLinkedQueue<AsyncOperation<?>>();
+
+    /** Schedules retries of asynchronous operations. Created lazily. */
+    private ScheduledExecutorService retrier = null;
+
     /**
      * Gets the zoo keeper.
      * 
@@ -66,9 +88,28 @@ public class ZooKeeperHelper {
      *            the retry time
      */
     public ZooKeeperHelper(ZooKeeper zookeeper, int nRetries, int retryTime) {
+        this(zookeeper, nRetries, retryTime, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Instantiates a new zoo keeper helper.
+     * 
+     * @param zookeeper
+     *            the zookeeper
+     * @param nRetries
+     *            the n retries
+     * @param retryTime
+     *            the retry time
+     * @param maxInFlight
+     *            maximum number of asynchronous operations in flight. Further
+     *            operations are queued until earlier ones complete.
+     */
+    public ZooKeeperHelper(ZooKeeper zookeeper, int nRetries, int retryTime,
+            int maxInFlight) {
         this.zookeeper = zookeeper;
         this.nRetries = nRetries;
         this.retryTime = retryTime;
+        this.maxInFlight = Math.max(1, maxInFlight);
     }
 
     /**
@@ -356,6 +397,366 @@ public class ZooKeeperHelper {
                 : Collections.<String> emptyList();
     }
 
+    // ---------------------------------------------------------------------
+    // Asynchronous operations.
+    //
+    // Each operation is issued through the callback API of ZooKeeper and
+    // returns a future right away, so that many requests can be in flight on
+    // the session at once. Connection loss is retried as in the synchronous
+    // operations, after a delay that is scheduled rather than slept, since
+    // callbacks run on the ZooKeeper event thread.
+    // ---------------------------------------------------------------------
+
+    /**
+     * An asynchronous operation, with its retry state.
+     */
+    private abstract class AsyncOperation<T> {
+        protected final ZKFuture<T> future = new ZKFuture<T>();
+
+        private int attempt = 0;
+
+        /**
+         * Issue the operation. Its callback calls {@link #complete}.
+         */
+        protected abstract void issue();
+
+        /**
+         * Handle the result of an attempt.
+         * 
+         * @param rc
+         *            result code
+         * @param path
+         *            path of the operation
+         * @param value
+         *            result, if successful.
+         * @param stat
+         *            stat, if any.
+         */
+        protected void complete(int rc, String path, T value, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+
+            if (code == KeeperException.Code.CONNECTIONLOSS
+                    && attempt < nRetries) {
+                ++attempt;
+                logger.warn("connection to zookeeper server lost. retrying "
+                        + path);
+                retry(this);
+                return;
+            }
+
+            // let waiting operations go before running listeners, which
+            // may issue more operations.
+            finished();
+
+            if (code == KeeperException.Code.OK)
+                future.set(value, stat);
+            else
+                fail(code, path);
+        }
+
+        /**
+         * Complete with an error.
+         */
+        protected void fail(KeeperException.Code code, String path) {
+            future.fail(KeeperException.create(code, path));
+        }
+    }
+
+    /**
+     * Queue an operation, and issue it as soon as the number of operations
+     * in flight allows.
+     */
+    private <T> ZKFuture<T> submit(AsyncOperation<T> op) {
+        waiting.add(op);
+        pump();
+
+        return op.future;
+    }
+
+    // issue waiting operations while below the limit.
+    private void pump() {
+        while (!waiting.isEmpty()) {
+            int n = inFlight.get();
+            if (n >= maxInFlight) return;
+
+            if (!inFlight.compareAndSet(n, n + 1)) continue;
+
+            AsyncOperation<?> op = waiting.poll();
+            if (op == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+
+            op.issue();
+        }
+    }
+
+    private void finished() {
+        inFlight.decrementAndGet();
+        pump();
+    }
+
+    // reissue an operation after the retry time. It keeps its slot.
+    private void retry(final AsyncOperation<?> op) {
+        if (retryTime <= 0) {
+            op.issue();
+            return;
+        }
+
+        retrier().schedule(new Runnable() {
+            public void run() {
+                op.issue();
+            }
+        }, retryTime, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService retrier() {
+        if (retrier == null) {
+            retrier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "zookeeper-retry");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return retrier;
+    }
+
+    /**
+     * Number of asynchronous operations in flight.
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Number of asynchronous operations waiting to be issued.
+     */
+    public int waiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Exists, asynchronously.
+     * 
+     * @param path
+     *            the path
+     * @param watcher
+     *            the watcher
+     * @return future stat. The result is null if the node does not exist.
+     */
+    public ZKFuture<Stat> existsAsync(final String path, final Watcher watcher) {
+        return submit(new ExistsOperation() {
+            protected void issue() {
+                zookeeper.exists(path, watcher, this, null);
+            }
+        });
+    }
+
+    /**
+     * Exists, asynchronously.
+     * 
+     * @param path
+     *            the path
+     * @param watch
+     *            the watch
+     * @return future stat. The result is null if the node does not exist.
+     */
+    public ZKFuture<Stat> existsAsync(final String path, final boolean watch) {
+        return submit(new ExistsOperation() {
+            protected void issue() {
+                zookeeper.exists(path, watch, this, null);
+            }
+        });
+    }
+
+    private abstract class ExistsOperation extends AsyncOperation<Stat>
+            implements AsyncCallback.StatCallback {
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            // a missing node is not an error.
+            if (rc == KeeperException.Code.NONODE.intValue())
+                rc = KeeperException.Code.OK.intValue();
+
+            complete(rc, path, stat, stat);
+        }
+    }
+
+    /**
+     * Creates the node, asynchronously.
+     * 
+     * @param path
+     *            the path
+     * @param data
+     *            the data
+     * @param acl
+     *            the acl
+     * @param createMode
+     *            the create mode
+     * @return future name of the created node.
+     */
+    public ZKFuture<String> createAsync(final String path, final byte[] data,
+            final List<ACL> acl, final CreateMode createMode) {
+        return submit(new StringOperation() {
+            protected void issue() {
+                zookeeper.create(path, data, acl, createMode, this, null);
+            }
+        });
+    }
+
+    private abstract class StringOperation extends AsyncOperation<String>
+            implements AsyncCallback.StringCallback {
+        public void processResult(int rc, String path, Object ctx, String name) {
+            complete(rc, path, name, null);
+        }
+    }
+
+    /**
+     * Delete, asynchronously.
+     * 
+     * @param path
+     *            the path
+     * @param version
+     *            the version
+     * @return future that completes when the node has been deleted.
+     */
+    public ZKFuture<Void> deleteAsync(final String path, final int version) {
+        return submit(new VoidOperation() {
+            protected void issue() {
+                zookeeper.delete(path, version, this, null);
+            }
+        });
+    }
+
+    private abstract class VoidOperation extends AsyncOperation<Void>
+            implements AsyncCallback.VoidCallback {
+        public void processResult(int rc, String path, Object ctx) {
+            complete(rc, path, null, null);
+        }
+    }
+
+    /**
+     * Sets the data, asynchronously.
+     * 
+     * @param path
+     *            the path
+     * @param data
+     *            the data
+     * @param version
+     *            the version
+     * @return future stat of the node.
+     */
+    public ZKFuture<Stat> setDataAsync(final String path, final byte[] data,
+            final int version) {
+        return submit(new StatOperation() {
+            protected void issue() {
+                zookeeper.setData(path, data, version, this, null);
+            }
+        });
+    }
+
+    private abstract class StatOperation extends AsyncOperation<Stat>
+            implements AsyncCallback.StatCallback {
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            complete(rc, path, stat, stat);
+        }
+    }
+
+    /**
+     * Gets the data, asynchronously. The stat of the node is available from
+     * {@link ZKFuture#stat()} once the operation has completed.
+     * 
+     * @param path
+     *            the path
+     * @param watcher
+     *            the watcher
+     * @return future data.
+     */
+    public ZKFuture<byte[]> getDataAsync(final String path,
+            final Watcher watcher) {
+        return submit(new DataOperation() {
+            protected void issue() {
+                zookeeper.getData(path, watcher, this, null);
+            }
+        });
+    }
+
+    /**
+     * Gets the data, asynchronously. The stat of the node is available from
+     * {@link ZKFuture#stat()} once the operation has completed.
+     * 
+     * @param path
+     *            the path
+     * @param watch
+     *            the watch
+     * @return future data.
+     */
+    public ZKFuture<byte[]> getDataAsync(final String path, final boolean watch) {
+        return submit(new DataOperation() {
+            protected void issue() {
+                zookeeper.getData(path, watch, this, null);
+            }
+        });
+    }
+
+    private abstract class DataOperation extends AsyncOperation<byte[]>
+            implements AsyncCallback.DataCallback {
+        public void processResult(int rc, String path, Object ctx,
+                byte[] data, Stat stat) {
+            complete(rc, path, data, stat);
+        }
+    }
+
+    /**
+     * Gets the children, asynchronously.
+     * 
+     * @param path
+     *            the path
+     * @param watcher
+     *            the watcher
+     * @return future list of children.
+     */
+    public ZKFuture<List<String>> getChildrenAsync(final String path,
+            final Watcher watcher) {
+        return submit(new ChildrenOperation() {
+            protected void issue() {
+                zookeeper.getChildren(path, watcher, this, null);
+            }
+        });
+    }
+
+    /**
+     * Gets the children, asynchronously.
+     * 
+     * @param path
+     *            the path
+     * @param watch
+     *            the watch
+     * @return future list of children.
+     */
+    public ZKFuture<List<String>> getChildrenAsync(final String path,
+            final boolean watch) {
+        return submit(new ChildrenOperation() {
+            protected void issue() {
+                zookeeper.getChildren(path, watch, this, null);
+            }
+        });
+    }
+
+    private abstract class ChildrenOperation extends
+            AsyncOperation<List<String>> implements
+            AsyncCallback.ChildrenCallback {
+        public void processResult(int rc, String path, Object ctx,
+                List<String> children) {
+            complete(rc,
+                     path,
+                     (children != null) ? children
+                             : Collections.<String> emptyList(),
+                     null);
+        }
+    }
+
     /**
      * Retry wait.
      * 